@@ -25,6 +25,9 @@ import org.spout.api.geo.World;
 import org.spout.api.geo.discrete.Point;
 
 import com.volumetricpixels.politics.data.PoliticsFileSystem;
+import com.volumetricpixels.politics.data.StorageBackend;
+import com.volumetricpixels.politics.data.WriteAheadLog;
+import com.volumetricpixels.politics.event.EventBatcher;
 import com.volumetricpixels.politics.group.level.GroupLevel;
 import com.volumetricpixels.politics.group.privilege.PrivilegeManager;
 import com.volumetricpixels.politics.universe.Universe;
@@ -61,6 +64,42 @@ public final class Politics {
         return getPlugin().getFileSystem();
     }
 
+    /**
+     * Gets the global configuration of the plugin.
+     * 
+     * @return The PoliticsConfig loaded from the config file
+     */
+    public static PoliticsConfig getConfig() {
+        return getPlugin().getPoliticsConfig();
+    }
+
+    /**
+     * Gets the StorageBackend of the plugin.
+     * 
+     * @return The StorageBackend universes and worlds are stored in
+     */
+    public static StorageBackend getStorageBackend() {
+        return getPlugin().getStorageBackend();
+    }
+
+    /**
+     * Gets the WriteAheadLog of the plugin.
+     * 
+     * @return The WriteAheadLog changes are recorded in between snapshots
+     */
+    public static WriteAheadLog getWriteAheadLog() {
+        return getPlugin().getWriteAheadLog();
+    }
+
+    /**
+     * Gets the EventBatcher of the plugin.
+     * 
+     * @return Politics' EventBatcher, or null if events are not batched
+     */
+    public static EventBatcher getEventBatcher() {
+        return getPlugin().getEventBatcher();
+    }
+
     /**
      * Gets the PlotManager of the plugin.
      * 
@@ -0,0 +1,312 @@
+/*
+ * This file is part of Politics.
+ * 
+ * Copyright (c) 2012-2012, VolumetricPixels <http://volumetricpixels.com/>
+ * Politics is licensed under the Affero General Public License Version 3.
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.volumetricpixels.politics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+
+import org.spout.cereal.config.Configuration;
+
+/**
+ * Global configuration of Politics
+ */
+public class PoliticsConfig {
+    /**
+     * Whether universes keep a Guava cache of the groups of each citizen.
+     */
+    private boolean citizenGroupCacheEnabled = false;
+    /**
+     * Group property ids universes keep a hash index on, besides the tag.
+     */
+    private int[] indexedProperties = new int[0];
+    /**
+     * Whether ids of destroyed groups are given to new groups.
+     */
+    private boolean reuseGroupIds = false;
+    /**
+     * Most groups whose properties and players are kept in memory, 0 to keep
+     * all of them. Only used by backends that store each group on its own.
+     */
+    private int maxLoadedGroups = 0;
+    /**
+     * Seconds between two snapshots of all worlds and universes.
+     */
+    private int saveInterval = 15 * 60;
+    /**
+     * Milliseconds between two fsyncs of the write-ahead log.
+     */
+    private int walSyncInterval = 50;
+    /**
+     * Threads used to load data files on startup, 0 for one per processor.
+     */
+    private int loadThreads = 0;
+    /**
+     * Whether world files are deflated.
+     */
+    private boolean compressWorlds = true;
+    /**
+     * Number of backups kept of every data file. 0 disables backups.
+     */
+    private int backups = 5;
+    /**
+     * Where data is stored: "file" for one file per universe and world,
+     * "pagestore" for one record per group and plot in an embedded store.
+     */
+    private String storageBackend = "file";
+    /**
+     * Whether property and owner changes are called as one batch event per
+     * tick instead of one event each.
+     */
+    private boolean batchEvents = false;
+
+    /**
+     * C'tor
+     */
+    public PoliticsConfig() {
+    }
+
+    /**
+     * @return whether universes cache the groups of each citizen on top of
+     *         their membership index
+     */
+    public boolean isCitizenGroupCacheEnabled() {
+        return citizenGroupCacheEnabled;
+    }
+
+    /**
+     * @param citizenGroupCacheEnabled
+     *            the citizenGroupCacheEnabled to set
+     */
+    public void setCitizenGroupCacheEnabled(final boolean citizenGroupCacheEnabled) {
+        this.citizenGroupCacheEnabled = citizenGroupCacheEnabled;
+    }
+
+    /**
+     * @return the group property ids universes keep a hash index on
+     */
+    public int[] getIndexedProperties() {
+        return indexedProperties.clone();
+    }
+
+    /**
+     * @param indexedProperties
+     *            the indexedProperties to set
+     */
+    public void setIndexedProperties(final int... indexedProperties) {
+        this.indexedProperties = indexedProperties.clone();
+    }
+
+    /**
+     * @return whether ids of destroyed groups are given to new groups
+     */
+    public boolean isReuseGroupIds() {
+        return reuseGroupIds;
+    }
+
+    /**
+     * @param reuseGroupIds
+     *            the reuseGroupIds to set
+     */
+    public void setReuseGroupIds(final boolean reuseGroupIds) {
+        this.reuseGroupIds = reuseGroupIds;
+    }
+
+    /**
+     * @return the most groups whose properties and players are kept in
+     *         memory, or 0 if all of them are
+     */
+    public int getMaxLoadedGroups() {
+        return maxLoadedGroups;
+    }
+
+    /**
+     * @param maxLoadedGroups
+     *            the maxLoadedGroups to set, 0 to keep all groups loaded
+     */
+    public void setMaxLoadedGroups(final int maxLoadedGroups) {
+        this.maxLoadedGroups = Math.max(0, maxLoadedGroups);
+    }
+
+    /**
+     * @return the number of seconds between two snapshots
+     */
+    public int getSaveInterval() {
+        return saveInterval;
+    }
+
+    /**
+     * @param saveInterval
+     *            the saveInterval to set
+     */
+    public void setSaveInterval(final int saveInterval) {
+        this.saveInterval = Math.max(1, saveInterval);
+    }
+
+    /**
+     * @return the number of milliseconds between two fsyncs of the
+     *         write-ahead log
+     */
+    public int getWalSyncInterval() {
+        return walSyncInterval;
+    }
+
+    /**
+     * @param walSyncInterval
+     *            the walSyncInterval to set
+     */
+    public void setWalSyncInterval(final int walSyncInterval) {
+        this.walSyncInterval = Math.max(1, walSyncInterval);
+    }
+
+    /**
+     * @return the number of threads used to load data files on startup
+     */
+    public int getLoadThreads() {
+        return loadThreads > 0 ? loadThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @param loadThreads
+     *            the loadThreads to set, 0 for one per processor
+     */
+    public void setLoadThreads(final int loadThreads) {
+        this.loadThreads = Math.max(0, loadThreads);
+    }
+
+    /**
+     * @return whether world files are deflated
+     */
+    public boolean isCompressWorlds() {
+        return compressWorlds;
+    }
+
+    /**
+     * @param compressWorlds
+     *            the compressWorlds to set
+     */
+    public void setCompressWorlds(final boolean compressWorlds) {
+        this.compressWorlds = compressWorlds;
+    }
+
+    /**
+     * @return the number of backups kept of every data file
+     */
+    public int getBackups() {
+        return backups;
+    }
+
+    /**
+     * @param backups
+     *            the backups to set
+     */
+    public void setBackups(final int backups) {
+        this.backups = Math.max(0, backups);
+    }
+
+    /**
+     * @return the name of the storage backend
+     */
+    public String getStorageBackend() {
+        return storageBackend;
+    }
+
+    /**
+     * @param storageBackend
+     *            the storageBackend to set
+     */
+    public void setStorageBackend(final String storageBackend) {
+        this.storageBackend = storageBackend.toLowerCase();
+    }
+
+    /**
+     * @return whether property and owner changes are called as one
+     *         {@link com.volumetricpixels.politics.event.PoliticsBatchEvent}
+     *         per tick
+     */
+    public boolean isBatchEvents() {
+        return batchEvents;
+    }
+
+    /**
+     * @param batchEvents
+     *            the batchEvents to set
+     */
+    public void setBatchEvents(final boolean batchEvents) {
+        this.batchEvents = batchEvents;
+    }
+
+    /**
+     * Saves the PoliticsConfig.
+     * 
+     * @param config
+     */
+    public void save(final Configuration config) {
+        config.getNode("universe.citizen-group-cache").setValue(citizenGroupCacheEnabled);
+        final List<String> indexed = new ArrayList<String>();
+        for (final int property : indexedProperties) {
+            indexed.add(Integer.toHexString(property));
+        }
+        config.getNode("universe.indexed-properties").setValue(indexed);
+        config.getNode("universe.reuse-group-ids").setValue(reuseGroupIds);
+        config.getNode("universe.max-loaded-groups").setValue(maxLoadedGroups);
+        config.getNode("storage.save-interval").setValue(saveInterval);
+        config.getNode("storage.wal-sync-interval").setValue(walSyncInterval);
+        config.getNode("storage.load-threads").setValue(loadThreads);
+        config.getNode("storage.compress-worlds").setValue(compressWorlds);
+        config.getNode("storage.backups").setValue(backups);
+        config.getNode("storage.backend").setValue(storageBackend);
+        config.getNode("events.batch").setValue(batchEvents);
+    }
+
+    /**
+     * Loads a PoliticsConfig.
+     * 
+     * @param config
+     * @return the new PoliticsConfig
+     */
+    public static PoliticsConfig load(final Configuration config) {
+        final PoliticsConfig pc = new PoliticsConfig();
+        pc.setCitizenGroupCacheEnabled(config.getNode("universe.citizen-group-cache").getBoolean(false));
+        final List<String> indexed = config.getNode("universe.indexed-properties").getStringList(new ArrayList<String>());
+        final int[] properties = new int[indexed.size()];
+        int count = 0;
+        for (final String property : indexed) {
+            try {
+                properties[count] = Integer.parseInt(property.trim(), 16);
+                count++;
+            } catch (final NumberFormatException ex) {
+                PoliticsPlugin.logger().log(Level.WARNING, "Ignoring indexed property `" + property + "', it is not a hexadecimal property id.");
+            }
+        }
+        pc.setIndexedProperties(Arrays.copyOf(properties, count));
+        pc.setReuseGroupIds(config.getNode("universe.reuse-group-ids").getBoolean(false));
+        pc.setMaxLoadedGroups(config.getNode("universe.max-loaded-groups").getInt(0));
+        pc.setSaveInterval(config.getNode("storage.save-interval").getInt(15 * 60));
+        pc.setWalSyncInterval(config.getNode("storage.wal-sync-interval").getInt(50));
+        pc.setLoadThreads(config.getNode("storage.load-threads").getInt(0));
+        pc.setCompressWorlds(config.getNode("storage.compress-worlds").getBoolean(true));
+        pc.setBackups(config.getNode("storage.backups").getInt(5));
+        pc.setStorageBackend(config.getNode("storage.backend").getString("file"));
+        pc.setBatchEvents(config.getNode("events.batch").getBoolean(false));
+        return pc;
+    }
+}
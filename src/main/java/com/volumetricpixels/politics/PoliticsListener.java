@@ -19,10 +19,38 @@
  */
 package com.volumetricpixels.politics;
 
+import org.spout.api.event.EventHandler;
 import org.spout.api.event.Listener;
+import org.spout.api.event.Order;
+import org.spout.api.event.chunk.ChunkLoadEvent;
+import org.spout.api.event.chunk.ChunkUnloadEvent;
+import org.spout.api.geo.cuboid.Chunk;
+
+import com.volumetricpixels.politics.world.PoliticsWorld;
 
 /**
  * The main listener of Politics
  */
 public class PoliticsListener implements Listener {
+    /**
+     * Worlds Politics doesn't know have no plots to read ahead, so their
+     * chunk events are ignored rather than creating the world.
+     */
+    @EventHandler(order = Order.MONITOR)
+    public void onChunkLoad(final ChunkLoadEvent event) {
+        final Chunk chunk = event.getChunk();
+        final PoliticsWorld world = Politics.getPlotManager().getExistingWorld(chunk.getWorld().getName());
+        if (world != null) {
+            world.chunkLoaded(chunk.getX(), chunk.getZ());
+        }
+    }
+
+    @EventHandler(order = Order.MONITOR)
+    public void onChunkUnload(final ChunkUnloadEvent event) {
+        final Chunk chunk = event.getChunk();
+        final PoliticsWorld world = Politics.getPlotManager().getExistingWorld(chunk.getWorld().getName());
+        if (world != null) {
+            world.chunkUnloaded(chunk.getX(), chunk.getZ());
+        }
+    }
 }
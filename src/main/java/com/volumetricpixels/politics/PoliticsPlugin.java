@@ -19,6 +19,11 @@
  */
 package com.volumetricpixels.politics;
 
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -26,9 +31,18 @@ import org.spout.api.Engine;
 import org.spout.api.plugin.Plugin;
 import org.spout.api.scheduler.TaskPriority;
 
+import org.spout.cereal.config.ConfigurationException;
+import org.spout.cereal.config.yaml.YamlConfiguration;
+
 import com.volumetricpixels.politics.command.Commands;
+import com.volumetricpixels.politics.data.FileStorageBackend;
+import com.volumetricpixels.politics.data.PageStorageBackend;
 import com.volumetricpixels.politics.data.PoliticsFileSystem;
 import com.volumetricpixels.politics.data.SaveTask;
+import com.volumetricpixels.politics.data.Snapshot;
+import com.volumetricpixels.politics.data.StorageBackend;
+import com.volumetricpixels.politics.data.WriteAheadLog;
+import com.volumetricpixels.politics.event.EventBatcher;
 import com.volumetricpixels.politics.group.privilege.PrivilegeManager;
 import com.volumetricpixels.politics.protection.PoliticsProtectionListener;
 import com.volumetricpixels.politics.universe.UniverseManager;
@@ -46,6 +60,18 @@ public final class PoliticsPlugin extends Plugin {
      * The file system for Politics
      */
     private PoliticsFileSystem fileSystem;
+    /**
+     * The global configuration of Politics
+     */
+    private PoliticsConfig config;
+    /**
+     * Where universes and worlds are stored
+     */
+    private StorageBackend storageBackend;
+    /**
+     * The log of changes made since the last snapshot
+     */
+    private WriteAheadLog writeAheadLog;
     /**
      * Politics' Plot Manager
      */
@@ -58,6 +84,14 @@ public final class PoliticsPlugin extends Plugin {
      * Politics' Universe Manager
      */
     private UniverseManager universeManager;
+    /**
+     * The task periodically saving everything
+     */
+    private SaveTask saveTask;
+    /**
+     * Calls batched events every tick, null unless events are batched
+     */
+    private EventBatcher eventBatcher;
 
     @Override
     public void onEnable() {
@@ -66,17 +100,51 @@ public final class PoliticsPlugin extends Plugin {
         // Initialise PoliticsFileSystem
         fileSystem = new PoliticsFileSystem();
 
+        // Load the global configuration
+        loadConfig();
+
+        // Open the storage backend. An empty page store is filled from the
+        // data files of the file backend, if there are any
+        final StorageBackend storage = openStorage();
+        final StorageBackend files = openImportSource(storage);
+        final boolean importing = files != null;
+        storageBackend = importing ? files : storage;
+
         // Load privileges
         privilegeManager = new PrivilegeManager();
 
-        // Load plots and worlds
-        plotManager = new PlotManager();
-        plotManager.loadWorlds();
+        // Data files are decoded in parallel, and linked together on this
+        // thread once all of them of a kind are loaded
+        final ExecutorService loader = createLoader();
+        try {
+            // Load plots and worlds
+            plotManager = new PlotManager();
+            plotManager.loadWorldConfigs();
+            plotManager.loadWorlds(loader);
+
+            // Load universes and their rules
+            universeManager = new UniverseManager();
+            universeManager.loadRules(loader);
+            universeManager.loadUniverses(loader);
 
-        // Load universes and their rules
-        universeManager = new UniverseManager();
-        universeManager.loadRules();
-        universeManager.loadUniverses();
+            if (importing) {
+                importData(storage);
+            }
+        } finally {
+            loader.shutdown();
+            if (importing) {
+                files.close();
+            }
+        }
+
+        // Replay changes made after the last snapshot
+        writeAheadLog = new WriteAheadLog(fileSystem.getWalDir(), config.getWalSyncInterval());
+        writeAheadLog.replay();
+        try {
+            writeAheadLog.start();
+        } catch (final IOException ex) {
+            getLogger().log(Level.SEVERE, "Could not open the write-ahead log, changes will only be saved with snapshots!", ex);
+        }
 
         // Register all commands
         Commands.registerAll();
@@ -85,21 +153,161 @@ public final class PoliticsPlugin extends Plugin {
         final Engine e = getEngine();
         e.getEventManager().registerEvents(new PoliticsListener(), this);
         e.getEventManager().registerEvents(new PoliticsProtectionListener(), this);
-        e.getScheduler().scheduleSyncRepeatingTask(this, new SaveTask(), 5 * 60 * 20, 5 * 60 * 20, TaskPriority.LOWEST);
+        plotManager.countLoadedChunks();
+        saveTask = new SaveTask();
+        final long saveTicks = config.getSaveInterval() * 20L;
+        e.getScheduler().scheduleSyncRepeatingTask(this, saveTask, saveTicks, saveTicks, TaskPriority.LOWEST);
+        if (config.isBatchEvents()) {
+            eventBatcher = new EventBatcher();
+            e.getScheduler().scheduleSyncRepeatingTask(this, eventBatcher, 1L, 1L, TaskPriority.NORMAL);
+        }
 
         getLogger().log(Level.INFO, "Politics enabled!");
     }
 
     @Override
     public void onDisable() {
-        instance = null;
+        if (eventBatcher != null) {
+            eventBatcher.flush();
+        }
+        plotManager.shutdown();
+        if (saveTask.shutdown()) {
+            saveTask.save();
+        } else {
+            // The write-ahead log holds everything the last save may miss
+            getLogger().log(Level.SEVERE, "Interrupted while waiting for the last save, skipping the final save!");
+        }
+        writeAheadLog.close();
+        storageBackend.close();
 
-        plotManager.saveWorlds();
-        universeManager.saveUniverses();
+        instance = null;
 
         getLogger().log(Level.INFO, "Politics disabled!");
     }
 
+    /**
+     * Creates the bounded thread pool data files are loaded on.
+     * 
+     * @return
+     */
+    private ExecutorService createLoader() {
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(config.getLoadThreads(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "Politics-Loader-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Opens the storage backend chosen in the configuration. Falls back to
+     * the file backend if it can't be opened.
+     * 
+     * @return
+     */
+    private StorageBackend openStorage() {
+        final String name = config.getStorageBackend();
+        if (name.equals("pagestore")) {
+            final StorageBackend storage = new PageStorageBackend(fileSystem.getStoreFile());
+            try {
+                storage.open();
+                return storage;
+            } catch (final IOException ex) {
+                getLogger().log(Level.SEVERE, "Could not open the page store, using data files instead!", ex);
+            }
+        } else if (!name.equals("file")) {
+            getLogger().log(Level.WARNING, "Unknown storage backend `" + name + "', using data files instead.");
+        }
+        final StorageBackend storage = createFileStorage();
+        try {
+            storage.open();
+        } catch (final IOException ex) {
+            getLogger().log(Level.SEVERE, "Could not open the data directory!", ex);
+        }
+        return storage;
+    }
+
+    /**
+     * Opens the data files of the file backend if their content should be
+     * imported into the given backend, which is the case when it is an empty
+     * page store.
+     * 
+     * @param storage
+     * @return The opened file backend, which must be closed once imported, or
+     *         null if there is nothing to import
+     */
+    private StorageBackend openImportSource(final StorageBackend storage) {
+        if (!storage.isFineGrained() || !storage.list("").isEmpty()) {
+            return null;
+        }
+        final StorageBackend files = createFileStorage();
+        try {
+            files.open();
+        } catch (final IOException ex) {
+            getLogger().log(Level.SEVERE, "Could not open the data directory, not importing the data files!", ex);
+            return null;
+        }
+        if (files.list("universes/").isEmpty() && files.list("worlds/").isEmpty()) {
+            files.close();
+            return null;
+        }
+        return files;
+    }
+
+    /**
+     * Creates the backend storing every universe and world as a file.
+     * 
+     * @return
+     */
+    private StorageBackend createFileStorage() {
+        return new FileStorageBackend(fileSystem.getDataDir(), fileSystem.getBackupsDir(), config.getBackups());
+    }
+
+    /**
+     * Writes everything in the data files to the given backend and makes it
+     * the storage backend. The data files are left in place.
+     * 
+     * @param storage
+     */
+    private void importData(final StorageBackend storage) {
+        // Reads every shard while the data files are still the backend
+        plotManager.markDirty();
+        universeManager.markDirty();
+        storageBackend = storage;
+        final Snapshot snapshot = new Snapshot();
+        plotManager.snapshotWorlds(snapshot);
+        universeManager.snapshotUniverses(snapshot);
+        if (snapshot.write()) {
+            getLogger().log(Level.INFO, "Imported " + snapshot.size() + " records from the data files.");
+        } else {
+            getLogger().log(Level.SEVERE, "Could not import the data files, they will be imported again on the next start!");
+        }
+    }
+
+    /**
+     * Loads the global configuration, writing the defaults if there is none.
+     */
+    private void loadConfig() {
+        final YamlConfiguration configFile = new YamlConfiguration(fileSystem.getConfigFile());
+        if (fileSystem.getConfigFile().exists()) {
+            try {
+                configFile.load();
+            } catch (final ConfigurationException ex) {
+                getLogger().log(Level.SEVERE, "Could not read the config file, using defaults!", ex);
+            }
+        }
+        config = PoliticsConfig.load(configFile);
+        config.save(configFile);
+        try {
+            configFile.save();
+        } catch (final ConfigurationException ex) {
+            getLogger().log(Level.SEVERE, "Could not write the config file!", ex);
+        }
+    }
+
     /**
      * Gets the version of Politics this is.
      * 
@@ -118,6 +326,42 @@ public final class PoliticsPlugin extends Plugin {
         return fileSystem;
     }
 
+    /**
+     * Gets the global configuration of the plugin.
+     * 
+     * @return Politics' PoliticsConfig
+     */
+    public PoliticsConfig getPoliticsConfig() {
+        return config;
+    }
+
+    /**
+     * Gets the StorageBackend of the plugin.
+     * 
+     * @return Politics' StorageBackend
+     */
+    public StorageBackend getStorageBackend() {
+        return storageBackend;
+    }
+
+    /**
+     * Gets the WriteAheadLog of the plugin.
+     * 
+     * @return Politics' WriteAheadLog
+     */
+    public WriteAheadLog getWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    /**
+     * Gets the EventBatcher of the plugin.
+     * 
+     * @return Politics' EventBatcher, or null if events are not batched
+     */
+    public EventBatcher getEventBatcher() {
+        return eventBatcher;
+    }
+
     /**
      * Gets the PlotManager of the plugin.
      * 
@@ -155,11 +399,17 @@ public final class PoliticsPlugin extends Plugin {
     }
 
     /**
-     * Gets the logger of the plugin.
+     * Gets the logger of the plugin. While the plugin is not enabled, such as
+     * when a background thread finishes after it was disabled, this is a
+     * plain logger named after the plugin.
      * 
      * @return Politics' Logger
      */
     public static Logger logger() {
-        return instance.getLogger();
+        final PoliticsPlugin plugin = instance;
+        if (plugin == null) {
+            return Logger.getLogger("Politics");
+        }
+        return plugin.getLogger();
     }
 }
@@ -60,11 +60,11 @@ public class GroupClaimCommand extends GroupCommand {
         // TODO add a way to get the world, x, y, z from the command line
         // (should be in GroupCommand)
         final Point position = ((Player) source).getPhysics().getPosition();
-        if (!group.getUniverse().getWorlds().contains(Politics.getWorld(position.getWorld()))) {
+        if (!group.getUniverse().getWorldsView().contains(Politics.getWorld(position.getWorld()))) {
             throw new CommandException("You can't create a plot for that group in this world.");
         }
 
-        final Plot plot = Politics.getPlotManager().getPlotAtChunk(position.getChunk(LoadOption.NO_LOAD));
+        final Plot plot = Politics.getPlotManager().getOrCreatePlotAtChunk(position.getChunk(LoadOption.NO_LOAD));
         if (plot.isOwner(group)) {
             throw new CommandException(group.getStringProperty(GroupProperty.NAME) + " already owns this plot.");
         }
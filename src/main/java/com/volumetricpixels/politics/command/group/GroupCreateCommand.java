@@ -26,6 +26,7 @@ import org.spout.api.entity.Player;
 import org.spout.api.exception.CommandException;
 
 import com.volumetricpixels.politics.event.PoliticsEventFactory;
+import com.volumetricpixels.politics.event.group.GroupCreateEvent;
 import com.volumetricpixels.politics.group.Group;
 import com.volumetricpixels.politics.group.GroupProperty;
 import com.volumetricpixels.politics.group.level.GroupLevel;
@@ -71,13 +72,22 @@ public class GroupCreateCommand extends GroupCommand {
         // Tag
         final String tag = context.getString("t", name.toLowerCase().replace(" ", "-"));
 
+        if (universe.getGroupByTag(tag) != null) {
+            throw new CommandException("The tag `" + tag + "' is already taken.");
+        }
+
         // Create le group
         final Group group = universe.createGroup(level);
         group.setRole(founderName, level.getFounder());
         group.setProperty(GroupProperty.NAME, name);
-        group.setProperty(GroupProperty.TAG, tag);
+        if (!group.trySetTag(tag)) {
+            // Taken since it was checked
+            universe.destroyGroup(group);
+            throw new CommandException("The tag `" + tag + "' is already taken.");
+        }
 
-        if (PoliticsEventFactory.callGroupCreateEvent(group, source).isCancelled()) {
+        final GroupCreateEvent event = PoliticsEventFactory.callGroupCreateEvent(group, source);
+        if (event != null && event.isCancelled()) {
             universe.destroyGroup(group);
             throw new CommandException(level.getName() + " creation denied!");
         }
@@ -21,43 +21,93 @@ package com.volumetricpixels.politics.component;
 
 import org.spout.api.component.entity.EntityComponent;
 import org.spout.api.entity.Player;
+import org.spout.api.geo.World;
 import org.spout.api.geo.discrete.Point;
-import org.spout.api.geo.discrete.Transform;
 
 import com.volumetricpixels.politics.Politics;
 import com.volumetricpixels.politics.event.PoliticsEventFactory;
 import com.volumetricpixels.politics.event.player.PlayerChangePlotEvent;
 import com.volumetricpixels.politics.world.Plot;
+import com.volumetricpixels.politics.world.PoliticsWorld;
 
 /**
- * Checks for player movement between plots every tick
+ * Checks for player movement between plots every tick. Plots are only resolved
+ * when the player enters a different chunk (or moves at all in a world with
+ * region plots). The position is still sampled every tick, so the last
+ * position a cancelled move returns the player to is never stale.
  */
 public class PlayerMoveComponent extends EntityComponent {
-    private Transform prev;
+    /**
+     * The last position the player was seen at
+     */
+    private Point prev;
+    /**
+     * The world of the last position
+     */
+    private World prevWorld;
+    /**
+     * The PoliticsWorld of the last position
+     */
+    private PoliticsWorld prevPoliticsWorld;
+    /**
+     * Chunk coordinates of the last position
+     */
+    private int prevChunkX, prevChunkY, prevChunkZ;
 
     @Override
     public void onTick(final float dt) {
-        if (prev != null && !prev.equals(getOwner().getPhysics().getTransform())) {
-            final Player player = (Player) getOwner();
-            final Point from = prev.getPosition();
-            final Point to = getOwner().getPhysics().getPosition();
+        final Point to = getOwner().getPhysics().getPosition();
+        if (prev == null) {
+            remember(to);
+            return;
+        }
 
-            final Plot prev = Politics.getPlotAt(from);
-            final Plot now = Politics.getPlotAt(to);
+        if (to.equals(prev)) {
+            return;
+        }
 
-            // Check for different plot
+        final boolean sameChunk = to.getWorld() == prevWorld && to.getChunkX() == prevChunkX && to.getChunkY() == prevChunkY
+                && to.getChunkZ() == prevChunkZ;
+        if (sameChunk && !prevPoliticsWorld.hasRegionPlots()) {
+            prev = to;
+            return;
+        }
 
-            if (prev == now || prev == null || prev.equals(now)) {
-                return;
-            }
+        // Plots are only resolved to call the event
+        if (!PoliticsEventFactory.hasHandlers(PlayerChangePlotEvent.getHandlerList())) {
+            remember(to);
+            return;
+        }
 
+        final Plot from = Politics.getPlotAt(prev);
+        final Plot now = Politics.getPlotAt(to);
+
+        // Check for different plot
+        if (from != now && !from.equals(now)) {
             // Call event
-            final PlayerChangePlotEvent pcpe = PoliticsEventFactory.callPlayerChangePlotEvent(player, prev, now);
-            if (pcpe.isCancelled()) {
-                getOwner().getPhysics().setPosition(from);
+            final PlayerChangePlotEvent pcpe = PoliticsEventFactory.callPlayerChangePlotEvent((Player) getOwner(), from, now);
+            if (pcpe != null && pcpe.isCancelled()) {
+                getOwner().getPhysics().setPosition(prev);
+                return;
             }
         }
 
-        prev = getOwner().getPhysics().getTransform();
+        remember(to);
+    }
+
+    /**
+     * Records the given position as the last seen position of the player.
+     * 
+     * @param position
+     */
+    private void remember(final Point position) {
+        if (position.getWorld() != prevWorld) {
+            prevWorld = position.getWorld();
+            prevPoliticsWorld = Politics.getWorld(prevWorld);
+        }
+        prev = position;
+        prevChunkX = position.getChunkX();
+        prevChunkY = position.getChunkY();
+        prevChunkZ = position.getChunkZ();
     }
 }
@@ -0,0 +1,163 @@
+/*
+ * This file is part of Politics.
+ * 
+ * Copyright (c) 2012-2012, VolumetricPixels <http://volumetricpixels.com/>
+ * Politics is licensed under the Affero General Public License Version 3.
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.volumetricpixels.politics.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Level;
+
+import com.volumetricpixels.politics.PoliticsPlugin;
+
+/**
+ * Stores every record as a file below a directory, written with
+ * {@link SafeFile}. The key of a record is its path relative to that
+ * directory. This is the format Politics always used.
+ */
+public class FileStorageBackend implements StorageBackend {
+    /**
+     * The directory the files are stored in
+     */
+    private final File root;
+    /**
+     * The directory the backups of the files are kept in
+     */
+    private final File backupsDir;
+    /**
+     * Number of backups kept of every file
+     */
+    private final int backups;
+
+    /**
+     * C'tor
+     * 
+     * @param root
+     *            The directory the files are stored in
+     * @param backupsDir
+     *            The directory the backups of the files are kept in
+     * @param backups
+     *            Number of backups kept of every file
+     */
+    public FileStorageBackend(final File root, final File backupsDir, final int backups) {
+        this.root = root;
+        this.backupsDir = backupsDir;
+        this.backups = backups;
+    }
+
+    @Override
+    public void open() throws IOException {
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("Could not create the data directory `" + root.getPath() + "'!");
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean isFineGrained() {
+        return false;
+    }
+
+    @Override
+    public List<String> list(final String prefix) {
+        final String dirName = prefix.substring(0, prefix.lastIndexOf('/') + 1);
+        final List<String> keys = new ArrayList<String>();
+        listFiles(new File(root, dirName), dirName, prefix, keys);
+        Collections.sort(keys);
+        return keys;
+    }
+
+    /**
+     * Adds the keys of the files below the given directory starting with the
+     * given prefix to the given list. Temporary files are left out.
+     * 
+     * @param dir
+     * @param dirName
+     *            The key prefix of the files in the directory
+     * @param prefix
+     * @param keys
+     */
+    private void listFiles(final File dir, final String dirName, final String prefix, final List<String> keys) {
+        final File[] files = dir.listFiles();
+        if (files == null || dir.equals(backupsDir)) {
+            return;
+        }
+        for (final File file : files) {
+            final String key = dirName + file.getName();
+            if (file.isDirectory()) {
+                if (key.startsWith(prefix) || prefix.startsWith(key + "/")) {
+                    listFiles(file, key + "/", prefix, keys);
+                }
+            } else if (key.startsWith(prefix) && !key.endsWith(".tmp")) {
+                keys.add(key);
+            }
+        }
+    }
+
+    @Override
+    public ByteBuffer read(final String key) {
+        return SafeFile.read(getFile(key), getBackupsDir(key));
+    }
+
+    @Override
+    public void write(final Map<String, byte[]> puts, final Collection<String> removes) throws IOException {
+        for (final String key : removes) {
+            final File file = getFile(key);
+            if (!SafeFile.delete(file, getBackupsDir(key), backups)) {
+                PoliticsPlugin.logger().log(Level.WARNING, "Could not delete file `" + file.getName() + "'!");
+            }
+        }
+        for (final Entry<String, byte[]> entry : puts.entrySet()) {
+            final String key = entry.getKey();
+            SafeFile.write(getFile(key), entry.getValue(), getBackupsDir(key), backups);
+        }
+    }
+
+    /**
+     * Gets the directory the backups of the record with the given key are
+     * kept in. The backups directory mirrors the data directory, so files
+     * with the same name in different directories don't share backups.
+     * 
+     * @param key
+     * @return
+     */
+    private File getBackupsDir(final String key) {
+        final int slash = key.lastIndexOf('/');
+        return slash < 0 ? backupsDir : new File(backupsDir, key.substring(0, slash));
+    }
+
+    /**
+     * Gets the file storing the record with the given key.
+     * 
+     * @param key
+     * @return
+     */
+    private File getFile(final String key) {
+        return new File(root, key);
+    }
+}
@@ -0,0 +1,595 @@
+/*
+ * This file is part of Politics.
+ * 
+ * Copyright (c) 2012-2012, VolumetricPixels <http://volumetricpixels.com/>
+ * Politics is licensed under the Affero General Public License Version 3.
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.volumetricpixels.politics.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+import com.volumetricpixels.politics.PoliticsPlugin;
+
+/**
+ * An embedded key-value store keeping all records in a single file.
+ * 
+ * The file is a log of batches. Every batch starts on a page boundary with a
+ * header holding a magic number, the length of its records, their count and
+ * their CRC32, and is padded to the next page boundary. A batch is either
+ * applied completely or, if it was torn by a crash, discarded when the store
+ * is opened. Only the last batch can be torn, so a bad batch followed by
+ * intact ones means the file is damaged, and the store refuses to open it. Writing a batch only appends the records it contains, so saving
+ * one changed group or plot costs a page rather than a rewrite of every file
+ * containing it.
+ * 
+ * The keys are kept in memory along with the position of their values, which
+ * are read from the file when requested. Once most of the file is taken by
+ * overwritten records, the live records are copied to a new file.
+ */
+public class PageStorageBackend implements StorageBackend {
+    /**
+     * Magic number starting every batch, "PTKV"
+     */
+    private static final int MAGIC = 0x50544B56;
+    /**
+     * Size of the pages batches are aligned to
+     */
+    private static final int PAGE_SIZE = 4096;
+    /**
+     * Size of the header of a batch
+     */
+    private static final int HEADER_SIZE = 16;
+    /**
+     * Record storing a value
+     */
+    private static final byte OP_PUT = 1;
+    /**
+     * Record removing a value
+     */
+    private static final byte OP_REMOVE = 2;
+    /**
+     * The file is never compacted while it is smaller than this
+     */
+    private static final long COMPACT_MIN_SIZE = 8L * 1024 * 1024;
+    /**
+     * Size of the batches written when compacting
+     */
+    private static final int COMPACT_BATCH_SIZE = 1024 * 1024;
+
+    /**
+     * The file of the store
+     */
+    private final File file;
+    /**
+     * Keys mapped to where their values are stored in the file
+     */
+    private final ConcurrentNavigableMap<String, Location> index = new ConcurrentSkipListMap<String, Location>();
+    /**
+     * Held while reading values, and exclusively while the file is replaced
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    /**
+     * Position the next batch is written at
+     */
+    private long end;
+    /**
+     * Bytes of the file taken by records that are still current
+     */
+    private long liveBytes;
+
+    /**
+     * C'tor
+     * 
+     * @param file
+     *            The file of the store
+     */
+    public PageStorageBackend(final File file) {
+        this.file = file;
+    }
+
+    @Override
+    public void open() throws IOException {
+        lock.writeLock().lock();
+        try {
+            load();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            closeFile();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isFineGrained() {
+        return true;
+    }
+
+    @Override
+    public List<String> list(final String prefix) {
+        return new ArrayList<String>(index.subMap(prefix, prefix + Character.MAX_VALUE).keySet());
+    }
+
+    @Override
+    public ByteBuffer read(final String key) {
+        lock.readLock().lock();
+        try {
+            final Location location = index.get(key);
+            if (location == null) {
+                return null;
+            }
+            final ByteBuffer value = ByteBuffer.allocate(location.length);
+            readFully(getChannel(), value, location.offset);
+            value.flip();
+            return value;
+        } catch (final IOException ex) {
+            PoliticsPlugin.logger().log(Level.SEVERE, "Could not read record `" + key + "' from the store!", ex);
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public synchronized void write(final Map<String, byte[]> puts, final Collection<String> removes) throws IOException {
+        if (puts.isEmpty() && removes.isEmpty()) {
+            return;
+        }
+        final Batch batch = new Batch();
+        for (final String key : removes) {
+            batch.remove(key);
+        }
+        for (final Entry<String, byte[]> entry : puts.entrySet()) {
+            batch.put(entry.getKey(), entry.getValue());
+        }
+
+        final FileChannel channel = getChannel();
+        final long start = end;
+        try {
+            end = append(channel, start, batch);
+            channel.force(true);
+        } catch (final IOException ex) {
+            // Drop what was written of the batch so the next one starts at
+            // a known position
+            end = start;
+            channel.truncate(start);
+            throw ex;
+        }
+
+        lock.writeLock().lock();
+        try {
+            batch.apply(start + HEADER_SIZE);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        if (end > COMPACT_MIN_SIZE && liveBytes * 2 < end) {
+            compact();
+        }
+    }
+
+    /**
+     * Opens the file and indexes every complete batch in it. A torn batch at
+     * the end of the file is cut off.
+     * 
+     * @throws IOException
+     *             If the file can't be read, or a batch other than the last
+     *             one is damaged
+     */
+    private void load() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        index.clear();
+        liveBytes = 0;
+
+        final long size = channel.size();
+        long pos = 0;
+        try {
+            while (pos + HEADER_SIZE <= size) {
+                final Payload payload = readBatch(channel, pos, size);
+                if (payload == null) {
+                    break;
+                }
+                indexPayload(payload.bytes, payload.count, pos + HEADER_SIZE);
+                pos = align(pos + HEADER_SIZE + payload.bytes.length);
+            }
+            if (pos < size) {
+                for (long next = align(pos + 1); next + HEADER_SIZE <= size; next += PAGE_SIZE) {
+                    if (readBatch(channel, next, size) != null) {
+                        throw new IOException("The batch at " + pos + " of `" + file.getName() + "' is damaged but followed by intact batches, "
+                                + "refusing to discard them!");
+                    }
+                }
+            }
+        } catch (final IOException ex) {
+            closeFile();
+            throw ex;
+        }
+
+        if (pos < size) {
+            PoliticsPlugin.logger().log(Level.WARNING, "Discarding " + (size - pos) + " bytes of an incomplete batch at the end of `" + file.getName() + "'.");
+            channel.truncate(pos);
+            channel.force(true);
+        }
+        end = pos;
+    }
+
+    /**
+     * Reads the batch at the given position.
+     * 
+     * @param channel
+     * @param pos
+     *            The page aligned position of the batch
+     * @param size
+     *            The size of the file
+     * @return The payload of the batch, null if there is no intact batch at
+     *         the position
+     * @throws IOException
+     */
+    private static Payload readBatch(final FileChannel channel, final long pos, final long size) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, pos);
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            return null;
+        }
+        final int length = header.getInt();
+        final int count = header.getInt();
+        final int crc = header.getInt();
+        if (length < 0 || pos + HEADER_SIZE + length > size) {
+            return null;
+        }
+        final ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(channel, payload, pos + HEADER_SIZE);
+        final CRC32 checksum = new CRC32();
+        checksum.update(payload.array(), 0, length);
+        if ((int) checksum.getValue() != crc) {
+            return null;
+        }
+        return new Payload(payload.array(), count);
+    }
+
+    /**
+     * Adds the records of a batch read from the file to the index.
+     * 
+     * @param payload
+     * @param count
+     * @param base
+     *            Position of the payload in the file
+     * @throws IOException
+     */
+    private void indexPayload(final byte[] payload, final int count, final long base) throws IOException {
+        final ByteArrayInputStream bytes = new ByteArrayInputStream(payload);
+        final DataInputStream in = new DataInputStream(bytes);
+        for (int i = 0; i < count; i++) {
+            final byte op = in.readByte();
+            final String key = in.readUTF();
+            if (op == OP_PUT) {
+                final int length = in.readInt();
+                final long offset = base + payload.length - bytes.available();
+                if (in.skipBytes(length) != length) {
+                    throw new EOFException("Record `" + key + "' is truncated!");
+                }
+                putLocation(key, new Location(offset, length));
+            } else if (op == OP_REMOVE) {
+                removeLocation(key);
+            } else {
+                throw new IOException("Unknown record type " + op + "!");
+            }
+        }
+    }
+
+    /**
+     * Copies the current records to a new file, which then replaces the
+     * file of the store. The store keeps its old file if this fails.
+     */
+    private void compact() {
+        final File temp = new File(file.getPath() + ".compact");
+        try {
+            final RandomAccessFile out = new RandomAccessFile(temp, "rw");
+            try {
+                out.setLength(0);
+                final FileChannel outChannel = out.getChannel();
+                long pos = 0;
+                Batch batch = new Batch();
+                for (final String key : index.keySet()) {
+                    final ByteBuffer value = read(key);
+                    if (value == null) {
+                        continue;
+                    }
+                    batch.put(key, value.array());
+                    if (batch.size() >= COMPACT_BATCH_SIZE) {
+                        pos = append(outChannel, pos, batch);
+                        batch = new Batch();
+                    }
+                }
+                if (batch.count > 0) {
+                    append(outChannel, pos, batch);
+                }
+                outChannel.force(true);
+            } finally {
+                out.close();
+            }
+        } catch (final IOException ex) {
+            PoliticsPlugin.logger().log(Level.WARNING, "Could not compact `" + file.getName() + "'!", ex);
+            temp.delete();
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            closeFile();
+            try {
+                replaceFile(temp);
+            } catch (final IOException ex) {
+                PoliticsPlugin.logger().log(Level.SEVERE, "Could not replace `" + file.getName() + "' with its compacted copy, keeping it!", ex);
+                temp.delete();
+            }
+            try {
+                load();
+            } catch (final IOException ex) {
+                PoliticsPlugin.logger().log(Level.SEVERE, "Could not reopen `" + file.getName() + "' after compacting it!", ex);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the file of the store with the given one. The file of the
+     * store is left in place if this fails.
+     * 
+     * @param replacement
+     * @throws IOException
+     */
+    private void replaceFile(final File replacement) throws IOException {
+        if (replacement.renameTo(file)) {
+            return;
+        }
+        // Some platforms can't rename over an existing file, so move the old
+        // one aside until its replacement is in place
+        final File old = new File(file.getPath() + ".old");
+        old.delete();
+        if (!file.renameTo(old)) {
+            throw new IOException("Could not move `" + file.getName() + "' aside!");
+        }
+        if (!replacement.renameTo(file)) {
+            if (!old.renameTo(file)) {
+                throw new IOException("Could not restore `" + file.getName() + "', it was left at `" + old.getName() + "'!");
+            }
+            throw new IOException("Could not rename `" + replacement.getName() + "'!");
+        }
+        old.delete();
+    }
+
+    /**
+     * Closes the file of the store.
+     */
+    private void closeFile() {
+        if (raf == null) {
+            return;
+        }
+        try {
+            raf.close();
+        } catch (final IOException ex) {
+            PoliticsPlugin.logger().log(Level.WARNING, "Could not close `" + file.getName() + "'!", ex);
+        }
+        raf = null;
+        channel = null;
+    }
+
+    /**
+     * Gets the channel of the file of the store.
+     * 
+     * @return
+     * @throws IOException
+     *             If the file is not open, as reopening it failed
+     */
+    private FileChannel getChannel() throws IOException {
+        final FileChannel ch = channel;
+        if (ch == null) {
+            throw new IOException("`" + file.getName() + "' is not open!");
+        }
+        return ch;
+    }
+
+    private void putLocation(final String key, final Location location) {
+        removeLocation(key);
+        index.put(key, location);
+        liveBytes += location.getRecordSize(key);
+    }
+
+    private void removeLocation(final String key) {
+        final Location old = index.remove(key);
+        if (old != null) {
+            liveBytes -= old.getRecordSize(key);
+        }
+    }
+
+    /**
+     * Writes a batch to the given channel.
+     * 
+     * @param channel
+     * @param pos
+     *            The page aligned position to write the batch at
+     * @param batch
+     * @return The position after the batch and its padding
+     * @throws IOException
+     */
+    private static long append(final FileChannel channel, final long pos, final Batch batch) throws IOException {
+        final byte[] payload = batch.bytes.toByteArray();
+        final CRC32 checksum = new CRC32();
+        checksum.update(payload);
+
+        final long next = align(pos + HEADER_SIZE + payload.length);
+        final ByteBuffer buf = ByteBuffer.allocate((int) (next - pos));
+        buf.putInt(MAGIC);
+        buf.putInt(payload.length);
+        buf.putInt(batch.count);
+        buf.putInt((int) checksum.getValue());
+        buf.put(payload);
+        buf.clear();
+        while (buf.hasRemaining()) {
+            channel.write(buf, pos + buf.position());
+        }
+        return next;
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buf, final long pos) throws IOException {
+        final int start = buf.position();
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position() - start) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static long align(final long pos) {
+        return (pos + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+    }
+
+    /**
+     * Records being written together
+     */
+    private final class Batch {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        /**
+         * Changes to the index, in the order they were written
+         */
+        private final List<Change> changes = new ArrayList<Change>();
+        private int count;
+
+        private void put(final String key, final byte[] value) throws IOException {
+            out.writeByte(OP_PUT);
+            out.writeUTF(key);
+            out.writeInt(value.length);
+            changes.add(new Change(key, new Location(out.size(), value.length)));
+            out.write(value);
+            count++;
+        }
+
+        private void remove(final String key) throws IOException {
+            out.writeByte(OP_REMOVE);
+            out.writeUTF(key);
+            changes.add(new Change(key, null));
+            count++;
+        }
+
+        private int size() {
+            return out.size();
+        }
+
+        /**
+         * Updates the index once the batch was written.
+         * 
+         * @param base
+         *            Position of the payload in the file
+         */
+        private void apply(final long base) {
+            for (final Change change : changes) {
+                final Location relative = change.location;
+                if (relative == null) {
+                    removeLocation(change.key);
+                } else {
+                    putLocation(change.key, new Location(base + relative.offset, relative.length));
+                }
+            }
+        }
+    }
+
+    /**
+     * The records of a batch read from the file
+     */
+    private static final class Payload {
+        private final byte[] bytes;
+        private final int count;
+
+        private Payload(final byte[] bytes, final int count) {
+            this.bytes = bytes;
+            this.count = count;
+        }
+    }
+
+    /**
+     * A change to the index made by a batch
+     */
+    private static final class Change {
+        private final String key;
+        /**
+         * Position of the value in the payload, or null if the key was
+         * removed
+         */
+        private final Location location;
+
+        private Change(final String key, final Location location) {
+            this.key = key;
+            this.location = location;
+        }
+    }
+
+    /**
+     * Where a value is stored in the file
+     */
+    private static final class Location {
+        private final long offset;
+        private final int length;
+
+        private Location(final long offset, final int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Gets the approximate size of the record storing this value.
+         * 
+         * @param key
+         * @return
+         */
+        private long getRecordSize(final String key) {
+            return 7 + key.length() + length;
+        }
+    }
+}
@@ -31,14 +31,34 @@ public class PoliticsFileSystem {
      * Base directory
      */
     private final File baseDir;
+    /**
+     * Global configuration file
+     */
+    private final File configFile;
     /**
      * Rules directory
      */
     private final File rulesDir;
+    /**
+     * Data directory
+     */
+    private final File dataDir;
+    /**
+     * File of the embedded page store
+     */
+    private final File storeFile;
     /**
      * Universe directory
      */
     private final File universesDir;
+    /**
+     * Write-ahead log directory
+     */
+    private final File walDir;
+    /**
+     * Directory containing backups of the data files
+     */
+    private final File backupsDir;
     /**
      * World Configuration Directory
      */
@@ -53,10 +73,15 @@ public class PoliticsFileSystem {
      */
     public PoliticsFileSystem() {
         baseDir = Politics.getPlugin().getDataFolder();
+        configFile = new File(baseDir, "config.yml");
         rulesDir = new File(baseDir, "rules/");
         worldConfigDir = new File(baseDir, "worlds/");
+        dataDir = new File(baseDir, "data/");
+        storeFile = new File(baseDir, "data/politics.db");
         worldsDir = new File(baseDir, "data/worlds/");
         universesDir = new File(baseDir, "data/universes/");
+        walDir = new File(baseDir, "data/wal/");
+        backupsDir = new File(baseDir, "data/backups/");
 
         if (!rulesDir.exists()) {
             rulesDir.mkdirs();
@@ -70,6 +95,12 @@ public class PoliticsFileSystem {
         if (!universesDir.exists()) {
             universesDir.mkdirs();
         }
+        if (!walDir.exists()) {
+            walDir.mkdirs();
+        }
+        if (!backupsDir.exists()) {
+            backupsDir.mkdirs();
+        }
     }
 
     /**
@@ -81,6 +112,15 @@ public class PoliticsFileSystem {
         return baseDir;
     }
 
+    /**
+     * Gets the global configuration file
+     * 
+     * @return the global configuration file
+     */
+    public File getConfigFile() {
+        return configFile;
+    }
+
     /**
      * Gets the rules directory.
      * 
@@ -99,6 +139,24 @@ public class PoliticsFileSystem {
         return worldConfigDir;
     }
 
+    /**
+     * Gets the data directory.
+     * 
+     * @return the data directory
+     */
+    public File getDataDir() {
+        return dataDir;
+    }
+
+    /**
+     * Gets the file of the embedded page store.
+     * 
+     * @return the page store file
+     */
+    public File getStoreFile() {
+        return storeFile;
+    }
+
     /**
      * Gets the universes directory.
      * 
@@ -108,6 +166,24 @@ public class PoliticsFileSystem {
         return universesDir;
     }
 
+    /**
+     * Gets the write-ahead log directory.
+     * 
+     * @return the write-ahead log directory
+     */
+    public File getWalDir() {
+        return walDir;
+    }
+
+    /**
+     * Gets the directory containing backups of the data files.
+     * 
+     * @return the backups directory
+     */
+    public File getBackupsDir() {
+        return backupsDir;
+    }
+
     /**
      * Gets the worlds directory.
      * 
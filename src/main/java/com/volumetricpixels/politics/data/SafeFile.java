@@ -0,0 +1,436 @@
+/*
+ * This file is part of Politics.
+ * 
+ * Copyright (c) 2012-2012, VolumetricPixels <http://volumetricpixels.com/>
+ * Politics is licensed under the Affero General Public License Version 3.
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.volumetricpixels.politics.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.FileUtils;
+
+import com.volumetricpixels.politics.PoliticsPlugin;
+
+/**
+ * Writes data files so a crash never destroys them, and reads them back with
+ * validation.
+ * 
+ * A file is written to a temporary file next to it, synced to disk and renamed
+ * over the old file, so a crash leaves either the old or the new version in
+ * place. When backups are kept, the old version is renamed into the backups
+ * directory instead, which keeps a ring of the newest backups of every file.
+ * A crash between the two renames leaves the file missing, so reading it
+ * restores that backup.
+ * 
+ * Files start with a header holding the CRC32 and length of their content. If
+ * a file does not match its header, reading it falls back to the newest valid
+ * backup, which is then restored. Files without a header were written by
+ * older versions and are read as they are, as long as they are a complete
+ * BSON document or a columnar world file.
+ */
+public final class SafeFile {
+    /**
+     * Magic number at the start of the header
+     */
+    static final byte[] MAGIC = { 'P', 'T', 'S', 'F' };
+    /**
+     * Current header version
+     */
+    static final byte VERSION = 1;
+    /**
+     * Size of the header: magic, version, checksum and length
+     */
+    private static final int HEADER_SIZE = MAGIC.length + 1 + 4 + 4;
+    /**
+     * Magic number of columnar world files, the only files written by older
+     * versions that are not BSON documents
+     */
+    private static final byte[] LEGACY_WORLD_MAGIC = { 'P', 'T', 'W', 'C' };
+    /**
+     * Format of the timestamps appended to backup names. Sorts by time.
+     */
+    private static final String TIMESTAMP_FORMAT = "yyyyMMdd-HHmmss-SSS";
+
+    /**
+     * C'tor
+     */
+    private SafeFile() {
+    }
+
+    /**
+     * Replaces the content of the given file.
+     * 
+     * @param file
+     * @param data
+     *            The new content
+     * @param backupsDir
+     *            The directory to keep backups in
+     * @param backups
+     *            The number of backups of the file to keep, 0 to keep none
+     * @throws IOException
+     *             If the file could not be written. The old version is left
+     *             in place.
+     */
+    public static void write(final File file, final byte[] data, final File backupsDir, final int backups) throws IOException {
+        final File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null) {
+            dir.mkdirs();
+        }
+        final File temp = new File(file.getPath() + ".tmp");
+        try {
+            final FileOutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(createHeader(data));
+                out.write(data);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } catch (final IOException ex) {
+            temp.delete();
+            throw ex;
+        }
+
+        if (backups > 0 && file.exists()) {
+            final File backup = getBackupFile(file, backupsDir);
+            if (file.renameTo(backup)) {
+                if (!temp.renameTo(file)) {
+                    temp.delete();
+                    if (!backup.renameTo(file)) {
+                        throw new IOException("Could not write `" + file.getName() + "', its last version is in `" + backup.getName() + "'!");
+                    }
+                    throw new IOException("Could not replace `" + file.getName() + "' with its new version!");
+                }
+                deleteOldBackups(file, backupsDir, backups);
+                return;
+            }
+            // The backups may be on another file system
+            backup(file, backupsDir, backups);
+        }
+        if (!temp.renameTo(file)) {
+            // Some platforms can't rename over an existing file
+            if (!file.delete() || !temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Could not replace `" + file.getName() + "' with its new version!");
+            }
+        }
+    }
+
+    /**
+     * Deletes the given file, keeping a backup of it.
+     * 
+     * @param file
+     * @param backupsDir
+     *            The directory to keep backups in
+     * @param backups
+     *            The number of backups of the file to keep, 0 to keep none
+     * @return True if the file no longer exists
+     */
+    public static boolean delete(final File file, final File backupsDir, final int backups) {
+        if (!file.exists()) {
+            return true;
+        }
+        if (backups > 0) {
+            if (file.renameTo(getBackupFile(file, backupsDir))) {
+                deleteOldBackups(file, backupsDir, backups);
+                return true;
+            }
+            backup(file, backupsDir, backups);
+        }
+        return file.delete();
+    }
+
+    /**
+     * Reads the content of the given file. If the file is missing or corrupt,
+     * the newest valid backup is restored and read instead.
+     * 
+     * @param file
+     * @param backupsDir
+     *            The directory the backups of the file are kept in
+     * @return The content of the file, or null if neither the file nor any
+     *         of its backups is valid
+     */
+    public static ByteBuffer read(final File file, final File backupsDir) {
+        if (file.exists()) {
+            final ByteBuffer content = readValid(file);
+            if (content != null) {
+                return content;
+            }
+            PoliticsPlugin.logger().log(Level.SEVERE, "File `" + file.getName() + "' is corrupt! Looking for a backup...");
+        }
+
+        final File[] backups = listBackups(file, backupsDir);
+        for (int i = backups.length - 1; i >= 0; i--) {
+            final ByteBuffer content = readValid(backups[i]);
+            if (content != null) {
+                restore(file, backups[i]);
+                return content;
+            }
+            PoliticsPlugin.logger().log(Level.WARNING, "Backup `" + backups[i].getName() + "' is corrupt too.");
+        }
+        return null;
+    }
+
+    /**
+     * Reads the content of the given file into an array.
+     * 
+     * @param file
+     * @param backupsDir
+     * @return
+     * @see #read(File, File)
+     */
+    public static byte[] readBytes(final File file, final File backupsDir) {
+        final ByteBuffer content = read(file, backupsDir);
+        if (content == null) {
+            return null;
+        }
+        final byte[] data = new byte[content.remaining()];
+        content.get(data);
+        return data;
+    }
+
+    /**
+     * Maps the given file and checks it against its header.
+     * 
+     * @param file
+     * @return The content of the file, or null if it is invalid
+     */
+    private static ByteBuffer readValid(final File file) {
+        final ByteBuffer buf;
+        try {
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                final FileChannel channel = raf.getChannel();
+                buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                raf.close();
+            }
+        } catch (final IOException ex) {
+            PoliticsPlugin.logger().log(Level.SEVERE, "Could not read file `" + file.getName() + "'!", ex);
+            return null;
+        }
+
+        if (buf.limit() == 0) {
+            return null;
+        }
+        if (!hasMagic(buf, MAGIC)) {
+            if (isLegacy(buf)) {
+                return buf;
+            }
+            // A header with damaged magic, or garbage
+            return null;
+        }
+        if (buf.limit() < HEADER_SIZE) {
+            return null;
+        }
+        buf.position(MAGIC.length);
+        if (buf.get() != VERSION) {
+            return null;
+        }
+        final int checksum = buf.getInt();
+        final int length = buf.getInt();
+        if (length != buf.remaining()) {
+            return null;
+        }
+        final ByteBuffer content = buf.slice();
+        if (checksum(content.duplicate()) != checksum) {
+            return null;
+        }
+        return content;
+    }
+
+    /**
+     * Checks if the given buffer starts with the given magic number.
+     * 
+     * @param buf
+     * @param magic
+     * @return
+     */
+    private static boolean hasMagic(final ByteBuffer buf, final byte[] magic) {
+        if (buf.limit() < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (buf.get(i) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the given buffer holds a file written before files had a
+     * header: a BSON document whose length is the size of the file, or a
+     * columnar world file.
+     * 
+     * @param buf
+     * @return
+     */
+    private static boolean isLegacy(final ByteBuffer buf) {
+        if (hasMagic(buf, LEGACY_WORLD_MAGIC)) {
+            return true;
+        }
+        final int size = buf.limit();
+        if (size < 5 || buf.get(size - 1) != 0) {
+            return false;
+        }
+        final int length = buf.get(0) & 0xFF | (buf.get(1) & 0xFF) << 8 | (buf.get(2) & 0xFF) << 16 | (buf.get(3) & 0xFF) << 24;
+        return length == size;
+    }
+
+    /**
+     * Creates the header of the given content.
+     * 
+     * @param data
+     * @return
+     */
+    private static byte[] createHeader(final byte[] data) {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC);
+        header.put(VERSION);
+        header.putInt(checksum(ByteBuffer.wrap(data)));
+        header.putInt(data.length);
+        return header.array();
+    }
+
+    /**
+     * Computes the CRC32 of the remaining bytes of the given buffer.
+     * 
+     * @param buf
+     * @return
+     */
+    private static int checksum(final ByteBuffer buf) {
+        final CRC32 crc = new CRC32();
+        if (buf.hasArray()) {
+            crc.update(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            return (int) crc.getValue();
+        }
+        final byte[] chunk = new byte[8192];
+        while (buf.hasRemaining()) {
+            final int length = Math.min(chunk.length, buf.remaining());
+            buf.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Copies the given file to the backups directory and deletes its oldest
+     * backups. Only used where the file can't be moved there.
+     * 
+     * @param file
+     * @param backupsDir
+     * @param backups
+     *            The number of backups to keep
+     */
+    private static void backup(final File file, final File backupsDir, final int backups) {
+        try {
+            FileUtils.copyFile(file, getBackupFile(file, backupsDir));
+        } catch (final IOException ex) {
+            PoliticsPlugin.logger().log(Level.WARNING, "Could not back up file `" + file.getName() + "'!", ex);
+            return;
+        }
+        deleteOldBackups(file, backupsDir, backups);
+    }
+
+    /**
+     * Gets a new backup file of the given file, named after the current time.
+     * Creates the backups directory if needed.
+     * 
+     * @param file
+     * @param backupsDir
+     * @return
+     */
+    private static File getBackupFile(final File file, final File backupsDir) {
+        backupsDir.mkdirs();
+        final String timestamp = new SimpleDateFormat(TIMESTAMP_FORMAT).format(new Date());
+        return new File(backupsDir, file.getName() + "." + timestamp);
+    }
+
+    /**
+     * Deletes the oldest backups of the given file.
+     * 
+     * @param file
+     * @param backupsDir
+     * @param backups
+     *            The number of backups to keep
+     */
+    private static void deleteOldBackups(final File file, final File backupsDir, final int backups) {
+        final File[] old = listBackups(file, backupsDir);
+        for (int i = 0; i < old.length - backups; i++) {
+            if (!old[i].delete()) {
+                PoliticsPlugin.logger().log(Level.WARNING, "Could not delete old backup `" + old[i].getName() + "'.");
+            }
+        }
+    }
+
+    /**
+     * Lists the backups of the given file, oldest first.
+     * 
+     * @param file
+     * @param backupsDir
+     * @return
+     */
+    private static File[] listBackups(final File file, final File backupsDir) {
+        final String prefix = file.getName() + ".";
+        final File[] backups = backupsDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.length() == prefix.length() + TIMESTAMP_FORMAT.length() && name.startsWith(prefix);
+            }
+        });
+        if (backups == null) {
+            return new File[0];
+        }
+        Arrays.sort(backups);
+        return backups;
+    }
+
+    /**
+     * Replaces a missing or corrupt file with the given backup. The corrupt
+     * file is kept next to it with the extension .corrupt.
+     * 
+     * @param file
+     * @param backup
+     */
+    private static void restore(final File file, final File backup) {
+        PoliticsPlugin.logger().log(Level.WARNING, "Restoring `" + file.getName() + "' from backup `" + backup.getName() + "'.");
+        if (file.exists()) {
+            final File corrupt = new File(file.getPath() + ".corrupt");
+            corrupt.delete();
+            if (!file.renameTo(corrupt)) {
+                PoliticsPlugin.logger().log(Level.WARNING, "Could not keep the corrupt version of `" + file.getName() + "'.");
+            }
+        }
+        try {
+            FileUtils.copyFile(backup, file);
+        } catch (final IOException ex) {
+            PoliticsPlugin.logger().log(Level.SEVERE, "Could not restore `" + file.getName() + "' from its backup!", ex);
+        }
+    }
+}
@@ -19,15 +19,101 @@
  */
 package com.volumetricpixels.politics.data;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
 import com.volumetricpixels.politics.Politics;
+import com.volumetricpixels.politics.PoliticsPlugin;
 
 /**
- * Saves everything in the plugin worth saving.
+ * Saves everything in the plugin worth saving. Snapshots are taken on the
+ * thread running this task, then encoded and written on a background thread.
+ * Taking a snapshot only captures the state of what changed: group documents
+ * are cached until their group changes, so a universe is cheap to capture.
+ * Once a snapshot is written, the write-ahead log it covers is truncated.
  */
 public class SaveTask implements Runnable {
+    /**
+     * The thread that encodes and writes snapshots
+     */
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "Politics-Save");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    /**
+     * The write currently in progress, if any
+     */
+    private Future<?> pending;
+
     @Override
     public void run() {
-        Politics.getPlotManager().saveWorlds();
-        Politics.getUniverseManager().saveUniverses();
+        if (pending != null && !pending.isDone()) {
+            PoliticsPlugin.logger().log(Level.WARNING, "The previous save is still being written, skipping this one.");
+            return;
+        }
+
+        final Snapshot snapshot = takeSnapshot();
+        final int segment = Politics.getWriteAheadLog().roll();
+
+        pending = writer.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (snapshot.write()) {
+                    Politics.getWriteAheadLog().truncate(segment);
+                }
+            }
+        });
+    }
+
+    /**
+     * Takes a snapshot and writes it on the calling thread.
+     */
+    public void save() {
+        final Snapshot snapshot = takeSnapshot();
+        final int segment = Politics.getWriteAheadLog().roll();
+        if (snapshot.write()) {
+            Politics.getWriteAheadLog().truncate(segment);
+        }
+    }
+
+    /**
+     * Takes a snapshot of every world and universe that changed.
+     * 
+     * @return
+     */
+    private Snapshot takeSnapshot() {
+        final Snapshot snapshot = new Snapshot();
+        Politics.getPlotManager().snapshotWorlds(snapshot);
+        Politics.getUniverseManager().snapshotUniverses(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Stops the background writer, waiting for a save in progress to finish
+     * however long it takes, so no other save can run at the same time.
+     * 
+     * @return True if the writer stopped, false if the calling thread was
+     *         interrupted while waiting. The writer may still be running then,
+     *         so nothing else may be saved.
+     */
+    public boolean shutdown() {
+        writer.shutdown();
+        try {
+            while (!writer.awaitTermination(1, TimeUnit.MINUTES)) {
+                PoliticsPlugin.logger().log(Level.WARNING, "Still waiting for the last save to be written...");
+            }
+            return true;
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
     }
 }
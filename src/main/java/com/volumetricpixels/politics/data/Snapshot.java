@@ -0,0 +1,283 @@
+/*
+ * This file is part of Politics.
+ * 
+ * Copyright (c) 2012-2012, VolumetricPixels <http://volumetricpixels.com/>
+ * Politics is licensed under the Affero General Public License Version 3.
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.volumetricpixels.politics.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.logging.Level;
+
+import org.bson.BSONEncoder;
+import org.bson.BSONObject;
+import org.bson.BasicBSONEncoder;
+
+import com.volumetricpixels.politics.Politics;
+import com.volumetricpixels.politics.PoliticsPlugin;
+
+/**
+ * A consistent copy of data to be saved. Every document is captured on the
+ * main thread when the snapshot is taken and never changes afterwards, so the
+ * thread writing the snapshot only encodes and writes it.
+ */
+public class Snapshot {
+    /**
+     * The content of a record, captured when the snapshot is taken and only
+     * encoded when it is written. It must not refer to any live object.
+     */
+    public interface Document {
+        /**
+         * Encodes this document. Called on the thread writing the snapshot.
+         * 
+         * @return The bytes of the record
+         * @throws IOException
+         */
+        byte[] encode() throws IOException;
+    }
+
+    /**
+     * The documents to write mapped to the keys of their records
+     */
+    private final Map<String, Document> documents = new LinkedHashMap<String, Document>();
+    /**
+     * The objects the documents were taken from
+     */
+    private final Map<String, Storable> sources = new LinkedHashMap<String, Storable>();
+    /**
+     * The keys of the records to remove
+     */
+    private final List<String> removes = new ArrayList<String>();
+    /**
+     * Where the keys of the records to remove are put back if removing them
+     * fails
+     */
+    private final Map<String, Queue<String>> pendingRemoves = new HashMap<String, Queue<String>>();
+
+    /**
+     * Adds a document to the snapshot. The document must not be shared with
+     * any live object.
+     * 
+     * @param key
+     *            The key of the record the document should be written to
+     * @param document
+     *            The document to write
+     */
+    public void add(final String key, final BSONObject document) {
+        documents.put(key, new BSONDocument(document));
+    }
+
+    /**
+     * Marks a Storable object clean, then adds its current state to the
+     * snapshot. A change made while the state is captured marks the object
+     * dirty again, so it is never lost. If writing it fails, it is marked
+     * dirty again.
+     * 
+     * @param key
+     *            The key of the record the object should be written to
+     * @param storable
+     *            The object to store
+     */
+    public void add(final String key, final Storable storable) {
+        storable.setDirty(false);
+        add(key, storable, new BSONDocument(storable.toBSONObject()));
+    }
+
+    /**
+     * Adds a BSON document captured from a Storable object to the snapshot.
+     * The object must have been marked clean before the document was
+     * captured. The document must not be shared with any live object.
+     * 
+     * @param key
+     *            The key of the record the object should be written to
+     * @param storable
+     *            The object the document was captured from
+     * @param document
+     *            The captured state of the object
+     */
+    public void add(final String key, final Storable storable, final BSONObject document) {
+        add(key, storable, new BSONDocument(document));
+    }
+
+    /**
+     * Adds a document captured from a Storable object to the snapshot. The
+     * object must have been marked clean before the document was captured,
+     * as a change made between capturing and marking it clean would be lost.
+     * If writing it fails, it is marked dirty again.
+     * 
+     * @param key
+     *            The key of the record the object should be written to
+     * @param storable
+     *            The object the document was captured from
+     * @param document
+     *            The captured state of the object
+     */
+    public void add(final String key, final Storable storable, final Document document) {
+        documents.put(key, document);
+        sources.put(key, storable);
+    }
+
+    /**
+     * Removes the record of a Storable object that can no longer be stored.
+     * The object must have been marked clean before it was found to be
+     * unstorable. If removing the record fails, the object is marked dirty
+     * again.
+     * 
+     * @param key
+     *            The key of the record to remove
+     * @param storable
+     *            The object the record was written from
+     */
+    public void remove(final String key, final Storable storable) {
+        removes.add(key);
+        sources.put(key, storable);
+    }
+
+    /**
+     * Removes a record. If removing it fails, the key is put back in the
+     * given queue so it can be removed with the next snapshot.
+     * 
+     * @param key
+     *            The key of the record to remove
+     * @param pending
+     *            The queue the key was taken from
+     */
+    public void remove(final String key, final Queue<String> pending) {
+        removes.add(key);
+        pendingRemoves.put(key, pending);
+    }
+
+    /**
+     * Gets the number of documents in this snapshot.
+     * 
+     * @return
+     */
+    public int size() {
+        return documents.size();
+    }
+
+    /**
+     * Encodes every document and writes it to the {@link StorageBackend}.
+     * Backends storing fine-grained records get the whole snapshot as one
+     * batch, the others get one record at a time so a failure only affects
+     * that record.
+     * 
+     * @return True if every document was written
+     */
+    public boolean write() {
+        final StorageBackend storage = Politics.getStorageBackend();
+        boolean success = true;
+        final Map<String, byte[]> puts = new LinkedHashMap<String, byte[]>();
+        for (final Entry<String, Document> entry : documents.entrySet()) {
+            final String key = entry.getKey();
+            try {
+                puts.put(key, entry.getValue().encode());
+            } catch (final IOException ex) {
+                PoliticsPlugin.logger().log(Level.SEVERE, "Could not encode record `" + key + "' due to error!", ex);
+                success = false;
+                failed(key);
+            }
+        }
+
+        if (storage.isFineGrained()) {
+            try {
+                storage.write(puts, removes);
+            } catch (final IOException ex) {
+                PoliticsPlugin.logger().log(Level.SEVERE, "Could not save " + (puts.size() + removes.size()) + " records due to error!", ex);
+                success = false;
+                for (final String key : puts.keySet()) {
+                    failed(key);
+                }
+                for (final String key : removes) {
+                    failed(key);
+                }
+            }
+            return success;
+        }
+
+        // Records are only removed once everything that replaces them is
+        // written. A record that is written anyway doesn't need removing.
+        for (final Entry<String, byte[]> entry : puts.entrySet()) {
+            final String key = entry.getKey();
+            try {
+                storage.write(Collections.singletonMap(key, entry.getValue()), Collections.<String> emptySet());
+            } catch (final IOException ex) {
+                PoliticsPlugin.logger().log(Level.SEVERE, "Could not save record `" + key + "' due to error!", ex);
+                success = false;
+                failed(key);
+            }
+        }
+        for (final String key : removes) {
+            if (documents.containsKey(key)) {
+                continue;
+            }
+            if (!success) {
+                failed(key);
+                continue;
+            }
+            try {
+                storage.write(Collections.<String, byte[]> emptyMap(), Collections.singleton(key));
+            } catch (final IOException ex) {
+                PoliticsPlugin.logger().log(Level.SEVERE, "Could not remove record `" + key + "' due to error!", ex);
+                success = false;
+                failed(key);
+            }
+        }
+        return success;
+    }
+
+    /**
+     * Makes sure the record with the given key is written again with the
+     * next snapshot.
+     * 
+     * @param key
+     */
+    private void failed(final String key) {
+        final Storable source = sources.get(key);
+        if (source != null) {
+            source.setDirty(true);
+        }
+        final Queue<String> pending = pendingRemoves.get(key);
+        if (pending != null) {
+            pending.add(key);
+        }
+    }
+
+    /**
+     * A document stored as BSON
+     */
+    private static final class BSONDocument implements Document {
+        private final BSONObject object;
+
+        private BSONDocument(final BSONObject object) {
+            this.object = object;
+        }
+
+        @Override
+        public byte[] encode() {
+            final BSONEncoder encoder = new BasicBSONEncoder();
+            return encoder.encode(object);
+        }
+    }
+}
@@ -41,4 +41,21 @@ public interface Storable {
      * @return Whether this Storable object can currently be stored
      */
     boolean canStore();
+
+    /**
+     * Returns whether this Storable object has changed since it was last
+     * stored
+     * 
+     * @return Whether this Storable object needs to be stored again
+     */
+    boolean isDirty();
+
+    /**
+     * Sets whether this Storable object has changed since it was last stored.
+     * Marking an object dirty also marks the object containing it dirty.
+     * 
+     * @param dirty
+     *            Whether this Storable object needs to be stored again
+     */
+    void setDirty(boolean dirty);
 }
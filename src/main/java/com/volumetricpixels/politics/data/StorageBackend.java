@@ -0,0 +1,86 @@
+/*
+ * This file is part of Politics.
+ * 
+ * Copyright (c) 2012-2012, VolumetricPixels <http://volumetricpixels.com/>
+ * Politics is licensed under the Affero General Public License Version 3.
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.volumetricpixels.politics.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores the data of Politics as records of bytes under string keys. Keys are
+ * paths separated by slashes, like <code>universes/main.ptu</code>.
+ * 
+ * Implementations must allow reads from any thread while a batch is being
+ * written.
+ */
+public interface StorageBackend {
+    /**
+     * Opens this backend. Called once before anything is read or written.
+     * 
+     * @throws IOException
+     */
+    void open() throws IOException;
+
+    /**
+     * Closes this backend. Nothing may be read or written afterwards.
+     */
+    void close();
+
+    /**
+     * Checks if records of this backend are cheap to write one by one. If
+     * they are, universes and worlds are stored as one record per group and
+     * per plot, and only changed records are written. Otherwise every
+     * universe and world is one record.
+     * 
+     * @return
+     */
+    boolean isFineGrained();
+
+    /**
+     * Lists the keys starting with the given prefix, in ascending order.
+     * 
+     * @param prefix
+     * @return
+     */
+    List<String> list(String prefix);
+
+    /**
+     * Reads the record with the given key.
+     * 
+     * @param key
+     * @return The record, or null if there is no valid record with that key
+     */
+    ByteBuffer read(String key);
+
+    /**
+     * Writes a batch of records. Removals are applied before the new records
+     * are stored.
+     * 
+     * @param puts
+     *            The records to store mapped to their keys
+     * @param removes
+     *            The keys of the records to remove
+     * @throws IOException
+     *             If the batch could not be written completely
+     */
+    void write(Map<String, byte[]> puts, Collection<String> removes) throws IOException;
+}
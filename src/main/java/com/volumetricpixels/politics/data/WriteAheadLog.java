@@ -0,0 +1,844 @@
+/*
+ * This file is part of Politics.
+ * 
+ * Copyright (c) 2012-2012, VolumetricPixels <http://volumetricpixels.com/>
+ * Politics is licensed under the Affero General Public License Version 3.
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.volumetricpixels.politics.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.FileUtils;
+
+import org.spout.api.geo.discrete.Point;
+
+import org.bson.BSONDecoder;
+import org.bson.BasicBSONDecoder;
+import org.bson.BasicBSONEncoder;
+import org.bson.BasicBSONObject;
+
+import com.volumetricpixels.politics.Politics;
+import com.volumetricpixels.politics.PoliticsPlugin;
+import com.volumetricpixels.politics.group.Group;
+import com.volumetricpixels.politics.group.level.GroupLevel;
+import com.volumetricpixels.politics.group.level.Role;
+import com.volumetricpixels.politics.universe.Universe;
+import com.volumetricpixels.politics.universe.UniverseManager;
+import com.volumetricpixels.politics.universe.UniverseRules;
+import com.volumetricpixels.politics.util.DataUtils;
+import com.volumetricpixels.politics.world.ChunkPlot;
+import com.volumetricpixels.politics.world.Plot;
+import com.volumetricpixels.politics.world.PoliticsWorld;
+import com.volumetricpixels.politics.world.RegionPlot;
+
+/**
+ * An append-only log of the changes made to universes, groups and plots since
+ * the last snapshot.
+ * 
+ * Records are buffered in memory and written by a background thread, which
+ * fsyncs every record written during one sync interval at once. The log is
+ * split into numbered segment files: taking a snapshot rolls over to a new
+ * segment, and the older segments are deleted once the snapshot has been
+ * written. On startup, every remaining segment is replayed on top of the
+ * loaded snapshot.
+ * 
+ * Each record is stored as its length, the CRC32 of its body, and its body,
+ * which starts with the record type. Replay stops at the first torn or
+ * corrupt record of a segment.
+ */
+public class WriteAheadLog {
+    private static final byte UNIVERSE_CREATE = 1;
+    private static final byte UNIVERSE_DESTROY = 2;
+    private static final byte GROUP_CREATE = 3;
+    private static final byte GROUP_DESTROY = 4;
+    private static final byte GROUP_SET_PROPERTY = 5;
+    private static final byte GROUP_SET_ROLE = 6;
+    private static final byte GROUP_REMOVE_ROLE = 7;
+    private static final byte GROUP_ADD_CHILD = 8;
+    private static final byte GROUP_REMOVE_CHILD = 9;
+    private static final byte REGION_CREATE = 10;
+    private static final byte REGION_REMOVE = 11;
+    private static final byte PLOT_ADD_OWNER = 12;
+    private static final byte PLOT_REMOVE_OWNER = 13;
+    /**
+     * Plot kinds used to identify the plot of a plot record
+     */
+    private static final byte CHUNK_PLOT = 0;
+    private static final byte REGION_PLOT = 1;
+    /**
+     * The extension of segment files
+     */
+    private static final String EXTENSION = ".wal";
+
+    /**
+     * The directory holding the segment files
+     */
+    private final File dir;
+    /**
+     * Milliseconds between two fsyncs of the log
+     */
+    private final int syncInterval;
+    /**
+     * Records not yet handed to the current segment
+     */
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    /**
+     * Scratch space for the body of the record being appended
+     */
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private final CRC32 crc = new CRC32();
+    /**
+     * Encodes the values of properties, guarded by this log
+     */
+    private final BasicBSONEncoder encoder = new BasicBSONEncoder();
+    /**
+     * Segments that were rolled over but not yet fsynced and closed
+     */
+    private List<FileOutputStream> sealed = new ArrayList<FileOutputStream>();
+    /**
+     * Held while fsyncing, so segments are never closed under a sync
+     */
+    private final Object syncLock = new Object();
+    /**
+     * The number of the current segment
+     */
+    private int segment;
+    /**
+     * The current segment, null until the log is started
+     */
+    private FileOutputStream out;
+    /**
+     * The thread periodically fsyncing the log
+     */
+    private Thread syncThread;
+    /**
+     * True while the log is being replayed, so replayed changes are not
+     * appended again
+     */
+    private volatile boolean replaying;
+    /**
+     * True while the sync thread should keep running
+     */
+    private volatile boolean running;
+
+    /**
+     * C'tor
+     * 
+     * @param dir
+     *            The directory holding the segment files
+     * @param syncInterval
+     *            Milliseconds between two fsyncs of the log
+     */
+    public WriteAheadLog(final File dir, final int syncInterval) {
+        this.dir = dir;
+        this.syncInterval = syncInterval;
+        dir.mkdirs();
+        final int[] segments = listSegments();
+        segment = segments.length == 0 ? 0 : segments[segments.length - 1];
+    }
+
+    /**
+     * Applies every record in the log to the loaded universes and worlds.
+     * Must be called before the log is started.
+     */
+    public void replay() {
+        final BSONDecoder decoder = new BasicBSONDecoder();
+        int count = 0;
+        replaying = true;
+        try {
+            for (final int number : listSegments()) {
+                final File file = getSegmentFile(number);
+                byte[] data;
+                try {
+                    data = FileUtils.readFileToByteArray(file);
+                } catch (final IOException ex) {
+                    PoliticsPlugin.logger().log(Level.SEVERE, "Could not read log segment `" + file.getName() + "'!", ex);
+                    continue;
+                }
+
+                int pos = 0;
+                while (pos + 8 <= data.length) {
+                    final int length = readInt(data, pos);
+                    final int checksum = readInt(data, pos + 4);
+                    if (length <= 0 || pos + 8 + length > data.length) {
+                        break;
+                    }
+                    crc.reset();
+                    crc.update(data, pos + 8, length);
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+                    try {
+                        apply(new DataInputStream(new ByteArrayInputStream(data, pos + 8, length)), decoder);
+                        count++;
+                    } catch (final IOException ex) {
+                        PoliticsPlugin.logger().log(Level.WARNING, "Skipping malformed record in log segment `" + file.getName() + "'.", ex);
+                    } catch (final RuntimeException ex) {
+                        PoliticsPlugin.logger().log(Level.WARNING, "Could not replay a record of log segment `" + file.getName() + "'.", ex);
+                    }
+                    pos += 8 + length;
+                }
+                if (pos != data.length) {
+                    PoliticsPlugin.logger().log(Level.WARNING, "Log segment `" + file.getName() + "' ends with a torn or corrupt record, ignoring "
+                            + (data.length - pos) + " bytes.");
+                }
+            }
+        } finally {
+            replaying = false;
+        }
+        if (count > 0) {
+            PoliticsPlugin.logger().log(Level.INFO, "Replayed " + count + " changes from the write-ahead log.");
+        }
+    }
+
+    /**
+     * Opens a new segment and starts the thread syncing the log.
+     * 
+     * @throws IOException
+     *             If the segment could not be opened
+     */
+    public synchronized void start() throws IOException {
+        out = new FileOutputStream(getSegmentFile(++segment), true);
+        running = true;
+        syncThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        Thread.sleep(syncInterval);
+                    } catch (final InterruptedException ex) {
+                        // Woken up to stop
+                    }
+                    try {
+                        sync();
+                    } catch (final IOException ex) {
+                        PoliticsPlugin.logger().log(Level.SEVERE, "Could not sync the write-ahead log!", ex);
+                    }
+                }
+            }
+        }, "Politics-WAL");
+        syncThread.setDaemon(true);
+        syncThread.start();
+    }
+
+    /**
+     * Writes out every buffered record and fsyncs the log.
+     * 
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+        synchronized (syncLock) {
+            final FileOutputStream target;
+            final List<FileOutputStream> toClose;
+            synchronized (this) {
+                if (out != null && buffer.size() > 0) {
+                    buffer.writeTo(out);
+                    buffer.reset();
+                }
+                target = out;
+                toClose = sealed;
+                sealed = new ArrayList<FileOutputStream>();
+            }
+            for (final FileOutputStream stream : toClose) {
+                stream.getChannel().force(false);
+                stream.close();
+            }
+            if (target != null) {
+                target.getChannel().force(false);
+            }
+        }
+    }
+
+    /**
+     * Starts a new segment. Every record appended before this call is in a
+     * segment with a number at most the returned one.
+     * 
+     * Call this on the thread taking a snapshot, right after taking it, and
+     * pass the returned number to {@link #truncate(int)} once the snapshot
+     * was written.
+     * 
+     * @return The number of the last segment the snapshot covers
+     */
+    public synchronized int roll() {
+        if (out == null) {
+            return segment;
+        }
+        final FileOutputStream next;
+        try {
+            next = new FileOutputStream(getSegmentFile(segment + 1), true);
+        } catch (final IOException ex) {
+            PoliticsPlugin.logger().log(Level.SEVERE, "Could not start a new log segment!", ex);
+            return segment - 1;
+        }
+        try {
+            if (buffer.size() > 0) {
+                buffer.writeTo(out);
+                buffer.reset();
+            }
+        } catch (final IOException ex) {
+            PoliticsPlugin.logger().log(Level.SEVERE, "Could not write to the write-ahead log!", ex);
+        }
+        sealed.add(out);
+        out = next;
+        return segment++;
+    }
+
+    /**
+     * Deletes every segment up to and including the given one.
+     * 
+     * @param last
+     *            The number returned by {@link #roll()} when the snapshot now
+     *            written was taken
+     */
+    public void truncate(final int last) {
+        try {
+            sync();
+        } catch (final IOException ex) {
+            PoliticsPlugin.logger().log(Level.SEVERE, "Could not sync the write-ahead log!", ex);
+        }
+        for (final int number : listSegments()) {
+            if (number > last) {
+                break;
+            }
+            final File file = getSegmentFile(number);
+            if (!file.delete()) {
+                PoliticsPlugin.logger().log(Level.WARNING, "Could not delete log segment `" + file.getName() + "'.");
+            }
+        }
+    }
+
+    /**
+     * Stops the sync thread, syncs the log and closes it.
+     */
+    public void close() {
+        running = false;
+        if (syncThread != null) {
+            syncThread.interrupt();
+            try {
+                syncThread.join();
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            sync();
+            synchronized (this) {
+                if (out != null) {
+                    out.close();
+                    out = null;
+                }
+            }
+        } catch (final IOException ex) {
+            PoliticsPlugin.logger().log(Level.SEVERE, "Could not close the write-ahead log!", ex);
+        }
+    }
+
+    /**
+     * Logs the creation of a universe.
+     * 
+     * @param universe
+     */
+    public synchronized void logCreateUniverse(final Universe universe) {
+        if (!begin(UNIVERSE_CREATE)) {
+            return;
+        }
+        try {
+            recordOut.writeUTF(universe.getName());
+            recordOut.writeUTF(universe.getRules().getName());
+        } catch (final IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        commit();
+    }
+
+    /**
+     * Logs the destruction of a universe.
+     * 
+     * @param universe
+     */
+    public synchronized void logDestroyUniverse(final Universe universe) {
+        if (!begin(UNIVERSE_DESTROY)) {
+            return;
+        }
+        try {
+            recordOut.writeUTF(universe.getName());
+        } catch (final IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        commit();
+    }
+
+    /**
+     * Logs the creation of a group.
+     * 
+     * @param group
+     */
+    public synchronized void logCreateGroup(final Group group) {
+        if (!begin(GROUP_CREATE)) {
+            return;
+        }
+        try {
+            recordOut.writeUTF(group.getUniverse().getName());
+            recordOut.writeInt(group.getUid());
+            recordOut.writeUTF(group.getLevel().getId());
+        } catch (final IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        commit();
+    }
+
+    /**
+     * Logs the destruction of a group.
+     * 
+     * @param group
+     * @param deep
+     */
+    public synchronized void logDestroyGroup(final Group group, final boolean deep) {
+        if (!begin(GROUP_DESTROY)) {
+            return;
+        }
+        try {
+            recordOut.writeInt(group.getUid());
+            recordOut.writeBoolean(deep);
+        } catch (final IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        commit();
+    }
+
+    /**
+     * Logs a property of a group being set. A value BSON can't encode can't
+     * be saved with the group either, so it isn't logged: the change is kept
+     * in memory, and a warning is logged instead.
+     * 
+     * @param group
+     * @param property
+     * @param value
+     */
+    public synchronized void logSetProperty(final Group group, final int property, final Object value) {
+        if (!begin(GROUP_SET_PROPERTY)) {
+            return;
+        }
+        final byte[] encoded;
+        try {
+            encoded = encoder.encode(new BasicBSONObject("v", value));
+        } catch (final RuntimeException ex) {
+            // Leaves the encoder ready for the next value
+            encoder.done();
+            PoliticsPlugin.logger().log(Level.WARNING, "Property " + property + " of group " + group.getUid() + " was set to a value that can't be saved, "
+                    + "not logging it.", ex);
+            return;
+        }
+        try {
+            recordOut.writeInt(group.getUid());
+            recordOut.writeInt(property);
+            recordOut.writeInt(encoded.length);
+            recordOut.write(encoded);
+        } catch (final IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        commit();
+    }
+
+    /**
+     * Logs the role of a player in a group being set.
+     * 
+     * @param group
+     * @param player
+     * @param role
+     */
+    public synchronized void logSetRole(final Group group, final String player, final Role role) {
+        if (!begin(GROUP_SET_ROLE)) {
+            return;
+        }
+        try {
+            recordOut.writeInt(group.getUid());
+            recordOut.writeUTF(player);
+            recordOut.writeUTF(role.getId());
+        } catch (final IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        commit();
+    }
+
+    /**
+     * Logs a player being removed from a group.
+     * 
+     * @param group
+     * @param player
+     */
+    public synchronized void logRemoveRole(final Group group, final String player) {
+        if (!begin(GROUP_REMOVE_ROLE)) {
+            return;
+        }
+        try {
+            recordOut.writeInt(group.getUid());
+            recordOut.writeUTF(player);
+        } catch (final IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        commit();
+    }
+
+    /**
+     * Logs a group becoming a child of another.
+     * 
+     * @param group
+     * @param child
+     */
+    public synchronized void logAddChildGroup(final Group group, final Group child) {
+        logChildGroup(GROUP_ADD_CHILD, group, child);
+    }
+
+    /**
+     * Logs a group no longer being a child of another.
+     * 
+     * @param group
+     * @param child
+     */
+    public synchronized void logRemoveChildGroup(final Group group, final Group child) {
+        logChildGroup(GROUP_REMOVE_CHILD, group, child);
+    }
+
+    private void logChildGroup(final byte type, final Group group, final Group child) {
+        if (!begin(type)) {
+            return;
+        }
+        try {
+            recordOut.writeUTF(group.getUniverse().getName());
+            recordOut.writeInt(group.getUid());
+            recordOut.writeInt(child.getUid());
+        } catch (final IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        commit();
+    }
+
+    /**
+     * Logs the creation of a region plot.
+     * 
+     * @param plot
+     */
+    public synchronized void logCreateRegionPlot(final RegionPlot plot) {
+        logRegionPlot(REGION_CREATE, plot);
+    }
+
+    /**
+     * Logs the removal of a region plot.
+     * 
+     * @param plot
+     */
+    public synchronized void logRemoveRegionPlot(final RegionPlot plot) {
+        logRegionPlot(REGION_REMOVE, plot);
+    }
+
+    private void logRegionPlot(final byte type, final RegionPlot plot) {
+        if (!begin(type)) {
+            return;
+        }
+        try {
+            writeRegion(plot);
+        } catch (final IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        commit();
+    }
+
+    /**
+     * Logs a group becoming an owner of a plot.
+     * 
+     * @param plot
+     * @param id
+     */
+    public synchronized void logAddOwner(final Plot plot, final int id) {
+        logOwner(PLOT_ADD_OWNER, plot, id);
+    }
+
+    /**
+     * Logs a group no longer being an owner of a plot.
+     * 
+     * @param plot
+     * @param id
+     */
+    public synchronized void logRemoveOwner(final Plot plot, final int id) {
+        logOwner(PLOT_REMOVE_OWNER, plot, id);
+    }
+
+    private void logOwner(final byte type, final Plot plot, final int id) {
+        if (!(plot instanceof ChunkPlot) && !(plot instanceof RegionPlot)) {
+            return;
+        }
+        if (!begin(type)) {
+            return;
+        }
+        try {
+            if (plot instanceof ChunkPlot) {
+                final ChunkPlot chunkPlot = (ChunkPlot) plot;
+                recordOut.writeByte(CHUNK_PLOT);
+                recordOut.writeUTF(plot.getPoliticsWorld().getName());
+                recordOut.writeInt(chunkPlot.getChunkX());
+                recordOut.writeInt(chunkPlot.getChunkY());
+                recordOut.writeInt(chunkPlot.getChunkZ());
+            } else {
+                recordOut.writeByte(REGION_PLOT);
+                writeRegion((RegionPlot) plot);
+            }
+            recordOut.writeInt(id);
+        } catch (final IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        commit();
+    }
+
+    private void writeRegion(final RegionPlot plot) throws IOException {
+        recordOut.writeUTF(plot.getPoliticsWorld().getName());
+        recordOut.writeInt(plot.getMinX());
+        recordOut.writeInt(plot.getMinY());
+        recordOut.writeInt(plot.getMinZ());
+        recordOut.writeInt(plot.getMaxX());
+        recordOut.writeInt(plot.getMaxY());
+        recordOut.writeInt(plot.getMaxZ());
+    }
+
+    /**
+     * Starts a record of the given type.
+     * 
+     * @param type
+     * @return False if nothing should be logged right now
+     */
+    private boolean begin(final byte type) {
+        if (replaying || out == null) {
+            return false;
+        }
+        record.reset();
+        record.write(type);
+        return true;
+    }
+
+    /**
+     * Frames the record being appended and adds it to the buffer.
+     */
+    private void commit() {
+        final byte[] body = record.toByteArray();
+        crc.reset();
+        crc.update(body, 0, body.length);
+        writeInt(buffer, body.length);
+        writeInt(buffer, (int) crc.getValue());
+        buffer.write(body, 0, body.length);
+    }
+
+    /**
+     * Applies a single record. The recorded change is applied as it was made:
+     * no events are fired, the checks it already passed are not made again,
+     * and it is not logged again.
+     * 
+     * @param in
+     * @param decoder
+     * @throws IOException
+     */
+    private void apply(final DataInputStream in, final BSONDecoder decoder) throws IOException {
+        final UniverseManager universes = Politics.getUniverseManager();
+        final byte type = in.readByte();
+        switch (type) {
+            case UNIVERSE_CREATE: {
+                final String name = in.readUTF();
+                final UniverseRules rules = universes.getRules(in.readUTF());
+                if (universes.getUniverse(name) == null && rules != null) {
+                    universes.createUniverse(name, rules);
+                }
+                break;
+            }
+            case UNIVERSE_DESTROY: {
+                final Universe universe = universes.getUniverse(in.readUTF());
+                if (universe != null) {
+                    universes.destroyUniverse(universe);
+                }
+                break;
+            }
+            case GROUP_CREATE: {
+                final Universe universe = universes.getUniverse(in.readUTF());
+                final int uid = in.readInt();
+                final String levelId = in.readUTF();
+                if (universe == null || universes.getGroupById(uid) != null) {
+                    break;
+                }
+                final GroupLevel level = universe.getRules().getGroupLevel(levelId);
+                if (level != null) {
+                    universe.createGroup(uid, level);
+                }
+                break;
+            }
+            case GROUP_DESTROY: {
+                final Group group = universes.getGroupById(in.readInt());
+                final boolean deep = in.readBoolean();
+                if (group != null) {
+                    group.getUniverse().destroyGroup(group, deep);
+                }
+                break;
+            }
+            case GROUP_SET_PROPERTY: {
+                final Group group = universes.getGroupById(in.readInt());
+                final int property = in.readInt();
+                final byte[] encoded = new byte[in.readInt()];
+                in.readFully(encoded);
+                if (group != null) {
+                    group.replaySetProperty(property, decoder.readObject(encoded).get("v"));
+                }
+                break;
+            }
+            case GROUP_SET_ROLE: {
+                final Group group = universes.getGroupById(in.readInt());
+                final String player = in.readUTF();
+                final String roleId = in.readUTF();
+                if (group != null) {
+                    final Role role = group.getLevel().getRole(roleId);
+                    if (role != null) {
+                        group.setRole(player, role);
+                    }
+                }
+                break;
+            }
+            case GROUP_REMOVE_ROLE: {
+                final Group group = universes.getGroupById(in.readInt());
+                final String player = in.readUTF();
+                if (group != null) {
+                    group.removeRole(player);
+                }
+                break;
+            }
+            case GROUP_ADD_CHILD:
+            case GROUP_REMOVE_CHILD: {
+                final Universe universe = universes.getUniverse(in.readUTF());
+                final Group group = universes.getGroupById(in.readInt());
+                final Group child = universes.getGroupById(in.readInt());
+                if (universe == null || group == null || child == null) {
+                    break;
+                }
+                if (type == GROUP_ADD_CHILD) {
+                    universe.replayAddChildGroup(group, child);
+                } else {
+                    universe.removeChildGroup(group, child);
+                }
+                break;
+            }
+            case REGION_CREATE: {
+                final PoliticsWorld world = Politics.getPlotManager().getWorld(in.readUTF());
+                final int[] bounds = readBounds(in);
+                if (world.getRegionPlot(bounds[0], bounds[1], bounds[2], bounds[3], bounds[4], bounds[5]) == null) {
+                    final Point base = new Point(DataUtils.getWorld(world.getName()), bounds[0], bounds[1], bounds[2]);
+                    world.createRegionPlot(base, bounds[3] - bounds[0], bounds[4] - bounds[1], bounds[5] - bounds[2]);
+                }
+                break;
+            }
+            case REGION_REMOVE: {
+                final PoliticsWorld world = Politics.getPlotManager().getWorld(in.readUTF());
+                final int[] bounds = readBounds(in);
+                final RegionPlot plot = world.getRegionPlot(bounds[0], bounds[1], bounds[2], bounds[3], bounds[4], bounds[5]);
+                if (plot != null) {
+                    world.removeRegionPlot(plot);
+                }
+                break;
+            }
+            case PLOT_ADD_OWNER:
+            case PLOT_REMOVE_OWNER: {
+                final byte kind = in.readByte();
+                final PoliticsWorld world = Politics.getPlotManager().getWorld(in.readUTF());
+                final Plot plot;
+                if (kind == CHUNK_PLOT) {
+                    plot = world.getOrCreatePlotAtChunkPosition(in.readInt(), in.readInt(), in.readInt());
+                } else {
+                    final int[] bounds = readBounds(in);
+                    plot = world.getRegionPlot(bounds[0], bounds[1], bounds[2], bounds[3], bounds[4], bounds[5]);
+                }
+                final int id = in.readInt();
+                if (plot == null) {
+                    break;
+                }
+                if (type == PLOT_REMOVE_OWNER || universes.getGroupById(id) != null) {
+                    plot.replayOwnerChange(id, type == PLOT_ADD_OWNER);
+                }
+                break;
+            }
+            default:
+                throw new IOException("Unknown record type " + type + "!");
+        }
+    }
+
+    private static int[] readBounds(final DataInputStream in) throws IOException {
+        final int[] bounds = new int[6];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = in.readInt();
+        }
+        return bounds;
+    }
+
+    /**
+     * Gets the numbers of all segments on disk, in ascending order.
+     * 
+     * @return
+     */
+    private int[] listSegments() {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return new int[0];
+        }
+        final int[] numbers = new int[files.length];
+        int count = 0;
+        for (final File file : files) {
+            final String name = file.getName();
+            if (!name.endsWith(EXTENSION)) {
+                continue;
+            }
+            final int number;
+            try {
+                number = Integer.parseInt(name.substring(0, name.length() - EXTENSION.length()));
+            } catch (final NumberFormatException ex) {
+                continue;
+            }
+            numbers[count++] = number;
+        }
+        final int[] segments = Arrays.copyOf(numbers, count);
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private File getSegmentFile(final int number) {
+        return new File(dir, String.format("%08d", number) + EXTENSION);
+    }
+
+    private static int readInt(final byte[] data, final int pos) {
+        return (data[pos] & 0xff) << 24 | (data[pos + 1] & 0xff) << 16 | (data[pos + 2] & 0xff) << 8 | data[pos + 3] & 0xff;
+    }
+
+    private static void writeInt(final ByteArrayOutputStream stream, final int value) {
+        stream.write(value >>> 24);
+        stream.write(value >>> 16);
+        stream.write(value >>> 8);
+        stream.write(value);
+    }
+}
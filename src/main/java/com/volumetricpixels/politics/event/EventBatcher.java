@@ -0,0 +1,145 @@
+/*
+ * This file is part of Politics.
+ * 
+ * Copyright (c) 2012-2012, VolumetricPixels <http://volumetricpixels.com/>
+ * Politics is licensed under the Affero General Public License Version 3.
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.volumetricpixels.politics.event;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.volumetricpixels.politics.Politics;
+import com.volumetricpixels.politics.event.group.GroupPropertySetEvent;
+import com.volumetricpixels.politics.event.plot.PlotOwnerChangeEvent;
+import com.volumetricpixels.politics.group.Group;
+import com.volumetricpixels.politics.world.Plot;
+
+/**
+ * Collects property and owner changes and calls them as one
+ * {@link PoliticsBatchEvent} every tick. Changes can be recorded from any
+ * thread; the batch is called on the main thread.
+ */
+public class EventBatcher implements Runnable {
+    /**
+     * The last value each property was set to this tick. Guarded by this.
+     */
+    private Map<Change, Object> propertySets = new LinkedHashMap<Change, Object>();
+    /**
+     * The last change of each owner of a plot this tick. Guarded by this.
+     */
+    private Map<Change, Boolean> ownerChanges = new LinkedHashMap<Change, Boolean>();
+
+    /**
+     * C'tor
+     */
+    public EventBatcher() {
+    }
+
+    /**
+     * Records that a property of a group was set.
+     * 
+     * @param group
+     * @param property
+     * @param value
+     */
+    public synchronized void propertySet(final Group group, final int property, final Object value) {
+        // Keeps the position of a property that was set before
+        propertySets.put(new Change(group, property), value);
+    }
+
+    /**
+     * Records that an owner was added to or removed from a plot.
+     * 
+     * @param plot
+     * @param group
+     * @param add
+     */
+    public synchronized void ownerChanged(final Plot plot, final int group, final boolean add) {
+        ownerChanges.put(new Change(plot, group), add);
+    }
+
+    /**
+     * Calls the changes recorded since the last flush as one event.
+     */
+    public void flush() {
+        final Map<Change, Object> properties;
+        final Map<Change, Boolean> owners;
+        synchronized (this) {
+            if (propertySets.isEmpty() && ownerChanges.isEmpty()) {
+                return;
+            }
+            properties = propertySets;
+            owners = ownerChanges;
+            propertySets = new LinkedHashMap<Change, Object>();
+            ownerChanges = new LinkedHashMap<Change, Boolean>();
+        }
+
+        final List<GroupPropertySetEvent> propertyEvents = new ArrayList<GroupPropertySetEvent>(properties.size());
+        for (final Entry<Change, Object> entry : properties.entrySet()) {
+            final Change change = entry.getKey();
+            propertyEvents.add(new GroupPropertySetEvent((Group) change.subject, change.id, entry.getValue()));
+        }
+        final List<PlotOwnerChangeEvent> ownerEvents = new ArrayList<PlotOwnerChangeEvent>(owners.size());
+        for (final Entry<Change, Boolean> entry : owners.entrySet()) {
+            final Change change = entry.getKey();
+            ownerEvents.add(new PlotOwnerChangeEvent((Plot) change.subject, change.id, entry.getValue()));
+        }
+        Politics.getPlugin().getEngine().getEventManager().callEvent(new PoliticsBatchEvent(propertyEvents, ownerEvents));
+    }
+
+    @Override
+    public void run() {
+        flush();
+    }
+
+    /**
+     * A property of a group or an owner of a plot. Plots are compared by
+     * identity, as their equality depends on their owners.
+     */
+    private static final class Change {
+        private final Object subject;
+        private final int id;
+
+        /**
+         * C'tor
+         * 
+         * @param subject
+         * @param id
+         */
+        private Change(final Object subject, final int id) {
+            this.subject = subject;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Change)) {
+                return false;
+            }
+            final Change other = (Change) obj;
+            return subject == other.subject && id == other.id;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(subject) + id;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * This file is part of Politics.
+ * 
+ * Copyright (c) 2012-2012, VolumetricPixels <http://volumetricpixels.com/>
+ * Politics is licensed under the Affero General Public License Version 3.
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.volumetricpixels.politics.event;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.spout.api.event.Event;
+import org.spout.api.event.HandlerList;
+
+import com.volumetricpixels.politics.event.group.GroupPropertySetEvent;
+import com.volumetricpixels.politics.event.plot.PlotOwnerChangeEvent;
+
+/**
+ * Called once per tick with the property and owner changes of that tick when
+ * events are batched. Only the last change of each property of a group and
+ * of each owner of a plot is included. While events are batched, these
+ * changes are not called as events of their own and can't be cancelled.
+ */
+public class PoliticsBatchEvent extends Event {
+
+    private static final HandlerList handlers = new HandlerList();
+    /**
+     * The properties that were set, in the order they were first set.
+     */
+    private final List<GroupPropertySetEvent> propertySets;
+    /**
+     * The owners that were added or removed, in the order they first changed.
+     */
+    private final List<PlotOwnerChangeEvent> ownerChanges;
+
+    /**
+     * C'tor
+     * 
+     * @param propertySets
+     * @param ownerChanges
+     */
+    public PoliticsBatchEvent(final List<GroupPropertySetEvent> propertySets, final List<PlotOwnerChangeEvent> ownerChanges) {
+        this.propertySets = Collections.unmodifiableList(propertySets);
+        this.ownerChanges = Collections.unmodifiableList(ownerChanges);
+    }
+
+    /**
+     * Gets the properties that were set.
+     * 
+     * @return
+     */
+    public List<GroupPropertySetEvent> getPropertySets() {
+        return propertySets;
+    }
+
+    /**
+     * Gets the owners that were added to or removed from plots.
+     * 
+     * @return
+     */
+    public List<PlotOwnerChangeEvent> getOwnerChanges() {
+        return ownerChanges;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public HandlerList getHandlers() {
+        return handlers;
+    }
+
+    /**
+     * Gets the HandlerList of the event.
+     * 
+     * @return
+     */
+    public static HandlerList getHandlerList() {
+        return handlers;
+    }
+}
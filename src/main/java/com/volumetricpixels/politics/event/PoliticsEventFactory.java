@@ -22,6 +22,7 @@ package com.volumetricpixels.politics.event;
 import org.spout.api.command.CommandSource;
 import org.spout.api.entity.Player;
 import org.spout.api.event.Event;
+import org.spout.api.event.HandlerList;
 
 import com.volumetricpixels.politics.Politics;
 import com.volumetricpixels.politics.event.group.GroupClaimPlotEvent;
@@ -37,7 +38,8 @@ import com.volumetricpixels.politics.universe.Universe;
 import com.volumetricpixels.politics.world.Plot;
 
 /**
- * Factory for creating and calling events
+ * Factory for creating and calling events. Events nothing listens to are not
+ * created at all, in which case the factory methods return null.
  */
 public final class PoliticsEventFactory {
     /**
@@ -49,9 +51,12 @@ public final class PoliticsEventFactory {
      *            The Plot being claimed
      * @param claimer
      *            The person claiming the Plot for the Group
-     * @return The called GroupClaimPlotEvent
+     * @return The called GroupClaimPlotEvent, or null if it has no handlers
      */
     public static GroupClaimPlotEvent callGroupClaimPlotEvent(final Group group, final Plot plot, final CommandSource claimer) {
+        if (!hasHandlers(GroupClaimPlotEvent.getHandlerList())) {
+            return null;
+        }
         return callEvent(new GroupClaimPlotEvent(group, plot, claimer));
     }
 
@@ -64,9 +69,20 @@ public final class PoliticsEventFactory {
      *            The type of GroupProperty being set
      * @param value
      *            The value the property is being set to
-     * @return The called GroupPropertySetEvent
+     * @return The called GroupPropertySetEvent, or null if it has no handlers
+     *         or was batched
      */
     public static GroupPropertySetEvent callGroupPropertySetEvent(final Group group, final int property, final Object value) {
+        final EventBatcher batcher = Politics.getEventBatcher();
+        if (batcher != null) {
+            if (hasHandlers(PoliticsBatchEvent.getHandlerList())) {
+                batcher.propertySet(group, property, value);
+            }
+            return null;
+        }
+        if (!hasHandlers(GroupPropertySetEvent.getHandlerList())) {
+            return null;
+        }
         return callEvent(new GroupPropertySetEvent(group, property, value));
     }
 
@@ -79,9 +95,12 @@ public final class PoliticsEventFactory {
      *            The Plot which is being unclaimed
      * @param unclaimer
      *            The person who is unclaiming the Plot for the Group
-     * @return The called GroupUnclaimPlotEvent
+     * @return The called GroupUnclaimPlotEvent, or null if it has no handlers
      */
     public static GroupUnclaimPlotEvent callGroupUnclaimPlotEvent(final Group group, final Plot plot, final CommandSource unclaimer) {
+        if (!hasHandlers(GroupUnclaimPlotEvent.getHandlerList())) {
+            return null;
+        }
         return callEvent(new GroupUnclaimPlotEvent(group, plot, unclaimer));
     }
 
@@ -92,9 +111,12 @@ public final class PoliticsEventFactory {
      *            The Group that has been created
      * @param creator
      *            The creator of the Group
-     * @return The called GroupCreateEvent
+     * @return The called GroupCreateEvent, or null if it has no handlers
      */
     public static GroupCreateEvent callGroupCreateEvent(final Group group, final CommandSource creator) {
+        if (!hasHandlers(GroupCreateEvent.getHandlerList())) {
+            return null;
+        }
         return callEvent(new GroupCreateEvent(group, creator));
     }
 
@@ -107,9 +129,12 @@ public final class PoliticsEventFactory {
      *            The Plot from which the Player moved
      * @param to
      *            The Plot to which the Player is moving
-     * @return The called PlayerChangePlotEvent
+     * @return The called PlayerChangePlotEvent, or null if it has no handlers
      */
     public static PlayerChangePlotEvent callPlayerChangePlotEvent(final Player player, final Plot from, final Plot to) {
+        if (!hasHandlers(PlayerChangePlotEvent.getHandlerList())) {
+            return null;
+        }
         return callEvent(new PlayerChangePlotEvent(player, from, to));
     }
 
@@ -122,9 +147,20 @@ public final class PoliticsEventFactory {
      *            The ID of the group the plot belongs to
      * @param add
      *            Whether the owner is being added
-     * @return The called PlotOwnerChangeEvent
+     * @return The called PlotOwnerChangeEvent, or null if it has no handlers
+     *         or was batched
      */
     public static PlotOwnerChangeEvent callPlotOwnerChangeEvent(final Plot plot, final int group, final boolean add) {
+        final EventBatcher batcher = Politics.getEventBatcher();
+        if (batcher != null) {
+            if (hasHandlers(PoliticsBatchEvent.getHandlerList())) {
+                batcher.ownerChanged(plot, group, add);
+            }
+            return null;
+        }
+        if (!hasHandlers(PlotOwnerChangeEvent.getHandlerList())) {
+            return null;
+        }
         return callEvent(new PlotOwnerChangeEvent(plot, group, add));
     }
 
@@ -133,9 +169,12 @@ public final class PoliticsEventFactory {
      * 
      * @param universe
      *            The universe being created
-     * @return The called UniverseCreateEvent
+     * @return The called UniverseCreateEvent, or null if it has no handlers
      */
     public static UniverseCreateEvent callUniverseCreateEvent(final Universe universe) {
+        if (!hasHandlers(UniverseCreateEvent.getHandlerList())) {
+            return null;
+        }
         return callEvent(new UniverseCreateEvent(universe));
     }
 
@@ -144,12 +183,26 @@ public final class PoliticsEventFactory {
      * 
      * @param universe
      *            The universe being destroyed
-     * @return The called UniverseDestroyEvent
+     * @return The called UniverseDestroyEvent, or null if it has no handlers
      */
     public static UniverseDestroyEvent callUniverseDestroyEvent(final Universe universe) {
+        if (!hasHandlers(UniverseDestroyEvent.getHandlerList())) {
+            return null;
+        }
         return callEvent(new UniverseDestroyEvent(universe));
     }
 
+    /**
+     * Checks if anything listens to the events of the given HandlerList, so
+     * work only needed to call them can be skipped.
+     * 
+     * @param handlers
+     * @return
+     */
+    public static boolean hasHandlers(final HandlerList handlers) {
+        return handlers.getRegisteredListeners().length > 0;
+    }
+
     /**
      * Calls the given event.
      * 
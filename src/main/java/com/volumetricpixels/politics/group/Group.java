@@ -24,11 +24,16 @@ import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 import org.spout.api.Server;
@@ -51,12 +56,37 @@ import com.volumetricpixels.politics.group.level.Role;
 import com.volumetricpixels.politics.group.privilege.Privilege;
 import com.volumetricpixels.politics.universe.Universe;
 import com.volumetricpixels.politics.universe.UniverseRules;
-import com.volumetricpixels.politics.util.PropertySerializer;
+import com.volumetricpixels.politics.util.PropertyCodec;
+import com.volumetricpixels.politics.util.PropertyCodecs;
 
 /**
- * Represents a group of players
+ * Represents a group of players.
+ * 
+ * Properties are guarded by the decoded-property cache of the group. Changes
+ * to properties and membership also update indexes of the universe, so they
+ * are made while holding the monitor of the universe as well. Membership is
+ * kept in a concurrent map and can be read without locking.
+ * 
+ * The properties and role map of a group that is stored in a record of its
+ * own can be unloaded while it is unchanged, and are read back from storage
+ * when they are accessed again. The uid, level, tag and parent always stay
+ * in memory.
  */
 public final class Group implements Comparable<Group>, Storable {
+    /**
+     * Lookups of typed properties answered from the decoded-property cache
+     */
+    private static final AtomicLong decodedPropertyHits = new AtomicLong();
+    /**
+     * Lookups of typed properties that had to decode the stored value
+     */
+    private static final AtomicLong decodedPropertyMisses = new AtomicLong();
+    /**
+     * Advanced by every sweep over the loaded groups. Groups remember the
+     * value at their last access, which orders them from least to most
+     * recently used.
+     */
+    private static volatile int accessClock;
     /**
      * The unique identifier of this group. This is unique for the entire
      * plugin
@@ -67,18 +97,53 @@ public final class Group implements Comparable<Group>, Storable {
      */
     private final GroupLevel level;
     /**
-     * Properties of this group
+     * The properties and players of this group, or null if they are unloaded.
+     * Only loaded while holding the monitor of this group.
      */
-    private final TIntObjectMap<Object> properties;
+    private volatile Contents contents;
     /**
-     * The immediate players of this group. The keys are the players, and the
-     * values are the player privileges
+     * The tag of this group, kept while the contents are unloaded
      */
-    private final Map<String, Role> players;
+    private volatile Object tag;
+    /**
+     * The value of the access clock when the contents were last accessed
+     */
+    private volatile int lastAccess;
+    /**
+     * Decoded values of typed properties, keyed by property. An entry is
+     * removed whenever its property is set. Its monitor guards properties.
+     */
+    private final TIntObjectMap<Object> decodedProperties = new TIntObjectHashMap<Object>();
     /**
      * The universe this group is part of
      */
-    private Universe universe;
+    private volatile Universe universe;
+    /**
+     * The parent of this group, maintained by the universe
+     */
+    private volatile Group parent;
+    /**
+     * Incremented after the players of this group or of one of its
+     * descendants changed
+     */
+    private volatile int membershipVersion;
+    /**
+     * All players of this group and its descendants, or null if they were
+     * not collected yet
+     */
+    private volatile AllPlayers allPlayers;
+    /**
+     * True if this group changed since it was last serialized
+     */
+    private volatile boolean dirty = true;
+    /**
+     * Incremented whenever this group is marked dirty
+     */
+    private volatile int changes;
+    /**
+     * The BSONObject this group was last serialized to
+     */
+    private volatile Serialized bson;
 
     /**
      * C'tor
@@ -87,7 +152,7 @@ public final class Group implements Comparable<Group>, Storable {
      * @param level
      */
     public Group(final int uid, final GroupLevel level) {
-        this(uid, level, new TIntObjectHashMap<Object>(), new HashMap<String, Role>());
+        this(uid, level, new TIntObjectHashMap<Object>(), new ConcurrentHashMap<String, Role>());
     }
 
     /**
@@ -101,8 +166,9 @@ public final class Group implements Comparable<Group>, Storable {
     private Group(final int uid, final GroupLevel level, final TIntObjectMap<Object> properties, final Map<String, Role> players) {
         this.uid = uid;
         this.level = level;
-        this.properties = properties;
-        this.players = players;
+        contents = new Contents(properties, players);
+        tag = properties.get(GroupProperty.TAG);
+        lastAccess = accessClock;
     }
 
     /**
@@ -117,6 +183,94 @@ public final class Group implements Comparable<Group>, Storable {
         this.universe = universe;
     }
 
+    /**
+     * Gets the object to hold while changing this group: its universe, or the
+     * group itself before it is part of one.
+     * 
+     * @return
+     */
+    private Object getMutex() {
+        final Universe universe = this.universe;
+        return universe == null ? this : universe;
+    }
+
+    /**
+     * Gets the properties and players of this group, reading them from
+     * storage if they are unloaded.
+     * 
+     * @return
+     */
+    private Contents getContents() {
+        Contents current = contents;
+        if (current == null) {
+            synchronized (this) {
+                current = contents;
+                if (current == null) {
+                    final BasicBSONObject object = Politics.getUniverseManager().readGroupRecord(this);
+                    current = new Contents(readProperties(object), readPlayers(uid, level, object));
+                    contents = current;
+                }
+            }
+        }
+        final int clock = accessClock;
+        if (lastAccess != clock) {
+            lastAccess = clock;
+        }
+        return current;
+    }
+
+    /**
+     * Checks if the properties and players of this group are in memory.
+     * 
+     * @return
+     */
+    public boolean isLoaded() {
+        return contents != null;
+    }
+
+    /**
+     * Gets the value of the access clock when the properties or players of
+     * this group were last accessed. Groups with a lower value were used less
+     * recently.
+     * 
+     * @return
+     */
+    public int getLastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * Advances the access clock. Called before every sweep over the loaded
+     * groups, so the groups accessed after it are ordered after those that
+     * were not.
+     */
+    public static void advanceAccessClock() {
+        accessClock++;
+    }
+
+    /**
+     * Unloads the properties and players of this group. They are read back
+     * from the record of this group on the next access, so this must only be
+     * called once that record was written.
+     * 
+     * @return True if the group was unloaded, false if it has changes that
+     *         are not stored yet or was not loaded
+     */
+    public boolean unload() {
+        synchronized (getMutex()) {
+            if (dirty || contents == null) {
+                return false;
+            }
+            contents = null;
+            synchronized (decodedProperties) {
+                decodedProperties.clear();
+            }
+            allPlayers = null;
+            bson = null;
+            return true;
+        }
+    }
+
     /**
      * Gets the universe of this Group
      * 
@@ -182,7 +336,34 @@ public final class Group implements Comparable<Group>, Storable {
      * @return
      */
     public Object getProperty(final int property) {
-        return properties.get(property);
+        if (property == GroupProperty.TAG) {
+            return tag;
+        }
+        final TIntObjectMap<Object> properties = getContents().properties;
+        synchronized (decodedProperties) {
+            return properties.get(property);
+        }
+    }
+
+    /**
+     * Gets the value of a property without loading the properties and players
+     * of this group if they are unloaded. The record of an unloaded group is
+     * read, but not kept in memory.
+     * 
+     * @param property
+     * @return
+     */
+    public Object peekProperty(final int property) {
+        if (property == GroupProperty.TAG) {
+            return tag;
+        }
+        final Contents current = contents;
+        if (current == null) {
+            return readProperties(Politics.getUniverseManager().readGroupRecord(this)).get(property);
+        }
+        synchronized (decodedProperties) {
+            return current.properties.get(property);
+        }
     }
 
     /**
@@ -263,16 +444,7 @@ public final class Group implements Comparable<Group>, Storable {
      * @return
      */
     public Transform getTransformProperty(final int property, final Transform def) {
-        final String s = getStringProperty(property);
-        if (s == null) {
-            return def;
-        }
-        try {
-            return (Transform) PropertySerializer.deserialize(s);
-        } catch (final PropertyDeserializationException ex) {
-            PoliticsPlugin.logger().log(Level.WARNING, "Property '" + Integer.toHexString(property) + "' is not a transform!", ex);
-            return def;
-        }
+        return getProperty(property, Transform.class, def);
     }
 
     /**
@@ -293,18 +465,103 @@ public final class Group implements Comparable<Group>, Storable {
      * @return
      */
     public Point getPointProperty(final int property, final Point def) {
-        final String s = getStringProperty(property);
-        if (s == null) {
-            return def;
+        return getProperty(property, Point.class, def);
+    }
+
+    /**
+     * Gets a property stored with a {@link PropertyCodec}, or as a legacy
+     * serialized string.
+     * 
+     * @param property
+     *            The property to get
+     * @param type
+     *            The type of the property
+     * @param def
+     *            The default value
+     * @return The value of the property, or <code>def</code> if it does not
+     *         exist or is not of the given type
+     */
+    public <T> T getProperty(final int property, final Class<T> type, final T def) {
+        final TIntObjectMap<Object> properties = getContents().properties;
+        final Object stored;
+        synchronized (decodedProperties) {
+            final Object cached = decodedProperties.get(property);
+            if (type.isInstance(cached)) {
+                decodedPropertyHits.incrementAndGet();
+                return copyOf(type.cast(cached));
+            }
+            stored = properties.get(property);
         }
+        decodedPropertyMisses.incrementAndGet();
         try {
-            return (Point) PropertySerializer.deserialize(s);
+            final T value = PropertyCodecs.decodeProperty(stored, type);
+            if (value == null) {
+                return def;
+            }
+            synchronized (decodedProperties) {
+                // Only cache the value if the property was not set meanwhile
+                if (properties.get(property) == stored) {
+                    decodedProperties.put(property, value);
+                }
+            }
+            return copyOf(value);
         } catch (final PropertyDeserializationException ex) {
-            PoliticsPlugin.logger().log(Level.WARNING, "Property '" + Integer.toHexString(property) + "' is not a point!", ex);
+            PoliticsPlugin.logger().log(Level.WARNING, "Property '" + Integer.toHexString(property) + "' is not a " + type.getSimpleName() + "!", ex);
             return def;
         }
     }
 
+    /**
+     * Copies a cached value if it is mutable, so callers cannot change the
+     * cached value.
+     * 
+     * @param value
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T copyOf(final T value) {
+        if (value instanceof Transform) {
+            final Transform transform = (Transform) value;
+            return (T) new Transform(transform.getPosition(), transform.getRotation(), transform.getScale());
+        }
+        if (value instanceof List) {
+            return (T) new ArrayList<Object>((List<?>) value);
+        }
+        return value;
+    }
+
+    /**
+     * Gets the number of typed property lookups answered from the
+     * decoded-property caches of all groups.
+     * 
+     * @return
+     */
+    public static long getDecodedPropertyHits() {
+        return decodedPropertyHits.get();
+    }
+
+    /**
+     * Gets the number of typed property lookups that had to decode the
+     * stored value.
+     * 
+     * @return
+     */
+    public static long getDecodedPropertyMisses() {
+        return decodedPropertyMisses.get();
+    }
+
+    /**
+     * Gets the fraction of typed property lookups answered from the
+     * decoded-property caches of all groups.
+     * 
+     * @return The hit ratio, or 0 if there were no lookups yet
+     */
+    public static double getDecodedPropertyHitRatio() {
+        final long hits = decodedPropertyHits.get();
+        final long total = hits + decodedPropertyMisses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
     /**
      * Sets the value of a transform property
      * 
@@ -312,11 +569,7 @@ public final class Group implements Comparable<Group>, Storable {
      * @param value
      */
     public void setProperty(final int property, final Transform value) {
-        try {
-            setProperty(property, PropertySerializer.serialize(value));
-        } catch (final PropertySerializationException e) {
-            Politics.getLogger().log(Level.SEVERE, "Error serializing property!", e);
-        }
+        setEncodedProperty(property, value);
     }
 
     /**
@@ -324,26 +577,130 @@ public final class Group implements Comparable<Group>, Storable {
      * 
      * @param property
      * @param value
-     * @param block
-     *            True if you wish to only store integer coordinates
      */
     public void setProperty(final int property, final Point value) {
+        setEncodedProperty(property, value);
+    }
+
+    /**
+     * Sets the value of a property, storing it with the {@link PropertyCodec}
+     * registered for its type.
+     * 
+     * @param property
+     * @param value
+     */
+    public void setEncodedProperty(final int property, final Object value) {
         try {
-            setProperty(property, PropertySerializer.serialize(value));
+            setProperty(property, PropertyCodecs.encode(value));
         } catch (final PropertySerializationException e) {
-            Politics.getLogger().log(Level.SEVERE, "Error serializing property!", e);
+            PoliticsPlugin.logger().log(Level.SEVERE, "Error serializing property!", e);
         }
     }
 
     /**
-     * Sets the value of a property.
+     * Sets the value of a property. Tags are unique within a universe, so a
+     * tag another group of the universe already has is not set; a warning is
+     * logged instead. Use {@link #trySetTag(String)} to find out whether a tag
+     * was set.
      * 
      * @param property
      * @param value
      */
     public void setProperty(final int property, final Object value) {
-        PoliticsEventFactory.callGroupPropertySetEvent(this, property, value);
-        properties.put(property, value);
+        if (!setCheckedProperty(property, value)) {
+            PoliticsPlugin.logger().log(Level.WARNING, "Not setting the tag of group " + uid + " to `" + value
+                    + "', another group of its universe already has it.");
+        }
+    }
+
+    /**
+     * Sets the tag of this group unless another group of its universe already
+     * has it.
+     * 
+     * @param tag
+     * @return True if the tag was set, false if it is taken
+     */
+    public boolean trySetTag(final String tag) {
+        return setCheckedProperty(GroupProperty.TAG, tag);
+    }
+
+    /**
+     * Sets the value of a property unless it is a tag that is already taken.
+     * 
+     * @param property
+     * @param value
+     * @return False if the value was refused
+     */
+    private boolean setCheckedProperty(final int property, final Object value) {
+        if (!isTagAvailable(property, value)) {
+            return false;
+        }
+        final boolean batched = Politics.getEventBatcher() != null;
+        if (!batched) {
+            PoliticsEventFactory.callGroupPropertySetEvent(this, property, value);
+        }
+        synchronized (getMutex()) {
+            // Checked again, as another group may have taken the tag meanwhile
+            if (!isTagAvailable(property, value)) {
+                return false;
+            }
+            Politics.getWriteAheadLog().logSetProperty(this, property, value);
+            storeProperty(property, value);
+        }
+        if (batched) {
+            // Only recorded once stored, so a refused value is never batched
+            PoliticsEventFactory.callGroupPropertySetEvent(this, property, value);
+        }
+        return true;
+    }
+
+    /**
+     * Checks that the given value may be set, which is only a concern for the
+     * tag.
+     * 
+     * @param property
+     * @param value
+     * @return
+     */
+    private boolean isTagAvailable(final int property, final Object value) {
+        final Universe u = universe;
+        return property != GroupProperty.TAG || u == null || u.isTagAvailable(this, value);
+    }
+
+    /**
+     * Sets the value of a property without firing an event or logging the
+     * change. Used to replay the write-ahead log.
+     * 
+     * @param property
+     * @param value
+     */
+    public void replaySetProperty(final int property, final Object value) {
+        synchronized (getMutex()) {
+            storeProperty(property, value);
+        }
+    }
+
+    /**
+     * Stores the value of a property. Must hold the mutex.
+     * 
+     * @param property
+     * @param value
+     */
+    private void storeProperty(final int property, final Object value) {
+        final TIntObjectMap<Object> properties = getContents().properties;
+        final Object old;
+        synchronized (decodedProperties) {
+            old = properties.put(property, value);
+            decodedProperties.remove(property);
+            if (property == GroupProperty.TAG) {
+                tag = value;
+            }
+        }
+        if (universe != null) {
+            universe.propertyChanged(this, property, old, value);
+        }
+        // Marked while holding the mutex so the change can't be unloaded
+        setDirty(true);
     }
 
     /**
@@ -352,7 +709,7 @@ public final class Group implements Comparable<Group>, Storable {
      * @return
      */
     public List<String> getImmediatePlayers() {
-        return new ArrayList<String>(players.keySet());
+        return new ArrayList<String>(getContents().players.keySet());
     }
 
     /**
@@ -377,12 +734,45 @@ public final class Group implements Comparable<Group>, Storable {
      * @return
      */
     public List<String> getPlayers() {
-        final List<String> players = new ArrayList<String>();
-        for (final Group group : getGroups()) {
-            players.addAll(group.getPlayers());
+        return new ArrayList<String>(getAllPlayers());
+    }
+
+    /**
+     * Gets all players part of this group or its descendants. The returned
+     * set is unmodifiable and is only rebuilt after the players of this group
+     * or of one of its descendants change.
+     * 
+     * @return
+     */
+    public Set<String> getAllPlayers() {
+        final Map<String, Role> players = getContents().players;
+        if (universe == null) {
+            return Collections.unmodifiableSet(new HashSet<String>(players.keySet()));
+        }
+        // Read before collecting, so players collected before a change are
+        // never filed under the version after it
+        final int version = membershipVersion;
+        AllPlayers all = allPlayers;
+        if (all == null || all.version != version) {
+            final Set<String> built = new HashSet<String>(players.keySet());
+            for (final Group group : universe.getChildGroupsView(this)) {
+                built.addAll(group.getAllPlayers());
+            }
+            all = new AllPlayers(version, Collections.unmodifiableSet(built));
+            allPlayers = all;
+        }
+        return all.players;
+    }
+
+    /**
+     * Marks the players collected for this group and its ancestors as stale.
+     * Called by the universe after the players or the children of this group
+     * changed, while holding its monitor.
+     */
+    public void membershipChanged() {
+        for (Group group = this; group != null; group = group.parent) {
+            group.membershipVersion++;
         }
-        players.addAll(this.players.keySet());
-        return players;
     }
 
     /**
@@ -392,7 +782,7 @@ public final class Group implements Comparable<Group>, Storable {
      * @return
      */
     public boolean isImmediateMember(final String player) {
-        return players.containsKey(player);
+        return getContents().players.containsKey(player);
     }
 
     /**
@@ -402,16 +792,7 @@ public final class Group implements Comparable<Group>, Storable {
      * @return
      */
     public boolean isMember(final String player) {
-        if (isImmediateMember(player)) {
-            return true;
-        }
-
-        for (final Group group : getGroups()) {
-            if (group.isMember(player)) {
-                return true;
-            }
-        }
-        return false;
+        return isImmediateMember(player) || getAllPlayers().contains(player);
     }
 
     /**
@@ -421,7 +802,7 @@ public final class Group implements Comparable<Group>, Storable {
      * @return
      */
     public Role getRole(final String player) {
-        return players.get(player);
+        return getContents().players.get(player);
     }
 
     /**
@@ -429,9 +810,21 @@ public final class Group implements Comparable<Group>, Storable {
      * 
      * @param player
      * @param role
+     *            The role, or null to remove the player from the group
      */
     public void setRole(final String player, final Role role) {
-        players.put(player, role);
+        if (role == null) {
+            removeRole(player);
+            return;
+        }
+        synchronized (getMutex()) {
+            Politics.getWriteAheadLog().logSetRole(this, player, role);
+            if (getContents().players.put(player, role) == null && universe != null) {
+                universe.addCitizenGroup(player, this);
+            }
+            Politics.getPrivilegeManager().invalidatePrivilegeCaches();
+            setDirty(true);
+        }
     }
 
     /**
@@ -440,7 +833,14 @@ public final class Group implements Comparable<Group>, Storable {
      * @param player
      */
     public void removeRole(final String player) {
-        players.remove(player);
+        synchronized (getMutex()) {
+            Politics.getWriteAheadLog().logRemoveRole(this, player);
+            if (getContents().players.remove(player) != null && universe != null) {
+                universe.removeCitizenGroup(player, this);
+            }
+            Politics.getPrivilegeManager().invalidatePrivilegeCaches();
+            setDirty(true);
+        }
     }
 
     /**
@@ -464,12 +864,64 @@ public final class Group implements Comparable<Group>, Storable {
      * @return
      */
     public Group getParent() {
-        for (final Group group : universe.getGroups()) {
-            if (group.getGroups().contains(group)) {
-                return group;
-            }
+        return parent;
+    }
+
+    /**
+     * Sets the parent of this group. Only called by the universe of this
+     * group when the hierarchy changes.
+     * 
+     * @param parent
+     *            The new parent, or null if this group has none
+     */
+    public void setParent(final Group parent) {
+        if (parent != null && parent.getUniverse() != universe) {
+            throw new IllegalArgumentException("A group's parent must be in the same universe!");
+        }
+        if (this.parent != parent) {
+            this.parent = parent;
+            // The parent is stored with the group
+            setDirty(true);
         }
-        return null;
+    }
+
+    /**
+     * Gets the ancestors of this group, starting with its parent. The
+     * iterator only follows parent references and builds no collection, but
+     * each call still creates the iterable and its iterator; loops on hot
+     * paths follow {@link #getParent()} instead.
+     * 
+     * @return
+     */
+    public Iterable<Group> getAncestors() {
+        return new Iterable<Group>() {
+            @Override
+            public Iterator<Group> iterator() {
+                return new Iterator<Group>() {
+                    private Group next = parent;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next != null;
+                    }
+
+                    @Override
+                    public Group next() {
+                        if (next == null) {
+                            throw new NoSuchElementException();
+                        }
+                        final Group current = next;
+                        next = current.parent;
+                        return current;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
     }
 
     @Override
@@ -477,23 +929,47 @@ public final class Group implements Comparable<Group>, Storable {
         return getProperty(GroupProperty.TAG).toString().compareTo(o.getProperty(GroupProperty.TAG).toString());
     }
 
+    /**
+     * Gets the BSONObject representing this group. It is only rebuilt after
+     * the group changed, so the returned object must not be modified. This
+     * doesn't mark the group clean.
+     */
     @Override
     public BasicBSONObject toBSONObject() {
+        final int version = changes;
+        Serialized cached = bson;
+        if (cached == null || cached.version != version) {
+            cached = new Serialized(version, createBSONObject());
+            bson = cached;
+        }
+        return cached.object;
+    }
+
+    /**
+     * Creates a new BSONObject representing this group.
+     * 
+     * @return
+     */
+    private BasicBSONObject createBSONObject() {
         final BasicBSONObject object = new BasicBSONObject();
 
         object.put("uid", uid);
         object.put("level", level.getId());
 
+        final Contents contents = getContents();
+        final TIntObjectMap<Object> properties = contents.properties;
         final BasicBSONObject propertiesBson = new BasicBSONObject();
-        final TIntObjectIterator<Object> pit = properties.iterator();
-        while (pit.hasNext()) {
-            pit.advance();
-            propertiesBson.put(Integer.toHexString(pit.key()), pit.value());
+        synchronized (decodedProperties) {
+            final TIntObjectIterator<Object> pit = properties.iterator();
+            while (pit.hasNext()) {
+                pit.advance();
+                propertiesBson.put(Integer.toHexString(pit.key()), pit.value());
+            }
         }
         object.put("properties", propertiesBson);
 
         final BasicBSONObject playersBson = new BasicBSONObject();
-        for (final Entry<String, Role> roleEntry : players.entrySet()) {
+        for (final Entry<String, Role> roleEntry : contents.players.entrySet()) {
             playersBson.put(roleEntry.getKey(), roleEntry.getValue().getId());
         }
         object.put("players", playersBson);
@@ -522,7 +998,16 @@ public final class Group implements Comparable<Group>, Storable {
             throw new IllegalStateException("Unknown level type '" + level + "'! (Did the universe rules change?)");
         }
 
-        // Properties
+        return new Group(uid, level, readProperties(bobject), readPlayers(uid, level, bobject));
+    }
+
+    /**
+     * Reads the properties of a group from its BSONObject.
+     * 
+     * @param bobject
+     * @return
+     */
+    private static TIntObjectMap<Object> readProperties(final BasicBSONObject bobject) {
         final Object propertiesObj = bobject.get("properties");
         if (!(propertiesObj instanceof BasicBSONObject)) {
             throw new IllegalStateException("WTF you screwed up the properties! CORRUPT!");
@@ -534,25 +1019,121 @@ public final class Group implements Comparable<Group>, Storable {
             final Object value = entry.getValue();
             properties.put(realKey, value);
         }
+        return properties;
+    }
 
-        // Players
+    /**
+     * Reads the players of a group from its BSONObject.
+     * 
+     * @param uid
+     * @param level
+     * @param bobject
+     * @return
+     */
+    private static Map<String, Role> readPlayers(final int uid, final GroupLevel level, final BasicBSONObject bobject) {
         final Object playersObj = bobject.get("players");
         if (!(playersObj instanceof BasicBSONObject)) {
             throw new IllegalStateException("Stupid server admin... don't mess with the data!");
         }
         final BasicBSONObject playersBson = (BasicBSONObject) playersObj;
-        final Map<String, Role> players = new HashMap<String, Role>();
+        final Map<String, Role> players = new ConcurrentHashMap<String, Role>();
         for (final Entry<String, Object> entry : playersBson.entrySet()) {
             final String roleId = entry.getValue().toString();
             final Role role = level.getRole(roleId);
+            if (role == null) {
+                PoliticsPlugin.logger().log(Level.WARNING, "Player " + entry.getKey() + " of group " + uid + " has unknown role '" + roleId + "'!");
+                continue;
+            }
             players.put(entry.getKey(), role);
         }
-
-        return new Group(uid, level, properties, players);
+        return players;
     }
 
     @Override
     public boolean canStore() {
         return true;
     }
+
+    @Override
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    @Override
+    public void setDirty(final boolean dirty) {
+        this.dirty = dirty;
+        if (dirty) {
+            changes++;
+            if (universe != null) {
+                universe.setDirty(true);
+            }
+        }
+    }
+
+    /**
+     * A BSONObject a group was serialized to, along with the number of
+     * changes of the group at the time.
+     */
+    private static final class Serialized {
+        private final int version;
+        private final BasicBSONObject object;
+
+        /**
+         * C'tor
+         * 
+         * @param version
+         * @param object
+         */
+        private Serialized(final int version, final BasicBSONObject object) {
+            this.version = version;
+            this.object = object;
+        }
+    }
+
+    /**
+     * The properties and players of a group, which are unloaded together.
+     */
+    private static final class Contents {
+        /**
+         * Properties of the group. Only accessed while holding the
+         * decodedProperties of the group.
+         */
+        private final TIntObjectMap<Object> properties;
+        /**
+         * The immediate players of the group. The keys are the players, and
+         * the values are the player privileges
+         */
+        private final Map<String, Role> players;
+
+        /**
+         * C'tor
+         * 
+         * @param properties
+         * @param players
+         */
+        private Contents(final TIntObjectMap<Object> properties, final Map<String, Role> players) {
+            this.properties = properties;
+            this.players = players;
+        }
+    }
+
+    /**
+     * The players of a group and its descendants, along with the membership
+     * version of the group they were collected in
+     */
+    private static final class AllPlayers {
+        private final int version;
+        private final Set<String> players;
+
+        /**
+         * C'tor
+         * 
+         * @param version
+         * @param players
+         */
+        private AllPlayers(final int version, final Set<String> players) {
+            this.version = version;
+            this.players = players;
+        }
+    }
 }
@@ -62,6 +62,10 @@ public final class GroupLevel {
      * Roles mapped to their ids
      */
     private final Map<String, Role> roles;
+    /**
+     * Unmodifiable view of roles
+     */
+    private final Map<String, Role> rolesView;
     /**
      * Plural form of this group level name
      */
@@ -105,6 +109,7 @@ public final class GroupLevel {
         this.name = name;
         this.rank = rank;
         this.roles = roles;
+        rolesView = Collections.unmodifiableMap(roles);
         this.plural = plural;
         this.commands = commands;
         this.tracks = tracks;
@@ -186,6 +191,15 @@ public final class GroupLevel {
         return new HashMap<String, Role>(roles);
     }
 
+    /**
+     * Gets an unmodifiable view of the roles of the GroupLevel, named
+     * 
+     * @return
+     */
+    public Map<String, Role> getRolesView() {
+        return rolesView;
+    }
+
     /**
      * Gets the aliases of the given command
      * 
@@ -273,7 +287,7 @@ public final class GroupLevel {
             final String roleName = role.getKey();
             final Role value = role.getValue();
             final List<String> privNames = new ArrayList<String>();
-            for (final Privilege priv : value.getPrivileges()) {
+            for (final Privilege priv : value.getPrivilegesView()) {
                 privNames.add(priv.getName());
             }
 
@@ -20,6 +20,8 @@
 package com.volumetricpixels.politics.group.level;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -45,9 +47,17 @@ public final class Role implements Comparable<Role> {
      */
     private final String name;
     /**
-     * The bitset of the role.
+     * The privileges of the role.
      */
     private final Set<Privilege> privileges;
+    /**
+     * Unmodifiable view of privileges.
+     */
+    private final Set<Privilege> privilegesView;
+    /**
+     * The bitset of the role, indexed by privilege id.
+     */
+    private final BitSet privilegeMask;
     /**
      * The rank of the role.
      */
@@ -65,7 +75,14 @@ public final class Role implements Comparable<Role> {
         this.id = id;
         this.name = name;
         this.privileges = privileges;
+        privilegesView = Collections.unmodifiableSet(privileges);
         this.rank = rank;
+        privilegeMask = new BitSet();
+        for (final Privilege privilege : privileges) {
+            if (privilege.getId() >= 0) {
+                privilegeMask.set(privilege.getId());
+            }
+        }
     }
 
     /**
@@ -84,7 +101,31 @@ public final class Role implements Comparable<Role> {
      * @return
      */
     public boolean hasPrivilege(final Privilege privilege) {
-        return privileges.contains(privilege);
+        final int privilegeId = privilege.getId();
+        if (privilegeId < 0) {
+            return privileges.contains(privilege);
+        }
+        return privilegeMask.get(privilegeId);
+    }
+
+    /**
+     * Gets the privileges of this Role as a bitset indexed by privilege id.
+     * 
+     * @return
+     */
+    public BitSet getPrivilegeMask() {
+        return (BitSet) privilegeMask.clone();
+    }
+
+    /**
+     * Clears every bit of the given bitset that is not set for a privilege of
+     * this Role, without copying the mask of this Role.
+     * 
+     * @param mask
+     *            A bitset indexed by privilege id
+     */
+    public void retainPrivileges(final BitSet mask) {
+        mask.and(privilegeMask);
     }
 
     /**
@@ -96,6 +137,15 @@ public final class Role implements Comparable<Role> {
         return new HashSet<Privilege>(privileges);
     }
 
+    /**
+     * Gets an unmodifiable view of the privileges of this Role.
+     * 
+     * @return
+     */
+    public Set<Privilege> getPrivilegesView() {
+        return privilegesView;
+    }
+
     /**
      * Gets the rank of the role.
      * 
@@ -130,6 +180,7 @@ public final class Role implements Comparable<Role> {
             if (p == null) {
                 continue;
             }
+            privileges.add(p);
         }
         final int rank = node.getNode("rank").getInt(1);
         return new Role(id, name, privileges, rank);
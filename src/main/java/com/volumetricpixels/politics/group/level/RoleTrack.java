@@ -19,6 +19,7 @@
  */
 package com.volumetricpixels.politics.group.level;
 
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -39,6 +40,10 @@ public class RoleTrack implements Iterable<Role> {
      * The roles of the track.
      */
     private final List<Role> roles;
+    /**
+     * Unmodifiable view of roles.
+     */
+    private final List<Role> rolesView;
 
     /**
      * C'tor
@@ -49,6 +54,7 @@ public class RoleTrack implements Iterable<Role> {
     RoleTrack(final String id, final List<Role> roles) {
         this.id = id;
         this.roles = roles;
+        rolesView = Collections.unmodifiableList(roles);
     }
 
     /**
@@ -69,6 +75,15 @@ public class RoleTrack implements Iterable<Role> {
         return new LinkedList<Role>(roles);
     }
 
+    /**
+     * Gets an unmodifiable view of the roles of the track.
+     * 
+     * @return
+     */
+    public List<Role> getRolesView() {
+        return rolesView;
+    }
+
     /**
      * Gets the role before the given role.
      * 
@@ -99,7 +114,7 @@ public class RoleTrack implements Iterable<Role> {
 
     @Override
     public Iterator<Role> iterator() {
-        return roles.listIterator();
+        return rolesView.iterator();
     }
 
     /**
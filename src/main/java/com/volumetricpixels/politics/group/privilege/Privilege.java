@@ -19,6 +19,7 @@
  */
 package com.volumetricpixels.politics.group.privilege;
 
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.Set;
@@ -35,6 +36,14 @@ public class Privilege {
      * The types of the privilege.
      */
     private final Set<PrivilegeType> types;
+    /**
+     * Unmodifiable view of types.
+     */
+    private final Set<PrivilegeType> typesView;
+    /**
+     * The dense id of the privilege, assigned by the PrivilegeManager.
+     */
+    private volatile int id = -1;
 
     /**
      * C'tor
@@ -52,6 +61,7 @@ public class Privilege {
         }
         this.name = name.toUpperCase();
         this.types = EnumSet.of(types[0], types);
+        typesView = Collections.unmodifiableSet(this.types);
     }
 
     /**
@@ -63,6 +73,26 @@ public class Privilege {
         return name;
     }
 
+    /**
+     * Gets the id of this privilege. Ids are assigned densely from 0 by the
+     * PrivilegeManager when the privilege is registered.
+     * 
+     * @return The id of this privilege, or -1 if it was never registered
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Sets the id of this privilege.
+     * 
+     * @param id
+     *            The id assigned by the PrivilegeManager
+     */
+    void setId(final int id) {
+        this.id = id;
+    }
+
     /**
      * Gets the types of this privilege.
      * 
@@ -72,6 +102,15 @@ public class Privilege {
         return EnumSet.copyOf(types);
     }
 
+    /**
+     * Gets an unmodifiable view of the types of this privilege.
+     * 
+     * @return The types of this privilege
+     */
+    public Set<PrivilegeType> getTypesView() {
+        return typesView;
+    }
+
     /**
      * Merges two sets of privileges together.
      * 
@@ -126,7 +165,7 @@ public class Privilege {
         final Set<Privilege> result = new HashSet<Privilege>();
         final Set<PrivilegeType> typesSet = EnumSet.of(types[0], types);
         for (final Privilege priv : set) {
-            if (priv.getTypes().containsAll(typesSet)) {
+            if (priv.getTypesView().containsAll(typesSet)) {
                 result.add(priv);
             }
         }
@@ -19,8 +19,11 @@
  */
 package com.volumetricpixels.politics.group.privilege;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Manages the various different types of privileges
@@ -31,6 +34,14 @@ public class PrivilegeManager {
      * Contains all privileges mapped to their names.
      */
     private final Map<String, Privilege> privileges = new HashMap<String, Privilege>();
+    /**
+     * Contains all privileges indexed by their ids.
+     */
+    private final List<Privilege> privilegesById = new ArrayList<Privilege>();
+    /**
+     * Incremented whenever cached effective privileges become stale.
+     */
+    private final AtomicInteger cacheGeneration = new AtomicInteger();
 
     /**
      * C'tor
@@ -48,13 +59,25 @@ public class PrivilegeManager {
     }
 
     /**
-     * Registers a privilege with this PrivilegeManager.
+     * Registers a privilege with this PrivilegeManager. A privilege registered
+     * under a name that is already taken replaces the old one and takes over
+     * its id, so masks built from the old privilege stay valid.
      * 
      * @param privilege
      * @return True if a privilege was not displaced.
      */
     public boolean registerPrivilege(final Privilege privilege) {
-        return privileges.put(privilege.getName(), privilege) == null;
+        final Privilege previous = privileges.get(privilege.getName());
+        if (previous != null) {
+            privilege.setId(previous.getId());
+            privilegesById.set(previous.getId(), privilege);
+        } else {
+            privilege.setId(privilegesById.size());
+            privilegesById.add(privilege);
+        }
+        privileges.put(privilege.getName(), privilege);
+        invalidatePrivilegeCaches();
+        return previous == null;
     }
 
     /**
@@ -81,4 +104,46 @@ public class PrivilegeManager {
     public Privilege getPrivilege(final String name) {
         return privileges.get(name.toUpperCase().replaceAll(" ", "_"));
     }
+
+    /**
+     * Gets a privilege by its id.
+     * 
+     * @param id
+     * @return
+     */
+    public Privilege getPrivilege(final int id) {
+        if (id < 0 || id >= privilegesById.size()) {
+            return null;
+        }
+        return privilegesById.get(id);
+    }
+
+    /**
+     * Gets the number of privilege ids that have been assigned.
+     * 
+     * @return
+     */
+    public int getPrivilegeCount() {
+        return privilegesById.size();
+    }
+
+    /**
+     * Gets the current generation of cached effective privileges. Caches
+     * built in an older generation must be thrown away.
+     * 
+     * @return
+     */
+    public int getPrivilegeCacheGeneration() {
+        return cacheGeneration.get();
+    }
+
+    /**
+     * Marks all cached effective privileges as stale. Called whenever a
+     * privilege is registered, the role of a player in any group changes or a
+     * group is destroyed, so a cache only needs to compare its generation
+     * with the current one.
+     */
+    public void invalidatePrivilegeCaches() {
+        cacheGeneration.incrementAndGet();
+    }
 }
@@ -19,8 +19,6 @@
  */
 package com.volumetricpixels.politics.protection;
 
-import java.util.List;
-
 import org.spout.api.entity.Entity;
 import org.spout.api.entity.Player;
 import org.spout.api.event.EventHandler;
@@ -28,10 +26,8 @@ import org.spout.api.event.Listener;
 import org.spout.api.event.Order;
 import org.spout.api.event.server.protection.EntityCanBreakEvent;
 import org.spout.api.event.server.protection.EntityCanBuildEvent;
-import org.spout.api.geo.discrete.Point;
 
 import com.volumetricpixels.politics.Politics;
-import com.volumetricpixels.politics.group.Group;
 import com.volumetricpixels.politics.group.privilege.GroupPlotPrivileges;
 import com.volumetricpixels.politics.world.Plot;
 
@@ -43,18 +39,14 @@ public class PoliticsProtectionListener implements Listener {
     public void onEntityCanBreak(final EntityCanBreakEvent event) {
         final Entity entity = event.getEntity();
         final Plot plot = Politics.getPlotAt(event.getBlock().getPosition());
-        final List<Group> owners = plot.getPoliticsWorld().getOwners(plot.getBasePoint().getBlockX(), plot.getBasePoint().getBlockY(), plot.getBasePoint().getBlockZ());
 
-        if (owners.isEmpty()) {
+        if (plot.getOwnerIds().isEmpty()) {
             return;
         }
 
         if (entity instanceof Player) {
-            final Player player = (Player) entity;
-            for (final Group group : owners) {
-                if (!group.can(player, GroupPlotPrivileges.BUILD)) {
-                    event.setCancelled(true);
-                }
+            if (!plot.can((Player) entity, GroupPlotPrivileges.BUILD)) {
+                event.setCancelled(true);
             }
         } else {
             // TODO: Configurable entity damage to plots (eg creeper explosions,
@@ -66,19 +58,14 @@ public class PoliticsProtectionListener implements Listener {
     public void onEntityCanBuild(final EntityCanBuildEvent event) {
         final Entity entity = event.getEntity();
         final Plot plot = Politics.getPlotAt(event.getPoint());
-        final Point base = plot.getBasePoint();
-        final List<Group> owners = plot.getPoliticsWorld().getOwners(base.getBlockX(), base.getBlockY(), base.getBlockZ());
 
-        if (owners.isEmpty()) {
+        if (plot.getOwnerIds().isEmpty()) {
             return;
         }
 
         if (entity instanceof Player) {
-            final Player player = (Player) entity;
-            for (final Group group : owners) {
-                if (!group.can(player, GroupPlotPrivileges.BUILD)) {
-                    event.setCancelled(true);
-                }
+            if (!plot.can((Player) entity, GroupPlotPrivileges.BUILD)) {
+                event.setCancelled(true);
             }
         } else {
             // TODO: other entities (such as AI)
@@ -0,0 +1,207 @@
+/*
+ * This file is part of Politics.
+ * 
+ * Copyright (c) 2012-2012, VolumetricPixels <http://volumetricpixels.com/>
+ * Politics is licensed under the Affero General Public License Version 3.
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.volumetricpixels.politics.universe;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.bson.types.BasicBSONList;
+
+import com.volumetricpixels.politics.data.Storable;
+import com.volumetricpixels.politics.util.DataUtils;
+
+/**
+ * Hands out group ids in constant time. New ids come from a counter that is
+ * stored with the data, so it never runs into ids of existing groups.
+ * 
+ * Ids of destroyed groups can be handed out again, but only if reuse is
+ * enabled: plots and other plugins may still refer to a destroyed group by its
+ * id, and would then refer to the new group.
+ */
+public class GroupIdAllocator implements Storable {
+    /**
+     * The next id the counter hands out
+     */
+    private final AtomicInteger next;
+    /**
+     * Released ids waiting to be handed out again, in the order they were
+     * released
+     */
+    private final Queue<Integer> free;
+    /**
+     * The ids in the queue, so reserving an id doesn't search the queue
+     */
+    private final Set<Integer> freeIds;
+    /**
+     * Whether released ids are handed out again
+     */
+    private final boolean reuse;
+    /**
+     * True if this allocator changed since it was last stored
+     */
+    private volatile boolean dirty = true;
+
+    /**
+     * C'tor
+     * 
+     * @param reuse
+     *            Whether ids of destroyed groups are handed out again
+     */
+    public GroupIdAllocator(final boolean reuse) {
+        this(0, new ConcurrentLinkedQueue<Integer>(), reuse);
+    }
+
+    /**
+     * C'tor
+     * 
+     * @param next
+     * @param free
+     * @param reuse
+     */
+    private GroupIdAllocator(final int next, final Queue<Integer> free, final boolean reuse) {
+        this.next = new AtomicInteger(next);
+        this.free = free;
+        freeIds = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+        freeIds.addAll(free);
+        this.reuse = reuse;
+    }
+
+    /**
+     * Gets an id no group has.
+     * 
+     * @return
+     */
+    public int allocate() {
+        if (reuse) {
+            Integer id;
+            while ((id = free.poll()) != null) {
+                // Ids reserved since they were released are skipped
+                if (freeIds.remove(id)) {
+                    dirty = true;
+                    return id;
+                }
+            }
+        }
+        // The counter stops at Integer.MAX_VALUE instead of wrapping around,
+        // so it keeps refusing once it ran out
+        int id;
+        do {
+            id = next.get();
+            if (id == Integer.MAX_VALUE) {
+                throw new IllegalStateException("Ran out of group ids!");
+            }
+        } while (!next.compareAndSet(id, id + 1));
+        dirty = true;
+        return id;
+    }
+
+    /**
+     * Marks the given id as taken, for groups that got their id some other
+     * way, such as by being loaded or replayed.
+     * 
+     * @param id
+     */
+    public void reserve(final int id) {
+        int current;
+        while ((current = next.get()) <= id && id != Integer.MAX_VALUE) {
+            if (next.compareAndSet(current, id + 1)) {
+                dirty = true;
+                break;
+            }
+        }
+        // Left in the queue, allocate() skips it
+        if (reuse && freeIds.remove(id)) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Releases the id of a destroyed group. Does nothing unless reuse is
+     * enabled.
+     * 
+     * @param id
+     */
+    public void release(final int id) {
+        if (reuse && freeIds.add(id)) {
+            free.add(id);
+            dirty = true;
+        }
+    }
+
+    @Override
+    public BSONObject toBSONObject() {
+        final BasicBSONObject object = new BasicBSONObject();
+        object.put("next", next.get());
+        final BasicBSONList freeList = new BasicBSONList();
+        // The queue may still hold ids that were reserved, and then released
+        // again, since they were first released
+        final Set<Integer> added = new HashSet<Integer>();
+        for (final Integer id : free) {
+            if (freeIds.contains(id) && added.add(id)) {
+                freeList.add(id);
+            }
+        }
+        object.put("free", freeList);
+        return object;
+    }
+
+    @Override
+    public boolean canStore() {
+        return true;
+    }
+
+    @Override
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    @Override
+    public void setDirty(final boolean dirty) {
+        this.dirty = dirty;
+    }
+
+    /**
+     * Gets the GroupIdAllocator from the given BSONObject.
+     * 
+     * @param object
+     * @param reuse
+     *            Whether ids of destroyed groups are handed out again
+     * @return
+     */
+    public static GroupIdAllocator fromBSONObject(final BSONObject object, final boolean reuse) {
+        final BasicBSONObject bobject = DataUtils.toBasicBSONObject(object);
+        final Queue<Integer> free = new ConcurrentLinkedQueue<Integer>();
+        if (reuse && bobject.containsField("free")) {
+            for (final Object id : DataUtils.getList(bobject.get("free"))) {
+                free.add(((Number) id).intValue());
+            }
+        }
+        final GroupIdAllocator allocator = new GroupIdAllocator(bobject.getInt("next", 0), free, reuse);
+        allocator.setDirty(false);
+        return allocator;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * This file is part of Politics.
+ * 
+ * Copyright (c) 2012-2012, VolumetricPixels <http://volumetricpixels.com/>
+ * Politics is licensed under the Affero General Public License Version 3.
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.volumetricpixels.politics.universe;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.volumetricpixels.politics.group.Group;
+
+/**
+ * A hash index of the groups of a universe by the value of one property. It is
+ * only changed while holding the monitor of the universe, and replaces its
+ * sets on change so it can be read without locking.
+ */
+final class GroupPropertyIndex {
+    /**
+     * The property id this index covers
+     */
+    private final int property;
+    /**
+     * True if String values are indexed case-insensitively
+     */
+    private final boolean ignoreCase;
+    /**
+     * Groups mapped to by their (normalized) property value. The sets are
+     * unmodifiable.
+     */
+    private final ConcurrentMap<Object, Set<Group>> groups = new ConcurrentHashMap<Object, Set<Group>>();
+
+    /**
+     * C'tor
+     * 
+     * @param property
+     * @param ignoreCase
+     */
+    GroupPropertyIndex(final int property, final boolean ignoreCase) {
+        this.property = property;
+        this.ignoreCase = ignoreCase;
+    }
+
+    /**
+     * Gets the property id this index covers.
+     * 
+     * @return
+     */
+    int getProperty() {
+        return property;
+    }
+
+    /**
+     * Checks if String values are compared ignoring case.
+     * 
+     * @return
+     */
+    boolean isIgnoreCase() {
+        return ignoreCase;
+    }
+
+    /**
+     * Adds a group under the given value.
+     * 
+     * @param group
+     * @param value
+     * @return False if another group was already indexed under the value
+     */
+    boolean add(final Group group, final Object value) {
+        if (value == null) {
+            return true;
+        }
+        final Object key = normalize(value);
+        final Set<Group> old = groups.get(key);
+        if (old == null) {
+            groups.put(key, Collections.singleton(group));
+            return true;
+        }
+        final Set<Group> set = new HashSet<Group>(old);
+        set.add(group);
+        groups.put(key, Collections.unmodifiableSet(set));
+        return set.size() == 1;
+    }
+
+    /**
+     * Removes a group from under the given value.
+     * 
+     * @param group
+     * @param value
+     */
+    void remove(final Group group, final Object value) {
+        if (value == null) {
+            return;
+        }
+        final Object key = normalize(value);
+        final Set<Group> old = groups.get(key);
+        if (old == null || !old.contains(group)) {
+            return;
+        }
+        final Set<Group> set = new HashSet<Group>(old);
+        set.remove(group);
+        if (set.isEmpty()) {
+            groups.remove(key);
+        } else {
+            groups.put(key, Collections.unmodifiableSet(set));
+        }
+    }
+
+    /**
+     * Gets the groups indexed under the given value. When the index ignores
+     * case these may differ in case from the value, so callers still need to
+     * check the actual property.
+     * 
+     * @param value
+     * @return an unmodifiable set of candidate groups
+     */
+    Set<Group> get(final Object value) {
+        if (value == null) {
+            return Collections.emptySet();
+        }
+        final Set<Group> set = groups.get(normalize(value));
+        if (set == null) {
+            return Collections.emptySet();
+        }
+        return set;
+    }
+
+    /**
+     * Gets the key a value is indexed under.
+     * 
+     * @param value
+     * @return
+     */
+    private Object normalize(final Object value) {
+        if (ignoreCase && value instanceof String) {
+            return ((String) value).toLowerCase();
+        }
+        return value;
+    }
+}
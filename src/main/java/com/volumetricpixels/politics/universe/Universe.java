@@ -19,16 +19,24 @@
  */
 package com.volumetricpixels.politics.universe;
 
+import gnu.trove.TCollections;
+import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
 import gnu.trove.map.hash.TLongObjectHashMap;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -44,6 +52,7 @@ import com.volumetricpixels.politics.PoliticsPlugin;
 import com.volumetricpixels.politics.data.Storable;
 import com.volumetricpixels.politics.group.Citizen;
 import com.volumetricpixels.politics.group.Group;
+import com.volumetricpixels.politics.group.GroupProperty;
 import com.volumetricpixels.politics.group.level.GroupLevel;
 import com.volumetricpixels.politics.world.PoliticsWorld;
 
@@ -52,7 +61,14 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 
 /**
- * Represents a headless group of all groups within its scope
+ * Represents a headless group of all groups within its scope.
+ * 
+ * Changes to the groups, hierarchy, membership and property indexes of a
+ * universe are made while holding the monitor of the universe, so each
+ * universe is a lock stripe of its own. Reads never take it: the hierarchy
+ * and membership are kept in concurrent maps of immutable sets that are
+ * replaced on change, and the group lists are handed out as immutable
+ * snapshots.
  */
 public class Universe implements Storable {
     /**
@@ -68,19 +84,51 @@ public class Universe implements Storable {
      */
     private final List<PoliticsWorld> worlds;
     /**
-     * The groups in this universe manager.
+     * Unmodifiable view of worlds.
+     */
+    private final List<PoliticsWorld> worldsView;
+    /**
+     * The groups in this universe, keyed by their id.
+     */
+    private final TIntObjectMap<Group> groups;
+    /**
+     * Contains the immediate children of each group. The sets are
+     * unmodifiable and replaced on every change.
+     */
+    private final ConcurrentMap<Group, Set<Group>> children;
+    /**
+     * Groups in the given levels. Only accessed while holding the monitor.
+     */
+    private final Map<GroupLevel, Set<Group>> levels;
+    /**
+     * The groups each player is an immediate member of. The sets are
+     * unmodifiable and replaced on every change.
+     */
+    private final ConcurrentMap<String, Set<Group>> citizenGroups;
+    /**
+     * Hash indexes of group properties, keyed by property id. Replaced when an
+     * index is added.
+     */
+    private volatile TIntObjectMap<GroupPropertyIndex> propertyIndexes;
+    /**
+     * Incremented whenever a group is created, destroyed or moved in the
+     * hierarchy. Snapshots built for an older version are stale.
+     */
+    private volatile int groupsVersion;
+    /**
+     * Snapshot of all groups handed out by {@link #getGroupsView()}.
      */
-    private final List<Group> groups;
+    private volatile GroupsSnapshot<List<Group>> groupsSnapshot;
     /**
-     * Contains the immediate children of each group.
+     * Snapshots handed out by {@link #getGroupsView(GroupLevel)}.
      */
-    private final Map<Group, Set<Group>> children;
+    private final ConcurrentMap<GroupLevel, GroupsSnapshot<List<Group>>> levelSnapshots;
     /**
-     * Groups in the given levels.
+     * True if this universe changed since it was last stored.
      */
-    private final Map<GroupLevel, List<Group>> levels;
+    private volatile boolean dirty = true;
     /**
-     * Cache containing citizens.
+     * Cache containing citizens. Null unless enabled in the config.
      */
     private LoadingCache<String, Set<Group>> citizenGroupCache;
 
@@ -108,14 +156,39 @@ public class Universe implements Storable {
         this.name = name;
         rules = properties;
         this.worlds = worlds;
-        this.groups = groups;
-        this.children = children;
-
-        buildCitizenCache();
+        worldsView = Collections.unmodifiableList(worlds);
+        this.groups = TCollections.synchronizedMap(new TIntObjectHashMap<Group>(groups.size()));
+        levelSnapshots = new ConcurrentHashMap<GroupLevel, GroupsSnapshot<List<Group>>>();
+        this.children = new ConcurrentHashMap<Group, Set<Group>>();
 
-        levels = new HashMap<GroupLevel, List<Group>>();
+        levels = new HashMap<GroupLevel, Set<Group>>();
+        citizenGroups = new ConcurrentHashMap<String, Set<Group>>();
+        propertyIndexes = new TIntObjectHashMap<GroupPropertyIndex>();
         for (final Group group : groups) {
+            this.groups.put(group.getUid(), group);
             getInternalGroups(group.getLevel()).add(group);
+            for (final String player : group.getImmediatePlayers()) {
+                addCitizenGroup(player, group);
+            }
+        }
+        for (final Entry<Group, Set<Group>> entry : children.entrySet()) {
+            final Set<Group> childs = new LinkedHashSet<Group>();
+            for (final Group child : entry.getValue()) {
+                if (child != null) {
+                    child.setParent(entry.getKey());
+                    childs.add(child);
+                }
+            }
+            setInternalChildGroups(entry.getKey(), childs);
+        }
+
+        if (Politics.getConfig().isCitizenGroupCacheEnabled()) {
+            buildCitizenCache();
+        }
+
+        addPropertyIndex(GroupProperty.TAG, true);
+        for (final int property : Politics.getConfig().getIndexedProperties()) {
+            addPropertyIndex(property, false);
         }
     }
 
@@ -132,13 +205,7 @@ public class Universe implements Storable {
         citizenGroupCache = builder.build(new CacheLoader<String, Set<Group>>() {
             @Override
             public Set<Group> load(final String name) {
-                final Set<Group> myGroups = new HashSet<Group>();
-                for (final Group group : groups) {
-                    if (group.isImmediateMember(name)) {
-                        myGroups.add(group);
-                    }
-                }
-                return myGroups;
+                return getInternalCitizenGroups(name);
             }
         });
     }
@@ -167,7 +234,26 @@ public class Universe implements Storable {
      * @return
      */
     public List<Group> getGroups() {
-        return new ArrayList<Group>(groups);
+        return new ArrayList<Group>(getGroupsView());
+    }
+
+    /**
+     * Gets an unmodifiable snapshot of all groups in the universe. The
+     * snapshot is shared between callers and only rebuilt after a group is
+     * created or destroyed, so iterating it allocates nothing.
+     * 
+     * @return
+     */
+    public List<Group> getGroupsView() {
+        final int version = groupsVersion;
+        GroupsSnapshot<List<Group>> snapshot = groupsSnapshot;
+        if (snapshot == null || snapshot.version != version) {
+            synchronized (this) {
+                snapshot = new GroupsSnapshot<List<Group>>(groupsVersion, Collections.unmodifiableList(new ArrayList<Group>(groups.valueCollection())));
+            }
+            groupsSnapshot = snapshot;
+        }
+        return snapshot.groups;
     }
 
     /**
@@ -179,8 +265,8 @@ public class Universe implements Storable {
      */
     public List<Group> getGroupsByProperty(final int property, final Object value) {
         final List<Group> groups = new ArrayList<Group>();
-        for (final Group group : getGroups()) {
-            if (group.getProperty(property).equals(value)) {
+        for (final Group group : getCandidates(property, value, getGroupsView())) {
+            if (hasProperty(group, property, value)) {
                 groups.add(group);
             }
         }
@@ -197,8 +283,8 @@ public class Universe implements Storable {
      */
     public List<Group> getGroupsByProperty(final GroupLevel level, final int property, final Object value) {
         final List<Group> groups = new ArrayList<Group>();
-        for (final Group group : getGroups(level)) {
-            if (group.getProperty(property).equals(value)) {
+        for (final Group group : getCandidates(property, value, getGroupsView(level))) {
+            if (group.getLevel().equals(level) && hasProperty(group, property, value)) {
                 groups.add(group);
             }
         }
@@ -213,8 +299,8 @@ public class Universe implements Storable {
      * @return
      */
     public Group getFirstGroupByProperty(final int property, final Object value) {
-        for (final Group group : getGroups()) {
-            if (group.getProperty(property).equals(value)) {
+        for (final Group group : getCandidates(property, value, getGroupsView())) {
+            if (hasProperty(group, property, value)) {
                 return group;
             }
         }
@@ -230,14 +316,124 @@ public class Universe implements Storable {
      * @return
      */
     public Group getFirstGroupByProperty(final GroupLevel level, final int property, final Object value) {
-        for (final Group group : getGroups(level)) {
-            if (group.getProperty(property).equals(value)) {
+        for (final Group group : getCandidates(property, value, getGroupsView(level))) {
+            if (group.getLevel().equals(level) && hasProperty(group, property, value)) {
+                return group;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the group with the given tag, ignoring case.
+     * 
+     * @param tag
+     * @return
+     */
+    public Group getGroupByTag(final String tag) {
+        for (final Group group : getCandidates(GroupProperty.TAG, tag, getGroupsView())) {
+            final String groupTag = group.getStringProperty(GroupProperty.TAG);
+            if (groupTag != null && groupTag.equalsIgnoreCase(tag)) {
                 return group;
             }
         }
         return null;
     }
 
+    /**
+     * Checks if the given group may take the given tag. Tags are unique within
+     * a universe, ignoring case.
+     * 
+     * @param group
+     * @param tag
+     * @return False if another group of this universe has the tag
+     */
+    public synchronized boolean isTagAvailable(final Group group, final Object tag) {
+        for (final Group other : propertyIndexes.get(GroupProperty.TAG).get(tag)) {
+            if (other != group) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds a hash index on the given property so lookups by its value don't
+     * have to scan every group. The tag is always indexed, ignoring case.
+     * Groups whose properties are unloaded stay unloaded.
+     * 
+     * @param property
+     * @param ignoreCase
+     *            True if String values should be indexed ignoring case
+     */
+    public synchronized void addPropertyIndex(final int property, final boolean ignoreCase) {
+        if (propertyIndexes.containsKey(property)) {
+            return;
+        }
+        final GroupPropertyIndex index = new GroupPropertyIndex(property, ignoreCase);
+        for (final Group group : groups.valueCollection()) {
+            final Object value = group.peekProperty(property);
+            if (!index.add(group, value) && property == GroupProperty.TAG) {
+                PoliticsPlugin.logger().log(Level.WARNING, "Tag '" + value + "' is used by more than one group in universe " + name + "!");
+            }
+        }
+        final TIntObjectMap<GroupPropertyIndex> indexes = new TIntObjectHashMap<GroupPropertyIndex>(propertyIndexes);
+        indexes.put(property, index);
+        propertyIndexes = indexes;
+    }
+
+    /**
+     * Updates the property indexes after a property of a group changed.
+     * Called by {@link Group#setProperty(int, Object)} while holding the
+     * monitor of this universe.
+     * 
+     * @param group
+     * @param property
+     * @param oldValue
+     * @param newValue
+     */
+    public synchronized void propertyChanged(final Group group, final int property, final Object oldValue, final Object newValue) {
+        final GroupPropertyIndex index = propertyIndexes.get(property);
+        if (index == null) {
+            return;
+        }
+        index.remove(group, oldValue);
+        if (!index.add(group, newValue) && property == GroupProperty.TAG) {
+            PoliticsPlugin.logger().log(Level.WARNING, "Tag '" + newValue + "' is used by more than one group in universe " + name + "!");
+        }
+    }
+
+    /**
+     * Gets the groups that could have the given value for the given property,
+     * using an index if there is one.
+     * 
+     * @param property
+     * @param value
+     * @param all
+     *            The groups to scan if the property isn't indexed
+     * @return
+     */
+    private Collection<Group> getCandidates(final int property, final Object value, final Collection<Group> all) {
+        final GroupPropertyIndex index = propertyIndexes.get(property);
+        if (index == null) {
+            return all;
+        }
+        return index.get(value);
+    }
+
+    /**
+     * Checks if the given group has the given value for the given property.
+     * 
+     * @param group
+     * @param property
+     * @param value
+     * @return
+     */
+    private static boolean hasProperty(final Group group, final int property, final Object value) {
+        final Object p = group.getProperty(property);
+        return p == null ? value == null : p.equals(value);
+    }
+
     /**
      * Adds the given PoliticsWorld to this Universe.
      * 
@@ -264,6 +460,15 @@ public class Universe implements Storable {
         return new ArrayList<PoliticsWorld>(worlds);
     }
 
+    /**
+     * Gets an unmodifiable view of the worlds this universe is part of.
+     * 
+     * @return
+     */
+    public List<PoliticsWorld> getWorldsView() {
+        return worldsView;
+    }
+
     /**
      * Gets a list of all groups with the given level in this universe.
      * 
@@ -271,19 +476,40 @@ public class Universe implements Storable {
      * @return
      */
     public List<Group> getGroups(final GroupLevel level) {
-        return new ArrayList<Group>(getInternalGroups(level));
+        return new ArrayList<Group>(getGroupsView(level));
     }
 
     /**
-     * Gets the internal groups corresponding with the given level.
+     * Gets an unmodifiable snapshot of the groups with the given level in this
+     * universe, shared between callers until the groups of this universe
+     * change.
      * 
      * @param level
      * @return
      */
-    private List<Group> getInternalGroups(final GroupLevel level) {
-        List<Group> levelGroups = levels.get(level);
+    public List<Group> getGroupsView(final GroupLevel level) {
+        final int version = groupsVersion;
+        GroupsSnapshot<List<Group>> snapshot = levelSnapshots.get(level);
+        if (snapshot == null || snapshot.version != version) {
+            synchronized (this) {
+                snapshot = new GroupsSnapshot<List<Group>>(groupsVersion, Collections.unmodifiableList(new ArrayList<Group>(getInternalGroups(level))));
+            }
+            levelSnapshots.put(level, snapshot);
+        }
+        return snapshot.groups;
+    }
+
+    /**
+     * Gets the internal groups corresponding with the given level. Must be
+     * called while holding the monitor.
+     * 
+     * @param level
+     * @return
+     */
+    private Set<Group> getInternalGroups(final GroupLevel level) {
+        Set<Group> levelGroups = levels.get(level);
         if (levelGroups == null) {
-            levelGroups = new ArrayList<Group>();
+            levelGroups = new LinkedHashSet<Group>();
             levels.put(level, levelGroups);
         }
         return levelGroups;
@@ -299,6 +525,18 @@ public class Universe implements Storable {
         return new HashSet<Group>(getInternalChildGroups(group));
     }
 
+    /**
+     * Gets an unmodifiable set of the child groups of the given group. The set
+     * is replaced rather than modified when the children change, so it can be
+     * iterated safely without copying.
+     * 
+     * @param group
+     * @return
+     */
+    public Set<Group> getChildGroupsView(final Group group) {
+        return getInternalChildGroups(group);
+    }
+
     /**
      * Gets the internal child groups of the given group.
      * 
@@ -307,15 +545,31 @@ public class Universe implements Storable {
      */
     private Set<Group> getInternalChildGroups(final Group group) {
         if (group == null) {
-            return new HashSet<Group>();
+            return Collections.emptySet();
         }
         final Set<Group> childs = children.get(group);
         if (childs == null) {
-            return new HashSet<Group>();
+            return Collections.emptySet();
         }
         return childs;
     }
 
+    /**
+     * Replaces the internal child groups of the given group. Must be called
+     * while holding the monitor.
+     * 
+     * @param group
+     * @param childs
+     *            The new children, which must not be modified afterwards
+     */
+    private void setInternalChildGroups(final Group group, final Set<Group> childs) {
+        if (childs.isEmpty()) {
+            children.remove(group);
+        } else {
+            children.put(group, Collections.unmodifiableSet(childs));
+        }
+    }
+
     /**
      * Adds the given child as a child for the given group.
      * 
@@ -323,17 +577,41 @@ public class Universe implements Storable {
      * @param child
      * @return True if the group could be made a child
      */
-    public boolean addChildGroup(final Group group, final Group child) {
+    public synchronized boolean addChildGroup(final Group group, final Group child) {
         if (!group.getLevel().canBeChild(child.getLevel())) {
             return false;
         }
+        Politics.getWriteAheadLog().logAddChildGroup(group, child);
+        attachChildGroup(group, child);
+        return true;
+    }
 
-        Set<Group> childs = children.get(group);
-        if (childs == null) {
-            childs = new HashSet<Group>();
+    /**
+     * Makes a group a child of another without checking the group levels or
+     * logging the change. Used to replay the write-ahead log.
+     * 
+     * @param group
+     * @param child
+     */
+    public synchronized void replayAddChildGroup(final Group group, final Group child) {
+        attachChildGroup(group, child);
+    }
+
+    private void attachChildGroup(final Group group, final Group child) {
+        final Group oldParent = child.getParent();
+        if (oldParent != null && oldParent != group) {
+            final Set<Group> siblings = new LinkedHashSet<Group>(getInternalChildGroups(oldParent));
+            siblings.remove(child);
+            setInternalChildGroups(oldParent, siblings);
+            membershipChanged(oldParent);
         }
+        child.setParent(group);
+
+        final Set<Group> childs = new LinkedHashSet<Group>(getInternalChildGroups(group));
         childs.add(child);
-        return true;
+        setInternalChildGroups(group, childs);
+        groupsChanged();
+        membershipChanged(group);
     }
 
     /**
@@ -344,12 +622,17 @@ public class Universe implements Storable {
      * @return True if the child was removed, false if the child was not a child
      *         in the first place
      */
-    public boolean removeChildGroup(final Group group, final Group child) {
-        final Set<Group> childs = children.get(group);
-        if (childs == null) {
+    public synchronized boolean removeChildGroup(final Group group, final Group child) {
+        final Set<Group> childs = new LinkedHashSet<Group>(getInternalChildGroups(group));
+        if (!childs.remove(child)) {
             return false;
         }
-        return childs.remove(child);
+        setInternalChildGroups(group, childs);
+        child.setParent(null);
+        Politics.getWriteAheadLog().logRemoveChildGroup(group, child);
+        groupsChanged();
+        membershipChanged(group);
+        return true;
     }
 
     /**
@@ -359,10 +642,29 @@ public class Universe implements Storable {
      * @return
      */
     public Group createGroup(final GroupLevel level) {
-        final Group group = new Group(Politics.getUniverseManager().nextId(), level);
+        return createGroup(Politics.getUniverseManager().nextId(), level);
+    }
 
-        groups.add(group);
-        getInternalGroups(level).add(group);
+    /**
+     * Creates a new group with the given id and level.
+     * 
+     * @param uid
+     *            An id no other group has
+     * @param level
+     * @return
+     */
+    public Group createGroup(final int uid, final GroupLevel level) {
+        final Group group = new Group(uid, level);
+        group.initialize(this);
+
+        synchronized (this) {
+            groups.put(uid, group);
+            getInternalGroups(level).add(group);
+            Politics.getUniverseManager().registerGroup(group);
+            Politics.getWriteAheadLog().logCreateGroup(group);
+            groupsChanged();
+        }
+        setDirty(true);
 
         return group;
     }
@@ -384,27 +686,55 @@ public class Universe implements Storable {
      * @param deep
      *            True if child groups should be deleted
      */
-    public void destroyGroup(final Group group, final boolean deep) {
-        groups.remove(group);
+    public synchronized void destroyGroup(final Group group, final boolean deep) {
+        Politics.getWriteAheadLog().logDestroyGroup(group, deep);
+        groups.remove(group.getUid());
+        Politics.getUniverseManager().unregisterGroup(group);
         getInternalGroups(group.getLevel()).remove(group);
-        for (final String member : group.getPlayers()) {
-            invalidateCitizenGroups(member);
+        for (final GroupPropertyIndex index : propertyIndexes.valueCollection()) {
+            index.remove(group, group.getProperty(index.getProperty()));
         }
-        if (deep) {
-            for (final Group child : group.getGroups()) {
-                destroyGroup(child, true);
+        for (final String member : group.getImmediatePlayers()) {
+            removeCitizenGroup(member, group);
+        }
+        // Detach the children first so destroying them doesn't copy this
+        // group's set of children over and over
+        final Set<Group> orphans = children.remove(group);
+        if (orphans != null) {
+            for (final Group orphan : orphans) {
+                orphan.setParent(null);
+                if (deep) {
+                    destroyGroup(orphan, true);
+                }
             }
         }
 
-        children.remove(group);
-        // This can be expensive -- beware!
-        for (final Set<Group> childrenOfAGroup : children.values()) {
-            if (childrenOfAGroup.contains(group)) {
-                childrenOfAGroup.remove(group);
-            }
+        final Group parent = group.getParent();
+        if (parent != null) {
+            final Set<Group> siblings = new LinkedHashSet<Group>(getInternalChildGroups(parent));
+            siblings.remove(group);
+            setInternalChildGroups(parent, siblings);
+            group.setParent(null);
+            membershipChanged(parent);
         }
+        // Plots it owned no longer need its members' privileges
+        Politics.getPrivilegeManager().invalidatePrivilegeCaches();
+        groupsChanged();
+        setDirty(true);
+    }
+
+    /**
+     * Gets the group with the given id in this universe.
+     * 
+     * @param uid
+     * @return The group, or null if this universe has no group with that id
+     */
+    public Group getGroup(final int uid) {
+        return groups.get(uid);
     }
 
+
+
     /**
      * Gets the citizen corresponding with the given player name.
      * 
@@ -423,12 +753,99 @@ public class Universe implements Storable {
      * @return
      */
     public Set<Group> getCitizenGroups(final String player) {
+        return new HashSet<Group>(getCitizenGroupsView(player));
+    }
+
+    /**
+     * Gets an unmodifiable set of the groups of the given citizen. The set is
+     * replaced rather than modified when the citizen joins or leaves a group,
+     * so it can be iterated safely without copying.
+     * 
+     * @param player
+     * @return The groups, or an empty set if they could not be loaded
+     */
+    public Set<Group> getCitizenGroupsView(final String player) {
+        if (citizenGroupCache == null) {
+            return getInternalCitizenGroups(player);
+        }
         try {
-            return new HashSet<Group>(citizenGroupCache.get(player));
+            return citizenGroupCache.get(player);
         } catch (final ExecutionException e) {
             PoliticsPlugin.logger().log(Level.SEVERE, "Could not load a set of citizen groups! This is a PROBLEM!", e);
-            return null;
+            return Collections.emptySet();
+        }
+    }
+
+    /**
+     * Gets the internal set of groups the given player is an immediate member
+     * of. It is unmodifiable and replaced on every change.
+     * 
+     * @param player
+     * @return
+     */
+    private Set<Group> getInternalCitizenGroups(final String player) {
+        final Set<Group> playerGroups = citizenGroups.get(player);
+        if (playerGroups == null) {
+            return Collections.emptySet();
         }
+        return playerGroups;
+    }
+
+    /**
+     * Records that the given player has become an immediate member of the
+     * given group. Called by {@link Group#setRole} while holding the monitor
+     * of this universe.
+     * 
+     * @param player
+     * @param group
+     */
+    public synchronized void addCitizenGroup(final String player, final Group group) {
+        final Set<Group> playerGroups = new HashSet<Group>(getInternalCitizenGroups(player));
+        playerGroups.add(group);
+        citizenGroups.put(player, Collections.unmodifiableSet(playerGroups));
+        invalidateCitizenGroups(player);
+        membershipChanged(group);
+    }
+
+    /**
+     * Records that the given player is no longer an immediate member of the
+     * given group. Called by {@link Group#removeRole(String)} while holding
+     * the monitor of this universe.
+     * 
+     * @param player
+     * @param group
+     */
+    public synchronized void removeCitizenGroup(final String player, final Group group) {
+        final Set<Group> playerGroups = new HashSet<Group>(getInternalCitizenGroups(player));
+        if (playerGroups.remove(group)) {
+            if (playerGroups.isEmpty()) {
+                citizenGroups.remove(player);
+            } else {
+                citizenGroups.put(player, Collections.unmodifiableSet(playerGroups));
+            }
+        }
+        invalidateCitizenGroups(player);
+        membershipChanged(group);
+    }
+
+    /**
+     * Marks all group snapshots as stale. Must be called while holding the
+     * monitor.
+     */
+    private void groupsChanged() {
+        groupsVersion++;
+    }
+
+    /**
+     * Marks everything derived from the players of the given group and its
+     * ancestors as stale. Must be called while holding the monitor.
+     * 
+     * @param group
+     *            The group whose players or children changed
+     */
+    private void membershipChanged(final Group group) {
+        group.membershipChanged();
+        setDirty(true);
     }
 
     /**
@@ -437,20 +854,40 @@ public class Universe implements Storable {
      * @param citizen
      */
     public void invalidateCitizenGroups(final String citizen) {
-        citizenGroupCache.invalidate(citizen);
+        if (citizenGroupCache != null) {
+            citizenGroupCache.invalidate(citizen);
+        }
     }
 
-    @Override
-    public BasicBSONObject toBSONObject() {
+    /**
+     * Converts the name, rules and worlds of this universe into a BSON
+     * object, leaving out its groups.
+     * 
+     * @return
+     */
+    public BasicBSONObject toInfoBSONObject() {
         final BasicBSONObject bson = new BasicBSONObject();
 
         bson.put("name", name);
         bson.put("rules", rules.getName());
 
+        final BasicBSONList worldsBson = new BasicBSONList();
+        for (final PoliticsWorld world : worlds) {
+            worldsBson.add(world.getName());
+        }
+        bson.put("worlds", worldsBson);
+
+        return bson;
+    }
+
+    @Override
+    public BasicBSONObject toBSONObject() {
+        final BasicBSONObject bson = toInfoBSONObject();
+
         final BasicBSONList groupsBson = new BasicBSONList();
         final BasicBSONObject childrenBson = new BasicBSONObject();
 
-        for (final Group group : groups) {
+        for (final Group group : getGroupsView()) {
             if (!group.canStore()) {
                 continue;
             }
@@ -459,7 +896,7 @@ public class Universe implements Storable {
 
             // children
             final BasicBSONList children = new BasicBSONList();
-            for (final Group child : group.getGroups()) {
+            for (final Group child : getInternalChildGroups(group)) {
                 children.add(child.getUid());
             }
             childrenBson.put(Long.toHexString(group.getUid()), children);
@@ -542,7 +979,7 @@ public class Universe implements Storable {
             final Set<Group> childrenn = new HashSet<Group>();
             final BasicBSONList childs = (BasicBSONList) childsObj;
             for (final Object childN : childs) {
-                final long theuid = (Long) childN;
+                final long theuid = ((Number) childN).longValue();
                 final Group ch = groups.get(theuid);
                 childrenn.add(ch);
             }
@@ -561,4 +998,34 @@ public class Universe implements Storable {
     public boolean canStore() {
         return true;
     }
+
+    @Override
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    @Override
+    public void setDirty(final boolean dirty) {
+        this.dirty = dirty;
+    }
+
+    /**
+     * An immutable collection of groups along with the groups version it was
+     * built for.
+     */
+    private static final class GroupsSnapshot<T> {
+        private final int version;
+        private final T groups;
+
+        /**
+         * C'tor
+         * 
+         * @param version
+         * @param groups
+         */
+        private GroupsSnapshot(final int version, final T groups) {
+            this.version = version;
+            this.groups = groups;
+        }
+    }
 }
@@ -19,50 +19,69 @@
  */
 package com.volumetricpixels.politics.universe;
 
+import gnu.trove.TCollections;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
 
 import java.io.File;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 
 import org.spout.api.geo.World;
 
-import org.apache.commons.io.FileUtils;
-
 import org.bson.BSONDecoder;
-import org.bson.BSONEncoder;
 import org.bson.BSONObject;
 import org.bson.BasicBSONDecoder;
-import org.bson.BasicBSONEncoder;
+import org.bson.BasicBSONObject;
+import org.bson.types.BasicBSONList;
 
 import org.spout.cereal.config.ConfigurationException;
 import org.spout.cereal.config.yaml.YamlConfiguration;
 
 import com.volumetricpixels.politics.Politics;
 import com.volumetricpixels.politics.PoliticsPlugin;
-import com.volumetricpixels.politics.exception.InvalidConfigurationException;
+import com.volumetricpixels.politics.data.Snapshot;
+import com.volumetricpixels.politics.data.StorageBackend;
 import com.volumetricpixels.politics.group.Group;
-import com.volumetricpixels.politics.group.GroupProperty;
 import com.volumetricpixels.politics.group.level.GroupLevel;
+import com.volumetricpixels.politics.util.DataUtils;
 import com.volumetricpixels.politics.world.PoliticsWorld;
 
+import com.google.common.util.concurrent.MoreExecutors;
+
 /**
  * Contains all universes
  */
 public class UniverseManager {
+    /**
+     * Prefix of the keys of universe records
+     */
+    private static final String UNIVERSES = "universes/";
+    /**
+     * Key of the group id record
+     */
+    private static final String GROUP_IDS = "groupids.dat";
     /**
      * The rules of the universe.
      */
     private Map<String, UniverseRules> rules;
     /**
-     * Universes mapped to their names.
+     * Universes mapped to their names. Replaced rather than modified once
+     * loaded, so it can be read without locking.
      */
-    private Map<String, Universe> universes;
+    private volatile Map<String, Universe> universes;
     /**
      * Stores groups.
      */
@@ -72,9 +91,14 @@ public class UniverseManager {
      */
     private Map<PoliticsWorld, Map<GroupLevel, Universe>> worldLevels;
     /**
-     * The next id to assign a Group.
+     * Hands out the ids of new groups.
+     */
+    private GroupIdAllocator ids;
+    /**
+     * Keys of the records of destroyed universes and groups, removed with the
+     * next snapshot.
      */
-    private int nextId = 0xffffffff;
+    private final Queue<String> removedRecords = new ConcurrentLinkedQueue<String>();
 
     /**
      * C'tor
@@ -86,24 +110,47 @@ public class UniverseManager {
      * Loads the rules into memory.
      */
     public void loadRules() {
+        loadRules(MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Loads the rules into memory, parsing the rule files on the given
+     * executor.
+     * 
+     * @param executor
+     */
+    public void loadRules(final ExecutorService executor) {
         Politics.getFileSystem().getRulesDir().mkdirs();
         rules = new HashMap<String, UniverseRules>();
-        for (final File file : Politics.getFileSystem().getRulesDir().listFiles()) {
+        final File[] files = Politics.getFileSystem().getRulesDir().listFiles();
+        Arrays.sort(files);
+        final List<Callable<UniverseRules>> tasks = new ArrayList<Callable<UniverseRules>>();
+        for (final File file : files) {
             final String fileName = file.getName();
             if (!fileName.endsWith(".yml") || fileName.length() <= 4) {
                 continue;
             }
             final String name = fileName.substring(0, fileName.length() - 4);
 
-            final YamlConfiguration configFile = new YamlConfiguration(file);
-            try {
-                configFile.load();
-            } catch (final ConfigurationException ex) {
-                new InvalidConfigurationException("Invalid universe YAML file `" + fileName + "'!", ex).printStackTrace();
+            tasks.add(new Callable<UniverseRules>() {
+                @Override
+                public UniverseRules call() {
+                    final YamlConfiguration configFile = new YamlConfiguration(file);
+                    try {
+                        configFile.load();
+                    } catch (final ConfigurationException ex) {
+                        PoliticsPlugin.logger().log(Level.SEVERE, "Invalid universe YAML file `" + fileName + "'!", ex);
+                        return null;
+                    }
+                    return UniverseRules.load(name, configFile);
+                }
+            });
+        }
+
+        for (final UniverseRules thisRules : DataUtils.loadAll(executor, tasks)) {
+            if (thisRules == null) {
                 continue;
             }
-
-            final UniverseRules thisRules = UniverseRules.load(name, configFile);
             final String ruleName = thisRules.getName();
             rules.put(ruleName.toLowerCase(), thisRules);
         }
@@ -113,44 +160,78 @@ public class UniverseManager {
      * Loads all universes into memory from files.
      */
     public void loadUniverses() {
-        final BSONDecoder decoder = new BasicBSONDecoder();
-        universes = new HashMap<String, Universe>();
-        groups = new TIntObjectHashMap<Group>();
-        Politics.getFileSystem().getUniversesDir().mkdirs();
-        for (final File file : Politics.getFileSystem().getUniversesDir().listFiles()) {
-            final String fileName = file.getName();
-            if (!fileName.endsWith(".ptu") || fileName.length() <= 4) {
-                continue;
+        loadUniverses(MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Loads all universes into memory from the storage backend. The records
+     * are decoded on the given executor, then linked together on the calling
+     * thread in key order.
+     * 
+     * @param executor
+     */
+    public void loadUniverses(final ExecutorService executor) {
+        final Map<String, Universe> loaded = new LinkedHashMap<String, Universe>();
+        groups = TCollections.synchronizedMap(new TIntObjectHashMap<Group>());
+        ids = loadIds();
+        final StorageBackend storage = Politics.getStorageBackend();
+        final List<Callable<Universe>> tasks = new ArrayList<Callable<Universe>>();
+        for (final String key : storage.list(UNIVERSES)) {
+            if (storage.isFineGrained()) {
+                if (!key.endsWith("/universe")) {
+                    continue;
+                }
+                final String prefix = key.substring(0, key.length() - "universe".length());
+                tasks.add(new Callable<Universe>() {
+                    @Override
+                    public Universe call() {
+                        return readUniverseRecords(storage, prefix);
+                    }
+                });
+            } else {
+                if (!key.endsWith(".ptu") || key.length() <= UNIVERSES.length() + 4) {
+                    continue;
+                }
+                tasks.add(new Callable<Universe>() {
+                    @Override
+                    public Universe call() {
+                        final ByteBuffer data = storage.read(key);
+                        if (data == null) {
+                            PoliticsPlugin.logger().log(Level.SEVERE, "Universe file `" + key + "' is corrupt and has no valid backup!");
+                            return null;
+                        }
+
+                        final BSONDecoder decoder = new BasicBSONDecoder();
+                        final BSONObject object = decoder.readObject(DataUtils.toArray(data));
+                        return Universe.fromBSONObject(object);
+                    }
+                });
             }
+        }
 
-            byte[] data;
-            try {
-                data = FileUtils.readFileToByteArray(file);
-            } catch (final IOException ex) {
-                new InvalidConfigurationException("Could not read universe file `" + fileName + "'!", ex).printStackTrace();
+        for (final Universe universe : DataUtils.loadAll(executor, tasks)) {
+            if (universe == null) {
                 continue;
             }
+            universe.setDirty(false);
+            loaded.put(universe.getName(), universe);
 
-            final BSONObject object = decoder.readObject(data);
-
-            final Universe universe = Universe.fromBSONObject(object);
-            universes.put(universe.getName(), universe);
-
-            for (final Group group : universe.getGroups()) {
+            for (final Group group : universe.getGroupsView()) {
                 if (groups.put(group.getUid(), group) != null) {
                     PoliticsPlugin.logger().log(Level.WARNING, "Duplicate group id " + group.getUid() + "!");
                 }
-                if (group.getUid() > nextId) {
-                    nextId = group.getUid();
-                }
+                ids.reserve(group.getUid());
             }
         }
 
+        universes = loaded;
+        unloadColdGroups();
+
         // Populate World levels
         worldLevels = new HashMap<PoliticsWorld, Map<GroupLevel, Universe>>();
         for (final Universe universe : universes.values()) {
             for (final GroupLevel level : universe.getRules().getGroupLevels()) {
-                for (final PoliticsWorld world : universe.getWorlds()) {
+                for (final PoliticsWorld world : universe.getWorldsView()) {
                     Map<GroupLevel, Universe> levelMap = worldLevels.get(world);
                     if (levelMap == null) {
                         levelMap = new HashMap<GroupLevel, Universe>();
@@ -158,8 +239,8 @@ public class UniverseManager {
                     }
                     final Universe prev = levelMap.put(level, universe);
                     if (prev != null) {
-                        new InvalidConfigurationException("Multiple universes are conflicting on the same world! Universe name: "
-                                + universe.getName() + "; Rules name: " + universe.getRules().getName()).printStackTrace();
+                        PoliticsPlugin.logger().log(Level.SEVERE, "Multiple universes are conflicting on the same world! Universe name: "
+                                + universe.getName() + "; Rules name: " + universe.getRules().getName());
                     }
                 }
             }
@@ -170,24 +251,232 @@ public class UniverseManager {
      * Saves all universes in memory to files.
      */
     public void saveUniverses() {
-        final BSONEncoder encoder = new BasicBSONEncoder();
-        Politics.getFileSystem().getUniversesDir().mkdirs();
+        final Snapshot snapshot = new Snapshot();
+        snapshotUniverses(snapshot);
+        snapshot.write();
+    }
+
+    /**
+     * Adds the current state of all universes that changed since they were
+     * last saved to the given snapshot.
+     * 
+     * @param snapshot
+     */
+    public void snapshotUniverses(final Snapshot snapshot) {
+        final boolean fineGrained = Politics.getStorageBackend().isFineGrained();
+        // Everything stored by the previous snapshot is written by now
+        unloadColdGroups();
+        String removed;
+        while ((removed = removedRecords.poll()) != null) {
+            snapshot.remove(removed, removedRecords);
+        }
         for (final Universe universe : universes.values()) {
-            if (!universe.canStore()) {
+            if (!universe.canStore() || !universe.isDirty()) {
                 continue;
             }
-            final String fileName = universe.getName() + ".cou";
-            final File universeFile = new File(Politics.getFileSystem().getUniversesDir(), fileName);
-
-            final byte[] data = encoder.encode(universe.toBSONObject());
-            try {
-                FileUtils.writeByteArrayToFile(universeFile, data);
-            } catch (final IOException ex) {
-                PoliticsPlugin.logger().log(Level.SEVERE, "Could not save universe file `" + fileName + "' due to error!", ex);
+            if (!fineGrained) {
+                // The groups are stored with the universe. Only the group
+                // documents of groups that changed are built again.
+                final BSONObject object;
+                synchronized (universe) {
+                    for (final Group group : universe.getGroupsView()) {
+                        group.setDirty(false);
+                    }
+                    universe.setDirty(false);
+                    object = universe.toBSONObject();
+                }
+                snapshot.add(getUniverseKey(universe.getName()), universe, object);
+                continue;
+            }
+            // Cleaned before capturing, so groups changing meanwhile dirty it
+            // again
+            universe.setDirty(false);
+            // Only groups that changed are written again
+            for (final Group group : universe.getGroupsView()) {
+                if (!group.canStore() || !group.isDirty()) {
+                    continue;
+                }
+                // Changes are made while holding the universe, so none is
+                // half done when the group is captured
+                final BasicBSONObject record = new BasicBSONObject();
+                synchronized (universe) {
+                    group.setDirty(false);
+                    record.put("group", group.toBSONObject());
+                    final Group parent = group.getParent();
+                    if (parent != null) {
+                        record.put("parent", parent.getUid());
+                    }
+                }
+                snapshot.add(getGroupKey(universe.getName(), group.getUid()), group, record);
+            }
+            snapshot.add(getUniverseKey(universe.getName()), universe, universe.toInfoBSONObject());
+        }
+        if (ids.isDirty()) {
+            snapshot.add(GROUP_IDS, ids);
+        }
+    }
+
+    /**
+     * Marks every universe, group and the group ids as changed, so the next
+     * snapshot stores all of them.
+     */
+    public void markDirty() {
+        for (final Universe universe : universes.values()) {
+            for (final Group group : universe.getGroupsView()) {
+                group.setDirty(true);
+            }
+            universe.setDirty(true);
+        }
+        ids.setDirty(true);
+    }
+
+    /**
+     * Unloads the properties and players of the least recently used groups
+     * until no more than the configured number of groups are loaded. Groups
+     * with changes that are not stored yet or with online members stay
+     * loaded. Groups are only unloaded when each is stored in a record of its
+     * own, as reading one back must not read its whole universe.
+     */
+    private void unloadColdGroups() {
+        final int max = Politics.getConfig().getMaxLoadedGroups();
+        if (max <= 0 || !Politics.getStorageBackend().isFineGrained()) {
+            return;
+        }
+        final List<Group> loaded = new ArrayList<Group>();
+        for (final Universe universe : universes.values()) {
+            for (final Group group : universe.getGroupsView()) {
+                if (group.isLoaded()) {
+                    loaded.add(group);
+                }
+            }
+        }
+        Group.advanceAccessClock();
+        int excess = loaded.size() - max;
+        if (excess <= 0) {
+            return;
+        }
+        Collections.sort(loaded, new Comparator<Group>() {
+            @Override
+            public int compare(final Group o1, final Group o2) {
+                final int a = o1.getLastAccess();
+                final int b = o2.getLastAccess();
+                return a < b ? -1 : a == b ? 0 : 1;
+            }
+        });
+        for (final Group group : loaded) {
+            if (excess <= 0) {
+                break;
+            }
+            if (group.getImmediateOnlinePlayers().isEmpty() && group.unload()) {
+                excess--;
+            }
+        }
+    }
+
+    /**
+     * Reads the stored state of the given group. Used to load the properties
+     * and players of a group again after they were unloaded.
+     * 
+     * @param group
+     * @return The BSONObject the group was stored as
+     */
+    public BasicBSONObject readGroupRecord(final Group group) {
+        final String key = getGroupKey(group.getUniverse().getName(), group.getUid());
+        final ByteBuffer data = Politics.getStorageBackend().read(key);
+        if (data == null) {
+            throw new IllegalStateException("Group record `" + key + "' is missing or corrupt!");
+        }
+        final BSONDecoder decoder = new BasicBSONDecoder();
+        final BasicBSONObject record = DataUtils.toBasicBSONObject(decoder.readObject(DataUtils.toArray(data)));
+        return DataUtils.toBasicBSONObject(record.get("group"));
+    }
+
+    /**
+     * Reads a universe stored as one record for the universe itself and one
+     * per group.
+     * 
+     * @param storage
+     * @param prefix
+     *            The prefix of the keys of the records of the universe
+     * @return The universe, or null if its records are corrupt
+     */
+    private static Universe readUniverseRecords(final StorageBackend storage, final String prefix) {
+        final BSONDecoder decoder = new BasicBSONDecoder();
+        final ByteBuffer info = storage.read(prefix + "universe");
+        if (info == null) {
+            PoliticsPlugin.logger().log(Level.SEVERE, "Universe record `" + prefix + "universe' is corrupt!");
+            return null;
+        }
+        final BSONObject object = decoder.readObject(DataUtils.toArray(info));
+
+        // Put the groups back together in the layout of a universe file
+        final BasicBSONList groupsBson = new BasicBSONList();
+        final BasicBSONObject children = new BasicBSONObject();
+        for (final String key : storage.list(prefix + "groups/")) {
+            final ByteBuffer data = storage.read(key);
+            if (data == null) {
+                PoliticsPlugin.logger().log(Level.SEVERE, "Group record `" + key + "' is corrupt!");
                 continue;
             }
-            // TODO make backups
+            final BasicBSONObject record = DataUtils.toBasicBSONObject(decoder.readObject(DataUtils.toArray(data)));
+            final BasicBSONObject group = DataUtils.toBasicBSONObject(record.get("group"));
+            groupsBson.add(group);
+            final int uid = group.getInt("uid");
+            getChildList(children, uid);
+            if (record.containsField("parent")) {
+                getChildList(children, record.getInt("parent")).add(uid);
+            }
         }
+        object.put("groups", groupsBson);
+        object.put("children", children);
+
+        final Universe universe = Universe.fromBSONObject(object);
+        for (final Group group : universe.getGroupsView()) {
+            group.setDirty(false);
+        }
+        return universe;
+    }
+
+    /**
+     * Gets the list of children of the given group, creating it if needed.
+     * 
+     * @param children
+     * @param uid
+     * @return
+     */
+    private static BasicBSONList getChildList(final BasicBSONObject children, final int uid) {
+        final String key = Long.toHexString(uid);
+        BasicBSONList list = (BasicBSONList) children.get(key);
+        if (list == null) {
+            list = new BasicBSONList();
+            children.put(key, list);
+        }
+        return list;
+    }
+
+    /**
+     * Gets the key of the record of the universe with the given name.
+     * 
+     * @param name
+     * @return
+     */
+    private static String getUniverseKey(final String name) {
+        if (Politics.getStorageBackend().isFineGrained()) {
+            return UNIVERSES + name + "/universe";
+        }
+        return UNIVERSES + name + ".ptu";
+    }
+
+    /**
+     * Gets the key of the record of a group when groups are stored in
+     * records of their own.
+     * 
+     * @param universe
+     * @param uid
+     * @return
+     */
+    private static String getGroupKey(final String universe, final int uid) {
+        return UNIVERSES + universe + "/groups/" + Long.toHexString(uid);
     }
 
     /**
@@ -257,6 +546,30 @@ public class UniverseManager {
         return groups.get(id);
     }
 
+    /**
+     * Makes a newly created group available by its id.
+     * 
+     * @param group
+     */
+    void registerGroup(final Group group) {
+        groups.put(group.getUid(), group);
+        ids.reserve(group.getUid());
+    }
+
+    /**
+     * Removes a destroyed group from the groups available by id.
+     * 
+     * @param group
+     */
+    void unregisterGroup(final Group group) {
+        if (groups.remove(group.getUid()) != null) {
+            ids.release(group.getUid());
+        }
+        if (Politics.getStorageBackend().isFineGrained()) {
+            removedRecords.add(getGroupKey(group.getUniverse().getName(), group.getUid()));
+        }
+    }
+
     /**
      * Gets a group by their tag.
      * 
@@ -264,9 +577,10 @@ public class UniverseManager {
      * @return
      */
     public Group getGroupByTag(final String tag) {
-        for (final Group g : groups.valueCollection()) {
-            if (g.getStringProperty(GroupProperty.TAG).equalsIgnoreCase(tag)) {
-                return g;
+        for (final Universe universe : universes.values()) {
+            final Group group = universe.getGroupByTag(tag);
+            if (group != null) {
+                return group;
             }
         }
         return null;
@@ -308,9 +622,12 @@ public class UniverseManager {
      * @param theRules
      * @return the created universe
      */
-    public Universe createUniverse(final String name, final UniverseRules theRules) {
+    public synchronized Universe createUniverse(final String name, final UniverseRules theRules) {
         final Universe universe = new Universe(name, theRules);
-        universes.put(name, universe);
+        final Map<String, Universe> newUniverses = new LinkedHashMap<String, Universe>(universes);
+        newUniverses.put(name, universe);
+        universes = newUniverses;
+        Politics.getWriteAheadLog().logCreateUniverse(universe);
         return universe;
     }
 
@@ -319,9 +636,13 @@ public class UniverseManager {
      * 
      * @param universe
      */
-    public void destroyUniverse(final Universe universe) {
-        universes.remove(universe.getName());
-        for (final Group group : universe.getGroups()) {
+    public synchronized void destroyUniverse(final Universe universe) {
+        Politics.getWriteAheadLog().logDestroyUniverse(universe);
+        final Map<String, Universe> newUniverses = new LinkedHashMap<String, Universe>(universes);
+        newUniverses.remove(universe.getName());
+        universes = newUniverses;
+        removedRecords.add(getUniverseKey(universe.getName()));
+        for (final Group group : universe.getGroupsView()) {
             universe.destroyGroup(group);
         }
     }
@@ -332,9 +653,31 @@ public class UniverseManager {
      * @return
      */
     public int nextId() {
-        while (getGroupById(nextId) != null) {
-            nextId++;
+        return ids.allocate();
+    }
+
+    /**
+     * Loads the group id allocator, or creates a new one if there is none.
+     * 
+     * @return
+     */
+    private GroupIdAllocator loadIds() {
+        final boolean reuse = Politics.getConfig().isReuseGroupIds();
+        final StorageBackend storage = Politics.getStorageBackend();
+        if (!storage.list(GROUP_IDS).contains(GROUP_IDS)) {
+            return new GroupIdAllocator(reuse);
+        }
+        final ByteBuffer data = storage.read(GROUP_IDS);
+        if (data == null) {
+            PoliticsPlugin.logger().log(Level.SEVERE, "The group id file has no valid version, ids will continue after the highest loaded id.");
+            return new GroupIdAllocator(reuse);
+        }
+        try {
+            final BSONDecoder decoder = new BasicBSONDecoder();
+            return GroupIdAllocator.fromBSONObject(decoder.readObject(DataUtils.toArray(data)), reuse);
+        } catch (final RuntimeException ex) {
+            PoliticsPlugin.logger().log(Level.SEVERE, "The group id file is corrupt, ids will continue after the highest loaded id.", ex);
         }
-        return nextId;
+        return new GroupIdAllocator(reuse);
     }
 }
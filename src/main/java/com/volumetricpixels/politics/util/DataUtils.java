@@ -19,6 +19,15 @@
  */
 package com.volumetricpixels.politics.util;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+
 import org.spout.api.Server;
 import org.spout.api.geo.World;
 
@@ -26,6 +35,7 @@ import org.bson.BasicBSONObject;
 import org.bson.types.BasicBSONList;
 
 import com.volumetricpixels.politics.Politics;
+import com.volumetricpixels.politics.PoliticsPlugin;
 
 public class DataUtils {
     public static World getWorld(final String string) {
@@ -53,6 +63,51 @@ public class DataUtils {
         return (BasicBSONObject) object;
     }
 
+    /**
+     * Copies the remaining content of the given buffer into an array.
+     * 
+     * @param buf
+     * @return
+     */
+    public static byte[] toArray(final ByteBuffer buf) {
+        final byte[] data = new byte[buf.remaining()];
+        buf.duplicate().get(data);
+        return data;
+    }
+
+    /**
+     * Runs the given loading tasks on the given executor and waits for all of
+     * them. The results are in the same order as the tasks, so merging them
+     * does not depend on which task finished first. A task that failed is
+     * logged and has a null result.
+     * 
+     * @param executor
+     * @param tasks
+     * @return
+     */
+    public static <T> List<T> loadAll(final ExecutorService executor, final List<Callable<T>> tasks) {
+        final List<T> results = new ArrayList<T>(tasks.size());
+        final List<Future<T>> futures;
+        try {
+            futures = executor.invokeAll(tasks);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading!", ex);
+        }
+        for (final Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (final ExecutionException ex) {
+                PoliticsPlugin.logger().log(Level.SEVERE, "A loading task failed!", ex.getCause());
+                results.add(null);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while loading!", ex);
+            }
+        }
+        return results;
+    }
+
     private DataUtils() {
     }
 }
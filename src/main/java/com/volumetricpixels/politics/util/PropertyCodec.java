@@ -0,0 +1,66 @@
+/*
+ * This file is part of Politics.
+ * 
+ * Copyright (c) 2012-2012, VolumetricPixels <http://volumetricpixels.com/>
+ * Politics is licensed under the Affero General Public License Version 3.
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.volumetricpixels.politics.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Encodes values of one type of property as compact binary.
+ * 
+ * @param <T>
+ *            The type of value this codec handles
+ */
+public interface PropertyCodec<T> {
+    /**
+     * Gets the id written in front of every value encoded by this codec. Ids
+     * must be unique among all registered codecs and never change, as they
+     * are stored in the data files.
+     * 
+     * @return
+     */
+    byte getId();
+
+    /**
+     * Gets the type of value this codec handles.
+     * 
+     * @return
+     */
+    Class<T> getType();
+
+    /**
+     * Writes the given value.
+     * 
+     * @param value
+     * @param out
+     * @throws IOException
+     */
+    void encode(T value, DataOutput out) throws IOException;
+
+    /**
+     * Reads a value written by {@link #encode(Object, DataOutput)}.
+     * 
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    T decode(DataInput in) throws IOException;
+}
@@ -0,0 +1,495 @@
+/*
+ * This file is part of Politics.
+ * 
+ * Copyright (c) 2012-2012, VolumetricPixels <http://volumetricpixels.com/>
+ * Politics is licensed under the Affero General Public License Version 3.
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.volumetricpixels.politics.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.spout.api.geo.discrete.Point;
+import org.spout.api.geo.discrete.Transform;
+import org.spout.api.math.Quaternion;
+import org.spout.api.math.Vector3;
+
+import com.volumetricpixels.politics.exception.PropertyDeserializationException;
+import com.volumetricpixels.politics.exception.PropertySerializationException;
+
+/**
+ * Registry of the codecs used to store typed group properties.
+ * 
+ * An encoded property is a byte array holding the id of its codec followed by
+ * the value, which is stored in BSON documents as binary data. Codecs for
+ * primitives, strings, UUIDs, vectors, points, transforms and lists are
+ * registered by default.
+ */
+public final class PropertyCodecs {
+    /**
+     * Codecs by id. Replaced by a copy on registration, so readers never need
+     * a lock.
+     */
+    private static volatile PropertyCodec<?>[] byId = new PropertyCodec<?>[256];
+    /**
+     * Codecs by the type they handle, and by the types they were looked up for
+     * that only extend it
+     */
+    private static final Map<Class<?>, PropertyCodec<?>> byType = new ConcurrentHashMap<Class<?>, PropertyCodec<?>>();
+
+    static {
+        register(new PropertyCodec<Integer>() {
+            @Override
+            public byte getId() {
+                return 1;
+            }
+
+            @Override
+            public Class<Integer> getType() {
+                return Integer.class;
+            }
+
+            @Override
+            public void encode(final Integer value, final DataOutput out) throws IOException {
+                out.writeInt(value);
+            }
+
+            @Override
+            public Integer decode(final DataInput in) throws IOException {
+                return in.readInt();
+            }
+        });
+        register(new PropertyCodec<Long>() {
+            @Override
+            public byte getId() {
+                return 2;
+            }
+
+            @Override
+            public Class<Long> getType() {
+                return Long.class;
+            }
+
+            @Override
+            public void encode(final Long value, final DataOutput out) throws IOException {
+                out.writeLong(value);
+            }
+
+            @Override
+            public Long decode(final DataInput in) throws IOException {
+                return in.readLong();
+            }
+        });
+        register(new PropertyCodec<Double>() {
+            @Override
+            public byte getId() {
+                return 3;
+            }
+
+            @Override
+            public Class<Double> getType() {
+                return Double.class;
+            }
+
+            @Override
+            public void encode(final Double value, final DataOutput out) throws IOException {
+                out.writeDouble(value);
+            }
+
+            @Override
+            public Double decode(final DataInput in) throws IOException {
+                return in.readDouble();
+            }
+        });
+        register(new PropertyCodec<Float>() {
+            @Override
+            public byte getId() {
+                return 4;
+            }
+
+            @Override
+            public Class<Float> getType() {
+                return Float.class;
+            }
+
+            @Override
+            public void encode(final Float value, final DataOutput out) throws IOException {
+                out.writeFloat(value);
+            }
+
+            @Override
+            public Float decode(final DataInput in) throws IOException {
+                return in.readFloat();
+            }
+        });
+        register(new PropertyCodec<Boolean>() {
+            @Override
+            public byte getId() {
+                return 5;
+            }
+
+            @Override
+            public Class<Boolean> getType() {
+                return Boolean.class;
+            }
+
+            @Override
+            public void encode(final Boolean value, final DataOutput out) throws IOException {
+                out.writeBoolean(value);
+            }
+
+            @Override
+            public Boolean decode(final DataInput in) throws IOException {
+                return in.readBoolean();
+            }
+        });
+        register(new PropertyCodec<String>() {
+            @Override
+            public byte getId() {
+                return 6;
+            }
+
+            @Override
+            public Class<String> getType() {
+                return String.class;
+            }
+
+            @Override
+            public void encode(final String value, final DataOutput out) throws IOException {
+                out.writeUTF(value);
+            }
+
+            @Override
+            public String decode(final DataInput in) throws IOException {
+                return in.readUTF();
+            }
+        });
+        register(new PropertyCodec<UUID>() {
+            @Override
+            public byte getId() {
+                return 7;
+            }
+
+            @Override
+            public Class<UUID> getType() {
+                return UUID.class;
+            }
+
+            @Override
+            public void encode(final UUID value, final DataOutput out) throws IOException {
+                out.writeLong(value.getMostSignificantBits());
+                out.writeLong(value.getLeastSignificantBits());
+            }
+
+            @Override
+            public UUID decode(final DataInput in) throws IOException {
+                return new UUID(in.readLong(), in.readLong());
+            }
+        });
+        register(new PropertyCodec<Vector3>() {
+            @Override
+            public byte getId() {
+                return 8;
+            }
+
+            @Override
+            public Class<Vector3> getType() {
+                return Vector3.class;
+            }
+
+            @Override
+            public void encode(final Vector3 value, final DataOutput out) throws IOException {
+                writeVector(value, out);
+            }
+
+            @Override
+            public Vector3 decode(final DataInput in) throws IOException {
+                return new Vector3(in.readFloat(), in.readFloat(), in.readFloat());
+            }
+        });
+        register(new PropertyCodec<Point>() {
+            @Override
+            public byte getId() {
+                return 9;
+            }
+
+            @Override
+            public Class<Point> getType() {
+                return Point.class;
+            }
+
+            @Override
+            public void encode(final Point value, final DataOutput out) throws IOException {
+                writePoint(value, out);
+            }
+
+            @Override
+            public Point decode(final DataInput in) throws IOException {
+                return readPoint(in);
+            }
+        });
+        register(new PropertyCodec<Transform>() {
+            @Override
+            public byte getId() {
+                return 10;
+            }
+
+            @Override
+            public Class<Transform> getType() {
+                return Transform.class;
+            }
+
+            @Override
+            public void encode(final Transform value, final DataOutput out) throws IOException {
+                writePoint(value.getPosition(), out);
+                final Quaternion rotation = value.getRotation();
+                out.writeFloat(rotation.getX());
+                out.writeFloat(rotation.getY());
+                out.writeFloat(rotation.getZ());
+                out.writeFloat(rotation.getW());
+                writeVector(value.getScale(), out);
+            }
+
+            @Override
+            public Transform decode(final DataInput in) throws IOException {
+                final Point position = readPoint(in);
+                final Quaternion rotation = new Quaternion(in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat(), false);
+                final Vector3 scale = new Vector3(in.readFloat(), in.readFloat(), in.readFloat());
+                return new Transform(position, rotation, scale);
+            }
+        });
+        register(new PropertyCodec<List>() {
+            @Override
+            public byte getId() {
+                return 11;
+            }
+
+            @Override
+            public Class<List> getType() {
+                return List.class;
+            }
+
+            @Override
+            public void encode(final List value, final DataOutput out) throws IOException {
+                out.writeInt(value.size());
+                for (final Object element : value) {
+                    writeValue(element, out);
+                }
+            }
+
+            @Override
+            public List decode(final DataInput in) throws IOException {
+                final int size = in.readInt();
+                final List<Object> list = new ArrayList<Object>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in));
+                }
+                return list;
+            }
+        });
+    }
+
+    /**
+     * Registers a codec.
+     * 
+     * @param codec
+     * @throws IllegalArgumentException
+     *             If another codec has the same id
+     */
+    public static synchronized void register(final PropertyCodec<?> codec) {
+        final int id = codec.getId() & 0xff;
+        if (id == 0 || byId[id] != null) {
+            throw new IllegalArgumentException("Property codec id " + id + " is reserved or already taken!");
+        }
+        final PropertyCodec<?>[] codecs = byId.clone();
+        codecs[id] = codec;
+        byId = codecs;
+
+        // Subtypes resolved to a more general codec may now have a more
+        // specific one
+        final Class<?> type = codec.getType();
+        final Iterator<Entry<Class<?>, PropertyCodec<?>>> it = byType.entrySet().iterator();
+        while (it.hasNext()) {
+            final Entry<Class<?>, PropertyCodec<?>> entry = it.next();
+            if (entry.getValue().getType() != entry.getKey() && type.isAssignableFrom(entry.getKey())) {
+                it.remove();
+            }
+        }
+        byType.put(type, codec);
+    }
+
+    /**
+     * Gets the codec for values of the given class, looking at its
+     * supertypes if no codec handles the class itself.
+     * 
+     * @param type
+     * @return The codec, or null if there is none
+     */
+    public static PropertyCodec<?> getCodec(final Class<?> type) {
+        final PropertyCodec<?> codec = byType.get(type);
+        if (codec != null) {
+            return codec;
+        }
+        return findCodec(type);
+    }
+
+    /**
+     * Finds the codec of the most specific registered supertype of the given
+     * class and remembers it. Holds the registration lock, so a codec
+     * registered meanwhile can't be shadowed by a stale entry.
+     * 
+     * @param type
+     * @return The codec, or null if there is none
+     */
+    private static synchronized PropertyCodec<?> findCodec(final Class<?> type) {
+        PropertyCodec<?> codec = byType.get(type);
+        if (codec != null) {
+            return codec;
+        }
+        for (final PropertyCodec<?> candidate : byId) {
+            if (candidate != null && candidate.getType().isAssignableFrom(type)) {
+                // Prefer the most specific registered supertype
+                if (codec == null || codec.getType().isAssignableFrom(candidate.getType())) {
+                    codec = candidate;
+                }
+            }
+        }
+        if (codec != null) {
+            byType.put(type, codec);
+        }
+        return codec;
+    }
+
+    /**
+     * Encodes a value with the codec for its type.
+     * 
+     * @param value
+     * @return The id of the codec followed by the encoded value
+     * @throws PropertySerializationException
+     *             If there is no codec for the value
+     */
+    public static byte[] encode(final Object value) throws PropertySerializationException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        try {
+            writeValue(value, new DataOutputStream(bytes));
+        } catch (final IOException ex) {
+            throw new PropertySerializationException("Could not encode a value of type " + value.getClass().getName() + "!", ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a value written by {@link #encode(Object)}.
+     * 
+     * @param data
+     * @return
+     * @throws PropertyDeserializationException
+     *             If the data is malformed or its codec is unknown
+     */
+    public static Object decode(final byte[] data) throws PropertyDeserializationException {
+        try {
+            return readValue(new DataInputStream(new ByteArrayInputStream(data)));
+        } catch (final IOException ex) {
+            throw new PropertyDeserializationException("Could not decode a property!", ex);
+        } catch (final IllegalArgumentException ex) {
+            throw new PropertyDeserializationException("Could not decode a property!", ex);
+        }
+    }
+
+    /**
+     * Decodes a property value, which is either encoded by a codec or, for
+     * properties stored by older versions, a Base64 string of a serialized
+     * object.
+     * 
+     * @param value
+     *            The stored value
+     * @param type
+     *            The expected type of the value
+     * @return The value, or null if there is none
+     * @throws PropertyDeserializationException
+     *             If the value could not be decoded or has another type
+     */
+    public static <T> T decodeProperty(final Object value, final Class<T> type) throws PropertyDeserializationException {
+        final Object decoded;
+        if (value == null) {
+            return null;
+        } else if (value instanceof byte[]) {
+            decoded = decode((byte[]) value);
+        } else if (value instanceof String && !type.isAssignableFrom(String.class)) {
+            decoded = PropertySerializer.deserialize((String) value);
+        } else {
+            decoded = value;
+        }
+        if (!type.isInstance(decoded)) {
+            throw new PropertyDeserializationException("Expected a " + type.getSimpleName() + " but found a "
+                    + decoded.getClass().getSimpleName() + "!");
+        }
+        return type.cast(decoded);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeValue(final Object value, final DataOutput out) throws IOException {
+        if (value == null) {
+            throw new IllegalArgumentException("Cannot encode null!");
+        }
+        final PropertyCodec<Object> codec = (PropertyCodec<Object>) getCodec(value.getClass());
+        if (codec == null) {
+            throw new IOException("There is no property codec for " + value.getClass().getName() + "!");
+        }
+        out.writeByte(codec.getId());
+        codec.encode(value, out);
+    }
+
+    private static Object readValue(final DataInput in) throws IOException {
+        final int id = in.readByte() & 0xff;
+        final PropertyCodec<?> codec = byId[id];
+        if (codec == null) {
+            throw new IOException("Unknown property codec id " + id + "!");
+        }
+        return codec.decode(in);
+    }
+
+    private static void writeVector(final Vector3 value, final DataOutput out) throws IOException {
+        out.writeFloat(value.getX());
+        out.writeFloat(value.getY());
+        out.writeFloat(value.getZ());
+    }
+
+    private static void writePoint(final Point value, final DataOutput out) throws IOException {
+        out.writeUTF(value.getWorld() == null ? "" : value.getWorld().getName());
+        writeVector(value, out);
+    }
+
+    private static Point readPoint(final DataInput in) throws IOException {
+        final String world = in.readUTF();
+        return new Point(world.isEmpty() ? null : DataUtils.getWorld(world), in.readFloat(), in.readFloat(), in.readFloat());
+    }
+
+    private PropertyCodecs() {
+    }
+}
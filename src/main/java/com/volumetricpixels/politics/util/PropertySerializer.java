@@ -31,7 +31,8 @@ import com.volumetricpixels.politics.exception.PropertySerializationException;
 
 /**
  * Contains various methods for serializing and deserializing certain properties
- * as strings
+ * as strings. Properties are now stored with {@link PropertyCodecs}; this is
+ * only needed to read properties stored by older versions.
  */
 public final class PropertySerializer {
     /**
@@ -40,7 +41,9 @@ public final class PropertySerializer {
      * @param obj
      *            The Serializable object to serialize
      * @return The serialized string
+     * @deprecated Use {@link PropertyCodecs#encode(Object)}
      */
+    @Deprecated
     public static String serialize(final Serializable obj) throws PropertySerializationException {
         try {
             return PropertySerializer.toString(obj);
@@ -19,6 +19,9 @@
  */
 package com.volumetricpixels.politics.world;
 
+import gnu.trove.list.TIntList;
+
+import org.spout.api.geo.World;
 import org.spout.api.geo.cuboid.Chunk;
 import org.spout.api.geo.discrete.Point;
 
@@ -31,21 +34,38 @@ import org.bson.BasicBSONObject;
  */
 public class ChunkPlot extends Plot {
     /**
-     * The Chunk the ChunkPlot is in
+     * The x coordinate of the Chunk the ChunkPlot is in
+     */
+    private final int chunkX;
+    /**
+     * The y coordinate of the Chunk the ChunkPlot is in
+     */
+    private final int chunkY;
+    /**
+     * The z coordinate of the Chunk the ChunkPlot is in
+     */
+    private final int chunkZ;
+    /**
+     * The shard of the world holding this plot
      */
-    private final Chunk chunk;
+    private volatile WorldShard shard;
 
     /**
      * C'tor
      * 
      * @param world
      * @param x
+     *            chunkX
      * @param y
+     *            chunkY
      * @param z
+     *            chunkZ
      */
     ChunkPlot(final PoliticsWorld world, final int x, final int y, final int z) {
         super(world);
-        chunk = world.getWorld().getChunk(x, y, z);
+        chunkX = x;
+        chunkY = y;
+        chunkZ = z;
     }
 
     /**
@@ -53,11 +73,28 @@ public class ChunkPlot extends Plot {
      * 
      * @param world
      * @param x
+     *            chunkX
      * @param y
+     *            chunkY
      * @param z
+     *            chunkZ
+     * @param owners
+     */
+    ChunkPlot(final PoliticsWorld world, final int x, final int y, final int z, final TIntList owners) {
+        super(world, owners);
+        chunkX = x;
+        chunkY = y;
+        chunkZ = z;
+    }
+
+    /**
+     * C'tor
+     * 
+     * @param world
+     * @param object
      */
-    ChunkPlot(final BasicBSONObject object) {
-        super(object);
+    ChunkPlot(final PoliticsWorld world, final BasicBSONObject object) {
+        super(world, object);
         final Object x = object.get("x");
         final Object y = object.get("y");
         final Object z = object.get("z");
@@ -70,16 +107,69 @@ public class ChunkPlot extends Plot {
         if (!(z instanceof Integer)) {
             throw new IllegalArgumentException("Z was not available.");
         }
-        chunk = getPoliticsWorld().getWorld().getChunk((Integer) x, (Integer) y, (Integer) z);
+        chunkX = (Integer) x;
+        chunkY = (Integer) y;
+        chunkZ = (Integer) z;
     }
 
     /**
-     * Gets the Chunk of the ChunkPlot
+     * Gets the Chunk of the ChunkPlot. This resolves the Chunk through the
+     * engine, so prefer the chunk coordinates where they suffice.
      * 
      * @return The Chunk the ChunkPlot is inside
      */
     public Chunk getChunk() {
-        return chunk;
+        return getPoliticsWorld().getWorld().getChunk(chunkX, chunkY, chunkZ);
+    }
+
+    /**
+     * Gets the x coordinate of the Chunk of the ChunkPlot
+     * 
+     * @return chunkX
+     */
+    public int getChunkX() {
+        return chunkX;
+    }
+
+    /**
+     * Gets the y coordinate of the Chunk of the ChunkPlot
+     * 
+     * @return chunkY
+     */
+    public int getChunkY() {
+        return chunkY;
+    }
+
+    /**
+     * Gets the z coordinate of the Chunk of the ChunkPlot
+     * 
+     * @return chunkZ
+     */
+    public int getChunkZ() {
+        return chunkZ;
+    }
+
+    /**
+     * Sets the shard holding this plot.
+     * 
+     * @param shard
+     */
+    void setShard(final WorldShard shard) {
+        this.shard = shard;
+    }
+
+    /**
+     * Gets the plot at the position of this plot in its world. That is this
+     * plot unless its shard was dropped from memory, in which case the shard
+     * is read again.
+     */
+    @Override
+    protected Plot getCurrent() {
+        final WorldShard s = shard;
+        if (s == null || !s.isUnloaded()) {
+            return this;
+        }
+        return getPoliticsWorld().getOrCreatePlotAtChunkPosition(chunkX, chunkY, chunkZ);
     }
 
     /**
@@ -89,20 +179,47 @@ public class ChunkPlot extends Plot {
      */
     @Override
     public Point getBasePoint() {
-        return chunk.getBase();
+        return new Point(getPoliticsWorld().getWorld(), chunkX << Chunk.BLOCKS.BITS, chunkY << Chunk.BLOCKS.BITS, chunkZ << Chunk.BLOCKS.BITS);
     }
 
     @Override
     public boolean contains(final Point point) {
-        return chunk.contains(point);
+        final World world = point.getWorld();
+        if (world == null || !world.getName().equals(getPoliticsWorld().getName())) {
+            return false;
+        }
+        return point.getChunkX() == chunkX && point.getChunkY() == chunkY && point.getChunkZ() == chunkZ;
+    }
+
+    /**
+     * Chunk plots nobody owns are only kept in memory while they are being
+     * claimed, so there is no point in storing them.
+     */
+    @Override
+    public boolean canStore() {
+        return !getOwnerIds().isEmpty();
+    }
+
+    @Override
+    public void setDirty(final boolean dirty) {
+        super.setDirty(dirty);
+        final WorldShard s = shard;
+        if (dirty && s != null) {
+            if (s.isUnloaded()) {
+                // Changed while its shard was being dropped
+                getPoliticsWorld().mergeDetachedPlot(this);
+            } else {
+                s.setDirty(true);
+            }
+        }
     }
 
     @Override
-    public BSONObject toBSONObject() {
-        final BSONObject obj = super.toBSONObject();
-        obj.put("x", getX());
-        obj.put("y", getY());
-        obj.put("z", getZ());
+    protected BSONObject createBSONObject() {
+        final BSONObject obj = super.createBSONObject();
+        obj.put("x", chunkX);
+        obj.put("y", chunkY);
+        obj.put("z", chunkZ);
         obj.put("type", PlotType.CHUNK.name());
         return obj;
     }
@@ -116,7 +233,7 @@ public class ChunkPlot extends Plot {
             return false;
         }
         final ChunkPlot other = (ChunkPlot) obj;
-        if (chunk != other.chunk && (chunk == null || !chunk.equals(other.chunk))) {
+        if (chunkX != other.chunkX || chunkY != other.chunkY || chunkZ != other.chunkZ) {
             return false;
         }
         return super.equals(obj);
@@ -125,7 +242,9 @@ public class ChunkPlot extends Plot {
     @Override
     public int hashCode() {
         int hash = 3;
-        hash = 79 * hash + (chunk != null ? chunk.hashCode() : 0);
+        hash = 79 * hash + chunkX;
+        hash = 79 * hash + chunkY;
+        hash = 79 * hash + chunkZ;
         return hash;
     }
 }
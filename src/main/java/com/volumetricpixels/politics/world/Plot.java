@@ -24,22 +24,30 @@ import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.spout.api.entity.Player;
 import org.spout.api.geo.discrete.Point;
 
 import org.bson.BSONObject;
 import org.bson.BasicBSONObject;
+import org.bson.types.BasicBSONList;
 
 import com.volumetricpixels.politics.Politics;
 import com.volumetricpixels.politics.data.Storable;
 import com.volumetricpixels.politics.event.PoliticsEventFactory;
 import com.volumetricpixels.politics.event.plot.PlotOwnerChangeEvent;
 import com.volumetricpixels.politics.group.Group;
+import com.volumetricpixels.politics.group.level.Role;
 import com.volumetricpixels.politics.group.privilege.Privilege;
+import com.volumetricpixels.politics.group.privilege.PrivilegeManager;
 import com.volumetricpixels.politics.universe.Universe;
 import com.volumetricpixels.politics.util.DataUtils;
 
@@ -47,6 +55,10 @@ import com.volumetricpixels.politics.util.DataUtils;
  * A Plot wraps around a Chunk as well as storing a PoliticsWorld and owners
  */
 public abstract class Plot implements Storable {
+    /**
+     * The most players whose effective privileges are cached per plot
+     */
+    private static final int MAX_CACHED_PRIVILEGES = 512;
     /**
      * World of the plot
      */
@@ -55,6 +67,23 @@ public abstract class Plot implements Storable {
      * Owners of this plot
      */
     private final TIntList owners;
+    /**
+     * Effective privilege masks of players in this plot, or null if none are
+     * cached
+     */
+    private volatile PrivilegeCache privilegeCache;
+    /**
+     * True if this plot changed since it was last serialized
+     */
+    private volatile boolean dirty = true;
+    /**
+     * Incremented whenever this plot is marked dirty
+     */
+    private volatile int changes;
+    /**
+     * The BSONObject this plot was last serialized to
+     */
+    private volatile Serialized bson;
 
     /**
      * C'tor
@@ -85,16 +114,16 @@ public abstract class Plot implements Storable {
      * C'tor
      * 
      * @param world
-     * @param x
-     * @param y
-     * @param z
+     *            The world being loaded
+     * @param object
      */
-    Plot(final BasicBSONObject object) {
-        world = Politics.getWorld(DataUtils.getWorld(object.getString("world", null)));
+    Plot(final PoliticsWorld world, final BasicBSONObject object) {
+        this.world = world;
+        owners = new TIntArrayList();
         if (object.containsField("owners")) {
-            owners = (TIntList) object.get("owners"); // TODO does this work?
-        } else {
-            owners = new TIntArrayList();
+            for (final Object id : DataUtils.getList(object.get("owners"))) {
+                owners.add(((Number) id).intValue());
+            }
         }
 
         // based on toBSONObject(), below code never made sense
@@ -160,6 +189,10 @@ public abstract class Plot implements Storable {
      * @return
      */
     public TIntList getOwnerIds() {
+        final Plot current = getCurrent();
+        if (current != this) {
+            return current.getOwnerIds();
+        }
         return owners;
     }
 
@@ -169,13 +202,18 @@ public abstract class Plot implements Storable {
      * @return
      */
     public List<Group> getOwners() {
+        final Plot current = getCurrent();
+        if (current != this) {
+            return current.getOwners();
+        }
         final List<Group> ret = new ArrayList<Group>();
         final TIntIterator it = owners.iterator();
         while (it.hasNext()) {
             final int id = it.next();
             final Group group = Politics.getUniverseManager().getGroupById(id);
             if (group == null) {
-                owners.remove(id); // Group no longer exists
+                it.remove(); // Group no longer exists
+                setDirty(true);
             } else {
                 ret.add(group);
             }
@@ -190,8 +228,13 @@ public abstract class Plot implements Storable {
      * @return
      */
     public Group getOwner(final Universe universe) {
-        for (final Group owner : getOwners()) {
-            if (owner.getUniverse().equals(universe)) {
+        final Plot current = getCurrent();
+        if (current != this) {
+            return current.getOwner(universe);
+        }
+        for (int i = 0; i < owners.size(); i++) {
+            final Group owner = universe.getGroup(owners.get(i));
+            if (owner != null) {
                 return owner;
             }
         }
@@ -205,11 +248,13 @@ public abstract class Plot implements Storable {
      * @return
      */
     public List<Group> getOwners(final Universe universe) {
+        final Group owner = getOwner(universe);
+        if (owner == null) {
+            return Collections.emptyList();
+        }
         final List<Group> owners = new ArrayList<Group>();
-        Group group = getOwner(universe);
-        while (group != null) {
+        for (Group group = owner; group != null; group = group.getParent()) {
             owners.add(group);
-            group = group.getParent();
         }
         return owners;
     }
@@ -232,9 +277,16 @@ public abstract class Plot implements Storable {
      * @return True if successful
      */
     public boolean addOwner(final Group group) {
-        final PlotOwnerChangeEvent event = PoliticsEventFactory.callPlotOwnerChangeEvent(this, group.getUid(), true);
-        if (event.isCancelled()) {
-            return false;
+        final Plot current = getCurrent();
+        if (current != this) {
+            return current.addOwner(group);
+        }
+        final boolean batched = Politics.getEventBatcher() != null;
+        if (!batched) {
+            final PlotOwnerChangeEvent event = PoliticsEventFactory.callPlotOwnerChangeEvent(this, group.getUid(), true);
+            if (event != null && event.isCancelled()) {
+                return false;
+            }
         }
 
         for (final Group g : getOwners()) {
@@ -242,13 +294,23 @@ public abstract class Plot implements Storable {
                 return false; // Already owns the plot
             }
 
-            if (g.getUniverse().equals(group.getUniverse()) && group.getParent().equals(g)) {
+            if (g.getUniverse().equals(group.getUniverse()) && g.equals(group.getParent())) {
                 removeOwner(g);
                 break; // We are a sub-plot
             }
             return false;
         }
-        return owners.add(group.getUid());
+        Politics.getWriteAheadLog().logAddOwner(this, group.getUid());
+        // Marked after the change, so a snapshot cleaning it meanwhile can't
+        // miss it
+        final boolean added = owners.add(group.getUid());
+        privilegeCache = null;
+        setDirty(true);
+        if (batched) {
+            // Only recorded once made, so a refused change is never batched
+            PoliticsEventFactory.callPlotOwnerChangeEvent(this, group.getUid(), true);
+        }
+        return added;
     }
 
     /**
@@ -258,14 +320,56 @@ public abstract class Plot implements Storable {
      * @return True if successful
      */
     public boolean removeOwner(final int id) {
+        final Plot current = getCurrent();
+        if (current != this) {
+            return current.removeOwner(id);
+        }
         if (!owners.contains(id)) {
             return true; // Not in there
         }
-        final PlotOwnerChangeEvent event = PoliticsEventFactory.callPlotOwnerChangeEvent(this, id, true);
-        if (event.isCancelled()) {
-            return false;
+        final boolean batched = Politics.getEventBatcher() != null;
+        if (!batched) {
+            final PlotOwnerChangeEvent event = PoliticsEventFactory.callPlotOwnerChangeEvent(this, id, false);
+            if (event != null && event.isCancelled()) {
+                return false;
+            }
+        }
+        Politics.getWriteAheadLog().logRemoveOwner(this, id);
+        final boolean removed = owners.remove(id);
+        privilegeCache = null;
+        setDirty(true);
+        if (batched) {
+            PoliticsEventFactory.callPlotOwnerChangeEvent(this, id, false);
         }
-        return owners.remove(id);
+        return removed;
+    }
+
+    /**
+     * Adds or removes an owner without firing an event, checking the other
+     * owners or logging the change. Used to replay the write-ahead log, which
+     * already holds every change the checks made, such as a parent losing a
+     * sub-plot.
+     * 
+     * @param id
+     *            The id of the owner
+     * @param added
+     *            True if the owner was added, false if it was removed
+     */
+    public void replayOwnerChange(final int id, final boolean added) {
+        final Plot current = getCurrent();
+        if (current != this) {
+            current.replayOwnerChange(id, added);
+            return;
+        }
+        if (added) {
+            if (!owners.contains(id)) {
+                owners.add(id);
+            }
+        } else {
+            owners.remove(id);
+        }
+        privilegeCache = null;
+        setDirty(true);
     }
 
     /**
@@ -285,6 +389,10 @@ public abstract class Plot implements Storable {
      * @return
      */
     public boolean isOwner(final int id) {
+        final Plot current = getCurrent();
+        if (current != this) {
+            return current.isOwner(id);
+        }
         return owners.contains(id);
     }
 
@@ -298,6 +406,28 @@ public abstract class Plot implements Storable {
         return isOwner(group.getUid());
     }
 
+    /**
+     * Replaces the owners of this plot with those of the given plot.
+     * 
+     * @param plot
+     */
+    void copyOwners(final Plot plot) {
+        owners.clear();
+        owners.addAll(plot.owners);
+        privilegeCache = null;
+        setDirty(true);
+    }
+
+    /**
+     * Gets the plot that is at the position of this plot now. Owners are
+     * always read from and changed through it.
+     * 
+     * @return
+     */
+    protected Plot getCurrent() {
+        return this;
+    }
+
     /**
      * Gets the privileges of the player.
      * 
@@ -305,16 +435,126 @@ public abstract class Plot implements Storable {
      * @return
      */
     public Set<Privilege> getPrivileges(final Player player) {
+        final Plot current = getCurrent();
+        if (current != this) {
+            return current.getPrivileges(player);
+        }
         final Set<Privilege> privileges = new HashSet<Privilege>();
-        // TODO
+        final PrivilegeManager manager = Politics.getPrivilegeManager();
+        final BitSet mask = getPrivilegeMask(player.getName());
+        for (int i = mask.nextSetBit(0); i >= 0; i = mask.nextSetBit(i + 1)) {
+            final Privilege privilege = manager.getPrivilege(i);
+            if (privilege != null) {
+                privileges.add(privilege);
+            }
+        }
         return privileges;
     }
 
+    /**
+     * Checks if the given player has the given privilege in this plot, which
+     * is the case when every owner of the plot grants it to them.
+     * 
+     * @param player
+     * @param privilege
+     * @return
+     */
+    public boolean can(final Player player, final Privilege privilege) {
+        final Plot current = getCurrent();
+        if (current != this) {
+            return current.can(player, privilege);
+        }
+        final int id = privilege.getId();
+        return id >= 0 && getPrivilegeMask(player.getName()).get(id);
+    }
+
+    /**
+     * Gets the effective privileges of the given player in this plot as a
+     * bitset indexed by privilege id. The result is cached until the owners of
+     * this plot change or the privilege caches are invalidated, which happens
+     * whenever a role in any group changes, and must not be modified.
+     * 
+     * @param player
+     * @return
+     */
+    private BitSet getPrivilegeMask(final String player) {
+        // Taken before the mask is computed, so a mask computed from older
+        // roles is never filed under a newer generation
+        final int generation = Politics.getPrivilegeManager().getPrivilegeCacheGeneration();
+        PrivilegeCache cache = privilegeCache;
+        if (cache == null || cache.generation != generation) {
+            cache = new PrivilegeCache(generation);
+            privilegeCache = cache;
+        }
+
+        BitSet mask = cache.masks.get(player);
+        if (mask == null) {
+            mask = computePrivilegeMask(player);
+            if (cache.masks.size() >= MAX_CACHED_PRIVILEGES) {
+                // Make room by dropping a single player rather than everyone
+                final Iterator<String> it = cache.masks.keySet().iterator();
+                if (it.hasNext()) {
+                    it.next();
+                    it.remove();
+                }
+            }
+            cache.masks.put(player, mask);
+        }
+        return mask;
+    }
+
+    /**
+     * Computes the privileges the owners of this plot all grant the player.
+     * 
+     * @param player
+     * @return
+     */
+    private BitSet computePrivilegeMask(final String player) {
+        BitSet mask = null;
+        for (final Group owner : getOwners()) {
+            final Role role = owner.getRole(player);
+            if (role == null) {
+                return new BitSet();
+            }
+            if (mask == null) {
+                mask = role.getPrivilegeMask();
+            } else {
+                role.retainPrivileges(mask);
+            }
+        }
+        return mask == null ? new BitSet() : mask;
+    }
+
+    /**
+     * Gets the BSONObject representing this plot. It is only rebuilt after the
+     * plot changed, so the returned object must not be modified. This doesn't
+     * mark the plot clean.
+     */
     @Override
     public BSONObject toBSONObject() {
+        final int version = changes;
+        Serialized cached = bson;
+        if (cached == null || cached.version != version) {
+            cached = new Serialized(version, createBSONObject());
+            bson = cached;
+        }
+        return cached.object;
+    }
+
+    /**
+     * Creates a new BSONObject representing this plot.
+     * 
+     * @return
+     */
+    protected BSONObject createBSONObject() {
         final BasicBSONObject obj = new BasicBSONObject();
         obj.put("world", world.getName());
-        obj.put("owners", owners);
+        final BasicBSONList ownerList = new BasicBSONList();
+        final TIntIterator it = owners.iterator();
+        while (it.hasNext()) {
+            ownerList.add(it.next());
+        }
+        obj.put("owners", ownerList);
         return obj;
     }
 
@@ -323,6 +563,20 @@ public abstract class Plot implements Storable {
         return true;
     }
 
+    @Override
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    @Override
+    public void setDirty(final boolean dirty) {
+        this.dirty = dirty;
+        if (dirty) {
+            changes++;
+            world.setDirty(true);
+        }
+    }
+
     @Override
     public boolean equals(final Object obj) {
         if (obj == null) {
@@ -349,4 +603,42 @@ public abstract class Plot implements Storable {
     }
 
     public abstract boolean contains(final Point point);
+
+    /**
+     * Effective privileges of players, valid while the privilege cache
+     * generation is unchanged
+     */
+    private static final class PrivilegeCache {
+        private final int generation;
+        private final Map<String, BitSet> masks = new ConcurrentHashMap<String, BitSet>();
+
+        /**
+         * C'tor
+         * 
+         * @param generation
+         */
+        private PrivilegeCache(final int generation) {
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * A BSONObject a plot was serialized to, along with the number of changes
+     * of the plot at the time.
+     */
+    private static final class Serialized {
+        private final int version;
+        private final BSONObject object;
+
+        /**
+         * C'tor
+         * 
+         * @param version
+         * @param object
+         */
+        private Serialized(final int version, final BSONObject object) {
+            this.version = version;
+            this.object = object;
+        }
+    }
 }
@@ -19,31 +19,44 @@
  */
 package com.volumetricpixels.politics.world;
 
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 
+import org.spout.api.geo.LoadOption;
 import org.spout.api.geo.World;
 import org.spout.api.geo.cuboid.Chunk;
+import org.spout.api.geo.cuboid.Region;
 import org.spout.api.geo.discrete.Point;
 
-import org.apache.commons.io.FileUtils;
-
-import org.bson.BSONEncoder;
-import org.bson.BSONObject;
-import org.bson.BasicBSONDecoder;
-import org.bson.BasicBSONEncoder;
-
 import org.spout.cereal.config.Configuration;
 import org.spout.cereal.config.ConfigurationException;
 import org.spout.cereal.config.yaml.YamlConfiguration;
 
 import com.volumetricpixels.politics.Politics;
 import com.volumetricpixels.politics.PoliticsPlugin;
+import com.volumetricpixels.politics.data.Snapshot;
+import com.volumetricpixels.politics.data.StorageBackend;
 import com.volumetricpixels.politics.util.DataUtils;
 
+import com.google.common.util.concurrent.MoreExecutors;
+
 /**
  * Manages plots
  */
@@ -53,9 +66,21 @@ public class PlotManager {
      */
     private Map<String, WorldConfig> configs;
     /**
-     * World names mapped to GroupWorlds.
+     * World names mapped to GroupWorlds. Concurrent, as worlds may be created
+     * while universes are being loaded in parallel.
      */
     private Map<String, PoliticsWorld> worlds;
+    /**
+     * The thread reading the shards of chunks that were loaded by the engine
+     */
+    private final ExecutorService shardLoader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "Politics-ShardLoader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     /**
      * C'tor
@@ -86,28 +111,53 @@ public class PlotManager {
      * Loads all GroupsWorlds.
      */
     public void loadWorlds() {
-        final BasicBSONDecoder decoder = new BasicBSONDecoder();
-        worlds = new HashMap<String, PoliticsWorld>();
+        loadWorlds(MoreExecutors.sameThreadExecutor());
+    }
 
-        Politics.getFileSystem().getWorldsDir().mkdirs();
-        for (final File file : Politics.getFileSystem().getWorldsDir().listFiles()) {
-            final String fileName = file.getName();
-            if (!fileName.endsWith(".ptw") || fileName.length() <= 4) {
-                continue;
+    /**
+     * Loads all GroupsWorlds, reading them from the storage backend on the
+     * given executor. Only region plots are read now; the shards of chunk
+     * plots are read when they are first needed.
+     * 
+     * @param executor
+     */
+    public void loadWorlds(final ExecutorService executor) {
+        worlds = new ConcurrentHashMap<String, PoliticsWorld>();
+
+        final StorageBackend storage = Politics.getStorageBackend();
+        final Map<String, WorldKeys> worldKeys = new LinkedHashMap<String, WorldKeys>();
+        for (final String key : storage.list(PlotRecords.WORLDS)) {
+            String worldName = PlotRecords.getWorldName(key);
+            if (worldName == null) {
+                if (storage.isFineGrained() || !key.endsWith(".ptw")) {
+                    continue;
+                }
+                // A whole world in a single file
+                worldName = key.substring(PlotRecords.WORLDS.length(), key.length() - 4);
+            }
+            WorldKeys keys = worldKeys.get(worldName);
+            if (keys == null) {
+                keys = new WorldKeys(worldName);
+                worldKeys.put(worldName, keys);
             }
-            final String worldName = fileName.substring(0, fileName.length() - 4);
+            keys.add(key, storage.isFineGrained());
+        }
 
-            byte[] data;
-            try {
-                data = FileUtils.readFileToByteArray(file);
-            } catch (final IOException ex) {
-                PoliticsPlugin.logger().log(Level.SEVERE, "Could not read world file `" + fileName + "'!", ex);
+        final List<Callable<PoliticsWorld>> tasks = new ArrayList<Callable<PoliticsWorld>>();
+        for (final WorldKeys keys : worldKeys.values()) {
+            final WorldConfig config = getWorldConfig(keys.name);
+            tasks.add(new Callable<PoliticsWorld>() {
+                @Override
+                public PoliticsWorld call() {
+                    return readWorld(storage, new PoliticsWorld(keys.name, config), keys);
+                }
+            });
+        }
+
+        for (final PoliticsWorld world : DataUtils.loadAll(executor, tasks)) {
+            if (world == null) {
                 continue;
             }
-
-            final WorldConfig config = getWorldConfig(worldName);
-            final BSONObject object = decoder.readObject(data);
-            final PoliticsWorld world = new PoliticsWorld(worldName, config, DataUtils.toBasicBSONObject(object));
             worlds.put(world.getName(), world);
         }
     }
@@ -116,23 +166,387 @@ public class PlotManager {
      * Saves all GroupsWorlds.
      */
     public void saveWorlds() {
-        final BSONEncoder encoder = new BasicBSONEncoder();
-        Politics.getFileSystem().getWorldsDir().mkdirs();
+        final Snapshot snapshot = new Snapshot();
+        snapshotWorlds(snapshot);
+        snapshot.write();
+    }
 
+    /**
+     * Adds the current state of all GroupsWorlds that changed since they were
+     * last saved to the given snapshot. Only the shards that changed are
+     * added, and with a fine-grained storage backend only the plots that
+     * changed.
+     * 
+     * Shards no loaded chunk is in are dropped from memory first. The
+     * previous snapshot is written by now, so they are stored.
+     * 
+     * @param snapshot
+     */
+    public void snapshotWorlds(final Snapshot snapshot) {
+        final boolean fineGrained = Politics.getStorageBackend().isFineGrained();
+        final boolean compress = Politics.getConfig().isCompressWorlds();
         for (final PoliticsWorld world : worlds.values()) {
-            if (!world.canStore()) {
+            world.unloadShards();
+
+            final Queue<String> removed = world.getRemovedRecords();
+            String key;
+            while ((key = removed.poll()) != null) {
+                // Region plots are simply left out of the regions file
+                if (fineGrained || !PlotRecords.isRegionKey(world.getName(), key)) {
+                    snapshot.remove(key, removed);
+                }
+            }
+            if (!world.canStore() || !world.isDirty()) {
+                continue;
+            }
+
+            // Cleaned first, so plots changing meanwhile dirty it again
+            world.setDirty(false);
+            if (!fineGrained) {
+                snapshot.add(getRegionsFileKey(world.getName()), world,
+                        new WorldFileWriter(world.getName(), Collections.<ChunkPlot> emptyList(), world.getRegionPlots(), compress));
+                for (final WorldShard shard : world.getShards()) {
+                    if (shard.isDirty()) {
+                        snapshotShardFile(snapshot, world, shard, compress);
+                    }
+                }
                 continue;
             }
-            final String fileName = world.getName() + ".ptw";
-            final File worldFile = new File(Politics.getFileSystem().getWorldsDir(), fileName);
 
-            final byte[] data = encoder.encode(world.toBSONObject());
+            for (final WorldShard shard : world.getShards()) {
+                if (!shard.isDirty()) {
+                    continue;
+                }
+                shard.setDirty(false);
+                for (final ChunkPlot plot : shard.getPlots()) {
+                    snapshotPlot(snapshot, PlotRecords.getKey(plot), plot);
+                }
+                world.setShardStored(shard.getX(), shard.getZ(), true);
+            }
+            for (final RegionPlot plot : world.getRegionPlots()) {
+                snapshotPlot(snapshot, PlotRecords.getKey(plot), plot);
+            }
+        }
+    }
+
+    /**
+     * Reads every stored shard and marks every world, shard and plot as
+     * changed, so the next snapshot stores all of them.
+     */
+    public void markDirty() {
+        for (final PoliticsWorld world : worlds.values()) {
+            for (final long key : world.getStoredShards().toArray()) {
+                final int x = (int) (key >> 32);
+                final int z = (int) key;
+                world.getShard(x << WorldShard.BITS, z << WorldShard.BITS);
+            }
+            for (final WorldShard shard : world.getShards()) {
+                for (final ChunkPlot plot : shard.getPlots()) {
+                    plot.setDirty(true);
+                }
+                shard.setDirty(true);
+            }
+            for (final RegionPlot plot : world.getRegionPlots()) {
+                plot.setDirty(true);
+            }
+            world.setDirty(true);
+        }
+    }
+
+    /**
+     * Reads the shard of a chunk the engine loaded in the background, so
+     * lookups in the chunk don't have to wait for storage.
+     * 
+     * @param world
+     * @param shard
+     */
+    void loadShardLater(final PoliticsWorld world, final WorldShard shard) {
+        shardLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    world.loadShard(shard);
+                } catch (final RuntimeException ex) {
+                    PoliticsPlugin.logger().log(Level.SEVERE, "Could not read a shard of world `" + world.getName() + "'!", ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Counts the chunks the engine loaded before Politics was enabled, so
+     * their shards are kept in memory like those of chunks loaded later.
+     * Called after the chunk listeners are registered; a chunk loaded in
+     * between is counted twice, which only keeps its shard in memory longer.
+     */
+    public void countLoadedChunks() {
+        for (final PoliticsWorld world : worlds.values()) {
+            final World w = world.getWorld();
+            if (w == null) {
+                continue;
+            }
+            for (final Region region : w.getRegions()) {
+                for (int x = 0; x < Region.CHUNKS.SIZE; x++) {
+                    for (int y = 0; y < Region.CHUNKS.SIZE; y++) {
+                        for (int z = 0; z < Region.CHUNKS.SIZE; z++) {
+                            final Chunk chunk = region.getChunk(x, y, z, LoadOption.NO_LOAD);
+                            if (chunk != null) {
+                                world.chunkLoaded(chunk.getX(), chunk.getZ());
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops reading shards in the background.
+     */
+    public void shutdown() {
+        shardLoader.shutdownNow();
+    }
+
+    /**
+     * Reads the plots of a shard from the storage backend into it. Called by
+     * the world of the shard while it holds the monitor of the shard.
+     * 
+     * @param world
+     * @param shard
+     */
+    void loadShard(final PoliticsWorld world, final WorldShard shard) {
+        final StorageBackend storage = Politics.getStorageBackend();
+        if (storage.isFineGrained()) {
+            readPlotRecords(storage, world, storage.list(PlotRecords.getShardPrefix(world.getName(), shard.getX(), shard.getZ())));
+            return;
+        }
+
+        final String key = getShardFileKey(world.getName(), shard.getX(), shard.getZ());
+        final ByteBuffer content = storage.read(key);
+        if (content == null) {
+            PoliticsPlugin.logger().log(Level.SEVERE, "Shard file `" + key + "' is corrupt and has no valid backup!");
+            return;
+        }
+        try {
+            WorldFileReader.read(content, world);
+        } catch (final IOException ex) {
+            PoliticsPlugin.logger().log(Level.SEVERE, "Could not read shard file `" + key + "'!", ex);
+        } catch (final RuntimeException ex) {
+            PoliticsPlugin.logger().log(Level.SEVERE, "Shard file `" + key + "' is corrupt!", ex);
+        }
+        for (final ChunkPlot plot : shard.getPlots()) {
+            plot.setDirty(false);
+        }
+    }
+
+    /**
+     * Adds the file of a shard to the given snapshot, or removes it if the
+     * shard has no plot worth storing anymore.
+     * 
+     * @param snapshot
+     * @param world
+     * @param shard
+     * @param compress
+     */
+    private static void snapshotShardFile(final Snapshot snapshot, final PoliticsWorld world, final WorldShard shard, final boolean compress) {
+        final String key = getShardFileKey(world.getName(), shard.getX(), shard.getZ());
+        // Cleaned before capturing, so plots changing meanwhile dirty it again
+        shard.setDirty(false);
+        boolean empty = true;
+        for (final ChunkPlot plot : shard.getPlots()) {
+            if (plot.canStore()) {
+                empty = false;
+                break;
+            }
+        }
+        if (!empty) {
+            snapshot.add(key, shard, new WorldFileWriter(world.getName(), shard.getPlots(), Collections.<RegionPlot> emptyList(), compress));
+            world.setShardStored(shard.getX(), shard.getZ(), true);
+        } else if (world.getStoredShards().contains(shard.getKey())) {
+            snapshot.remove(key, shard);
+            world.setShardStored(shard.getX(), shard.getZ(), false);
+        }
+    }
+
+    /**
+     * Adds the record of a plot to the given snapshot if the plot changed.
+     * Chunk plots that lost all of their owners have their record removed.
+     * 
+     * @param snapshot
+     * @param key
+     * @param plot
+     */
+    private static void snapshotPlot(final Snapshot snapshot, final String key, final Plot plot) {
+        if (!plot.isDirty()) {
+            return;
+        }
+        plot.setDirty(false);
+        if (plot.canStore()) {
+            snapshot.add(key, plot, new PlotRecords.OwnersDocument(plot));
+        } else {
+            snapshot.remove(key, plot);
+        }
+    }
+
+    /**
+     * Reads the region plots of a world and notes which of its shards are
+     * stored. A world still stored as a single file is read completely and
+     * stored as shards with the next snapshot.
+     * 
+     * @param storage
+     * @param world
+     * @param keys
+     *            The keys of the records of the world
+     * @return The world, or null if it could not be read
+     */
+    private static PoliticsWorld readWorld(final StorageBackend storage, final PoliticsWorld world, final WorldKeys keys) {
+        world.getStoredShards().addAll(keys.shards);
+
+        if (storage.isFineGrained()) {
+            readPlotRecords(storage, world, keys.regions);
+            world.setDirty(false);
+            return world;
+        }
+
+        final boolean sharded = !keys.shards.isEmpty() || !keys.regions.isEmpty();
+        final List<String> files = sharded || keys.legacy == null ? keys.regions : Collections.singletonList(keys.legacy);
+        for (final String key : files) {
+            final ByteBuffer content = storage.read(key);
+            if (content == null) {
+                PoliticsPlugin.logger().log(Level.SEVERE, "World file `" + key + "' is corrupt and has no valid backup!");
+                return null;
+            }
             try {
-                FileUtils.writeByteArrayToFile(worldFile, data);
+                WorldFileReader.read(content, world);
             } catch (final IOException ex) {
-                PoliticsPlugin.logger().log(Level.SEVERE, "Could not save universe file `" + fileName + "' due to error!", ex);
+                PoliticsPlugin.logger().log(Level.SEVERE, "Could not read world file `" + key + "'!", ex);
+                return null;
+            } catch (final RuntimeException ex) {
+                PoliticsPlugin.logger().log(Level.SEVERE, "World file `" + key + "' is corrupt!", ex);
+                return null;
+            }
+        }
+
+        if (keys.legacy == null) {
+            world.setDirty(false);
+        } else if (sharded) {
+            // Left over from an interrupted migration
+            world.getRemovedRecords().add(keys.legacy);
+            world.setDirty(false);
+        } else {
+            // Every shard of the file is in memory, and stays there until
+            // it is stored
+            for (final WorldShard shard : world.getShards()) {
+                shard.setLoaded();
+                shard.setDirty(true);
+            }
+            world.getRemovedRecords().add(keys.legacy);
+            world.setDirty(true);
+            PoliticsPlugin.logger().log(Level.INFO, "World file `" + keys.legacy + "' will be split into shards with the next save.");
+        }
+        return world;
+    }
+
+    /**
+     * Reads plot records into the given world.
+     * 
+     * @param storage
+     * @param world
+     *            The world to add the plots to
+     * @param keys
+     *            The keys of the plot records
+     */
+    private static void readPlotRecords(final StorageBackend storage, final PoliticsWorld world, final List<String> keys) {
+        for (final String key : keys) {
+            final ByteBuffer value = storage.read(key);
+            if (value == null) {
+                PoliticsPlugin.logger().log(Level.SEVERE, "Plot record `" + key + "' is corrupt!");
+                continue;
+            }
+            final Plot plot;
+            try {
+                plot = PlotRecords.read(world, key, value);
+            } catch (final RuntimeException ex) {
+                PoliticsPlugin.logger().log(Level.SEVERE, "Plot record `" + key + "' is corrupt!", ex);
                 continue;
             }
+            plot.setDirty(false);
+            world.addLoadedPlot(plot);
+        }
+    }
+
+    /**
+     * Gets the key of the file storing the region plots of a world.
+     * 
+     * @param world
+     * @return
+     */
+    private static String getRegionsFileKey(final String world) {
+        return PlotRecords.getWorldPrefix(world) + "regions.ptw";
+    }
+
+    /**
+     * Gets the key of the file storing the chunk plots of a shard.
+     * 
+     * @param world
+     * @param x
+     *            shard x
+     * @param z
+     *            shard z
+     * @return
+     */
+    private static String getShardFileKey(final String world, final int x, final int z) {
+        return PlotRecords.getWorldPrefix(world) + "r." + x + "." + z + ".ptw";
+    }
+
+    /**
+     * The keys of the records of a world found in storage
+     */
+    private static final class WorldKeys {
+        private final String name;
+        /**
+         * Key of the file holding the whole world, if there is one
+         */
+        private String legacy;
+        /**
+         * Keys of the region plot records, or of the regions file
+         */
+        private final List<String> regions = new ArrayList<String>();
+        /**
+         * Keys of the shards that are stored
+         */
+        private final TLongSet shards = new TLongHashSet();
+
+        private WorldKeys(final String name) {
+            this.name = name;
+        }
+
+        private void add(final String key, final boolean fineGrained) {
+            if (fineGrained) {
+                final int[] shard = PlotRecords.getShard(name, key);
+                if (shard != null) {
+                    shards.add(WorldShard.key(shard[0], shard[1]));
+                } else if (PlotRecords.isRegionKey(name, key)) {
+                    regions.add(key);
+                }
+                return;
+            }
+
+            final String prefix = PlotRecords.getWorldPrefix(name);
+            if (key.equals(PlotRecords.WORLDS + name + ".ptw")) {
+                legacy = key;
+            } else if (key.equals(getRegionsFileKey(name))) {
+                regions.add(key);
+            } else if (key.startsWith(prefix + "r.") && key.endsWith(".ptw")) {
+                final String[] parts = key.substring(prefix.length() + 2, key.length() - 4).split("\\.");
+                if (parts.length == 2) {
+                    try {
+                        shards.add(WorldShard.key(Integer.parseInt(parts[0]), Integer.parseInt(parts[1])));
+                    } catch (final NumberFormatException ex) {
+                        // Not a shard file
+                    }
+                }
+            }
         }
     }
 
@@ -142,7 +556,7 @@ public class PlotManager {
      * @param name
      * @return
      */
-    public WorldConfig getWorldConfig(final String name) {
+    public synchronized WorldConfig getWorldConfig(final String name) {
         WorldConfig conf = configs.get(name);
         if (conf == null) {
             conf = new WorldConfig(name);
@@ -184,6 +598,16 @@ public class PlotManager {
         return getWorld(world.getName());
     }
 
+    /**
+     * Gets the PoliticsWorld with the given name without creating it.
+     * 
+     * @param name
+     * @return The world, or null if Politics doesn't know it yet
+     */
+    public PoliticsWorld getExistingWorld(final String name) {
+        return worlds.get(name);
+    }
+
     /**
      * Gets the plot at the given chunk position.
      * 
@@ -216,18 +640,30 @@ public class PlotManager {
      * @param chunk
      * @return
      */
-    public ChunkPlot getPlotAtChunk(final Chunk chunk) {
+    public Plot getPlotAtChunk(final Chunk chunk) {
         return getWorld(chunk.getWorld()).getPlotAtChunkPosition(chunk.getX(), chunk.getY(), chunk.getZ());
     }
 
     /**
-     * Gets the plot at the given position.
+     * Gets the chunk plot corresponding with the given Chunk, creating it if
+     * nobody has claimed the Chunk yet.
+     * 
+     * @param chunk
+     * @return
+     */
+    public ChunkPlot getOrCreatePlotAtChunk(final Chunk chunk) {
+        return getWorld(chunk.getWorld()).getOrCreatePlotAtChunkPosition(chunk.getX(), chunk.getY(), chunk.getZ());
+    }
+
+    /**
+     * Gets the plot at the given position, preferring region plots over the
+     * plot of the chunk.
      * 
      * @param position
      * @return
      */
     public Plot getPlotAt(final Point position) {
-        return getPlotAtPosition(position.getWorld(), position.getChunkX(), position.getChunkY(), position.getChunkZ());
+        return getWorld(position.getWorld()).getPlotAt(position.getBlockX(), position.getBlockY(), position.getBlockZ());
     }
 
     /**
@@ -236,9 +672,12 @@ public class PlotManager {
      * @param name
      * @return
      */
-    private PoliticsWorld createWorld(final String name) {
-        final PoliticsWorld world = new PoliticsWorld(name, getWorldConfig(name));
-        worlds.put(name, world);
+    private synchronized PoliticsWorld createWorld(final String name) {
+        PoliticsWorld world = worlds.get(name);
+        if (world == null) {
+            world = new PoliticsWorld(name, getWorldConfig(name));
+            worlds.put(name, world);
+        }
         return world;
     }
 }
@@ -0,0 +1,215 @@
+/*
+ * This file is part of Politics.
+ * 
+ * Copyright (c) 2012-2012, VolumetricPixels <http://volumetricpixels.com/>
+ * Politics is licensed under the Affero General Public License Version 3.
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.volumetricpixels.politics.world;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.nio.ByteBuffer;
+
+import com.volumetricpixels.politics.data.Snapshot;
+
+/**
+ * Stores plots as one record each, for storage backends with fine-grained
+ * records.
+ * 
+ * The key of a record holds the world and the position of the plot, like
+ * <code>worlds/world/chunks/0,-1/1,4,-2</code> for the shard and the position
+ * of a chunk plot, or <code>worlds/world/regions/16,64,-32,8,8,8</code> for
+ * the base block and the size of a region plot. Keeping the shard in the key
+ * lets the plots of a shard be listed together. The value is the number of owners followed by their
+ * ids.
+ */
+final class PlotRecords {
+    /**
+     * Prefix of the keys of plot records
+     */
+    static final String WORLDS = "worlds/";
+    private static final String CHUNKS = "/chunks/";
+    private static final String REGIONS = "/regions/";
+
+    private PlotRecords() {
+    }
+
+    /**
+     * Gets the prefix of the keys of the plots of the given world.
+     * 
+     * @param world
+     * @return
+     */
+    static String getWorldPrefix(final String world) {
+        return WORLDS + world + "/";
+    }
+
+    /**
+     * Gets the name of the world a plot record belongs to.
+     * 
+     * @param key
+     * @return The name of the world, or null if the key is not a plot key
+     */
+    static String getWorldName(final String key) {
+        final int end = key.indexOf('/', WORLDS.length());
+        if (!key.startsWith(WORLDS) || end < 0) {
+            return null;
+        }
+        return key.substring(WORLDS.length(), end);
+    }
+
+    /**
+     * Gets the key of the given chunk plot.
+     * 
+     * @param plot
+     * @return
+     */
+    static String getKey(final ChunkPlot plot) {
+        return getShardPrefix(plot.getPoliticsWorld().getName(), plot.getChunkX() >> WorldShard.BITS, plot.getChunkZ() >> WorldShard.BITS)
+                + plot.getChunkX() + "," + plot.getChunkY() + "," + plot.getChunkZ();
+    }
+
+    /**
+     * Gets the prefix of the keys of the chunk plots of a shard.
+     * 
+     * @param world
+     * @param x
+     *            shard x
+     * @param z
+     *            shard z
+     * @return
+     */
+    static String getShardPrefix(final String world, final int x, final int z) {
+        return WORLDS + world + CHUNKS + x + "," + z + "/";
+    }
+
+    /**
+     * Gets the coordinates of the shard of a chunk plot record.
+     * 
+     * @param world
+     * @param key
+     * @return The shard x and z, or null if the key is not a chunk plot key
+     */
+    static int[] getShard(final String world, final String key) {
+        final String prefix = WORLDS + world + CHUNKS;
+        final int end = key.indexOf('/', prefix.length());
+        if (!key.startsWith(prefix) || end < 0) {
+            return null;
+        }
+        return parseInts(key.substring(prefix.length(), end), 2);
+    }
+
+    /**
+     * Checks if the given key is the key of a region plot record.
+     * 
+     * @param world
+     * @param key
+     * @return
+     */
+    static boolean isRegionKey(final String world, final String key) {
+        return key.startsWith(WORLDS + world + REGIONS);
+    }
+
+    /**
+     * Gets the key of the given region plot.
+     * 
+     * @param plot
+     * @return
+     */
+    static String getKey(final RegionPlot plot) {
+        return WORLDS + plot.getPoliticsWorld().getName() + REGIONS + plot.getMinX() + "," + plot.getMinY() + "," + plot.getMinZ() + ","
+                + (plot.getMaxX() - plot.getMinX()) + "," + (plot.getMaxY() - plot.getMinY()) + "," + (plot.getMaxZ() - plot.getMinZ());
+    }
+
+    /**
+     * Creates the plot stored in a record.
+     * 
+     * @param world
+     *            The world of the plot
+     * @param key
+     *            The key of the record
+     * @param value
+     *            The content of the record
+     * @return
+     * @throws IllegalArgumentException
+     *             If the record is not a valid plot
+     */
+    static Plot read(final PoliticsWorld world, final String key, final ByteBuffer value) {
+        final String prefix = WORLDS + world.getName();
+        final TIntList owners = readOwners(value);
+        if (key.startsWith(prefix + CHUNKS)) {
+            final int[] pos = parseInts(key.substring(key.lastIndexOf('/') + 1), 3);
+            return new ChunkPlot(world, pos[0], pos[1], pos[2], owners);
+        }
+        if (key.startsWith(prefix + REGIONS)) {
+            final int[] pos = parseInts(key.substring(prefix.length() + REGIONS.length()), 6);
+            return new RegionPlot(world, owners, pos[0], pos[1], pos[2], pos[3], pos[4], pos[5]);
+        }
+        throw new IllegalArgumentException("`" + key + "' is not a plot record!");
+    }
+
+    private static TIntList readOwners(final ByteBuffer value) {
+        final int count = value.getInt();
+        if (count < 0 || count * 4 > value.remaining()) {
+            throw new IllegalArgumentException("Invalid owner count " + count + "!");
+        }
+        final TIntList owners = new TIntArrayList(count);
+        for (int i = 0; i < count; i++) {
+            owners.add(value.getInt());
+        }
+        return owners;
+    }
+
+    private static int[] parseInts(final String string, final int count) {
+        final String[] parts = string.split(",");
+        if (parts.length != count) {
+            throw new IllegalArgumentException("Expected " + count + " coordinates in `" + string + "'!");
+        }
+        final int[] ints = new int[count];
+        for (int i = 0; i < count; i++) {
+            ints[i] = Integer.parseInt(parts[i]);
+        }
+        return ints;
+    }
+
+    /**
+     * The owners of a plot, captured when the snapshot is taken
+     */
+    static final class OwnersDocument implements Snapshot.Document {
+        private final int[] owners;
+
+        /**
+         * C'tor
+         * 
+         * @param plot
+         *            The plot to capture
+         */
+        OwnersDocument(final Plot plot) {
+            owners = plot.getOwnerIds().toArray();
+        }
+
+        @Override
+        public byte[] encode() {
+            final ByteBuffer buf = ByteBuffer.allocate(4 + owners.length * 4);
+            buf.putInt(owners.length);
+            for (final int owner : owners) {
+                buf.putInt(owner);
+            }
+            return buf.array();
+        }
+    }
+}
@@ -19,12 +19,22 @@
  */
 package com.volumetricpixels.politics.world;
 
+import gnu.trove.TCollections;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.spout.api.Server;
 import org.spout.api.geo.World;
-import org.spout.api.util.map.concurrent.TSyncInt21TripleObjectHashMap;
-import org.spout.api.util.map.concurrent.TripleIntObjectMap;
+import org.spout.api.geo.cuboid.Chunk;
+import org.spout.api.geo.discrete.Point;
 
 import org.bson.BSONObject;
 import org.bson.BasicBSONObject;
@@ -50,30 +60,41 @@ public class PoliticsWorld implements Storable {
      */
     private final WorldConfig config;
     /**
-     * Contains all owners corresponding to their proper positions
+     * The shards of chunk plots in memory, keyed by their packed shard
+     * coordinates. Chunk plots are canonical: there is at most one Plot
+     * instance per chunk. Iterating it requires holding its monitor.
      */
-    private final TripleIntObjectMap<Plot> plots;
-
+    private final TLongObjectMap<WorldShard> shards = TCollections.synchronizedMap(new TLongObjectHashMap<WorldShard>());
     /**
-     * Creates a new PoliticsWorld
-     * 
-     * @param name
+     * Keys of the shards that have plots in storage
      */
-    PoliticsWorld(final String name, final WorldConfig config) {
-        this(name, config, new TSyncInt21TripleObjectHashMap<Plot>());
-    }
+    private final TLongSet storedShards = TCollections.synchronizedSet(new TLongHashSet());
+    /**
+     * Spatial index of the region plots of this world
+     */
+    private final RegionPlotIndex regions = new RegionPlotIndex();
+    /**
+     * The plot returned for chunks that have not been claimed
+     */
+    private final WildernessPlot wilderness;
+    /**
+     * Keys of the records removed since the last snapshot
+     */
+    private final Queue<String> removedRecords = new ConcurrentLinkedQueue<String>();
+    /**
+     * True if this world changed since it was last stored
+     */
+    private volatile boolean dirty = true;
 
     /**
-     * C'tor
+     * Creates a new PoliticsWorld
      * 
      * @param name
-     * @param config
-     * @param owners
      */
-    private PoliticsWorld(final String name, final WorldConfig config, final TripleIntObjectMap<Plot> plots) {
+    PoliticsWorld(final String name, final WorldConfig config) {
         this.name = name;
         this.config = config;
-        this.plots = plots;
+        wilderness = new WildernessPlot(this);
     }
 
     /**
@@ -84,8 +105,8 @@ public class PoliticsWorld implements Storable {
      * @param object
      */
     public PoliticsWorld(final String name, final WorldConfig config, final BasicBSONObject object) {
-        this.name = object.getString("name", null);
-        plots = new TSyncInt21TripleObjectHashMap<Plot>();
+        this.name = name;
+        wilderness = new WildernessPlot(this);
         final BasicBSONList list = DataUtils.getList(object.get("plots"));
         for (final Object o : list) {
             if (!(o instanceof BasicBSONObject)) {
@@ -98,22 +119,42 @@ public class PoliticsWorld implements Storable {
             }
             switch (PlotType.valueOf(string)) {
                 case CHUNK: {
-                    final ChunkPlot p = new ChunkPlot(plotObj);
-                    plots.put(p.getX(), p.getY(), p.getZ(), p);
+                    addLoadedPlot(new ChunkPlot(this, plotObj));
                     break;
                 }
                 case REGION: {
-                    final RegionPlot p = new RegionPlot(plotObj);
-                    plots.put(p.getX(), p.getY(), p.getZ(), p);
+                    addLoadedPlot(new RegionPlot(this, plotObj));
                     break;
                 }
                 default:
                     throw new IllegalStateException("Was unable to handle Type");
             }
         }
+        for (final WorldShard shard : getShards()) {
+            shard.setLoaded();
+        }
         this.config = config;
     }
 
+    /**
+     * Adds a plot read from storage. Chunk plots are added to their shard
+     * without loading it.
+     * 
+     * @param plot
+     */
+    void addLoadedPlot(final Plot plot) {
+        if (plot instanceof ChunkPlot) {
+            final ChunkPlot p = (ChunkPlot) plot;
+            final int x = p.getChunkX() >> WorldShard.BITS;
+            final int z = p.getChunkZ() >> WorldShard.BITS;
+            getOrCreateShard(x, z).addPlot(p);
+        } else if (plot instanceof RegionPlot) {
+            regions.add((RegionPlot) plot);
+        } else {
+            throw new IllegalArgumentException("Cannot load a plot of type " + plot.getClass().getSimpleName() + "!");
+        }
+    }
+
     /**
      * Gets the name of the GroupsWorld
      * 
@@ -175,12 +216,15 @@ public class PoliticsWorld implements Storable {
      * Gets the owners of a given plot location within this world
      * 
      * @param x
+     *            chunkX
      * @param y
+     *            chunkY
      * @param z
+     *            chunkZ
      * @return
      */
     public List<Group> getOwners(final int x, final int y, final int z) {
-        return plots.get(x, y, z).getOwners();
+        return getPlotAtChunkPosition(x, y, z).getOwners();
     }
 
     /**
@@ -194,7 +238,8 @@ public class PoliticsWorld implements Storable {
     }
 
     /**
-     * Gets the plot at the given point
+     * Gets the plot at the given block. This is the smallest region plot
+     * containing the block if there is one, otherwise the plot of the chunk.
      * 
      * @param x
      * @param y
@@ -202,11 +247,329 @@ public class PoliticsWorld implements Storable {
      * @return
      */
     public Plot getPlotAt(final int x, final int y, final int z) {
-        return plots.get(x, y, z);
+        final RegionPlot region = regions.getSmallestAt(x, y, z);
+        if (region != null) {
+            return region;
+        }
+        return getPlotAtChunkPosition(x >> Chunk.BLOCKS.BITS, y >> Chunk.BLOCKS.BITS, z >> Chunk.BLOCKS.BITS);
+    }
+
+    /**
+     * Creates a new region plot in this world.
+     * 
+     * @param basePoint
+     * @param xSize
+     * @param ySize
+     * @param zSize
+     * @return
+     */
+    public RegionPlot createRegionPlot(final Point basePoint, final int xSize, final int ySize, final int zSize) {
+        final RegionPlot plot = new RegionPlot(this, basePoint, xSize, ySize, zSize);
+        regions.add(plot);
+        Politics.getWriteAheadLog().logCreateRegionPlot(plot);
+        setDirty(true);
+        return plot;
+    }
+
+    /**
+     * Removes the given region plot from this world.
+     * 
+     * @param plot
+     * @return True if the plot was part of this world
+     */
+    public boolean removeRegionPlot(final RegionPlot plot) {
+        if (!regions.remove(plot)) {
+            return false;
+        }
+        Politics.getWriteAheadLog().logRemoveRegionPlot(plot);
+        removedRecords.add(PlotRecords.getKey(plot));
+        setDirty(true);
+        return true;
+    }
+
+    /**
+     * Gets the region plot with exactly the given block bounds.
+     * 
+     * @param minX
+     * @param minY
+     * @param minZ
+     * @param maxX
+     *            exclusive
+     * @param maxY
+     *            exclusive
+     * @param maxZ
+     *            exclusive
+     * @return The region plot, or null if there is none
+     */
+    public RegionPlot getRegionPlot(final int minX, final int minY, final int minZ, final int maxX, final int maxY, final int maxZ) {
+        for (final RegionPlot plot : regions.getAt(minX, minY, minZ)) {
+            if (plot.getMinX() == minX && plot.getMinY() == minY && plot.getMinZ() == minZ && plot.getMaxX() == maxX && plot.getMaxY() == maxY
+                    && plot.getMaxZ() == maxZ) {
+                return plot;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the chunk plots of the shards in memory.
+     * 
+     * @return
+     */
+    List<ChunkPlot> getChunkPlots() {
+        final List<ChunkPlot> ret = new ArrayList<ChunkPlot>();
+        for (final WorldShard shard : getShards()) {
+            ret.addAll(shard.getPlots());
+        }
+        return ret;
+    }
+
+    /**
+     * Gets a copy of the shards in memory.
+     * 
+     * @return
+     */
+    Collection<WorldShard> getShards() {
+        synchronized (shards) {
+            return new ArrayList<WorldShard>(shards.valueCollection());
+        }
+    }
+
+    /**
+     * Gets the shard with the given shard coordinates, adding an empty one
+     * that is not loaded yet if it is not in memory.
+     * 
+     * @param x
+     *            shard x
+     * @param z
+     *            shard z
+     * @return
+     */
+    private WorldShard getOrCreateShard(final int x, final int z) {
+        final long key = WorldShard.key(x, z);
+        final WorldShard shard = shards.get(key);
+        if (shard != null) {
+            return shard;
+        }
+        final WorldShard created = new WorldShard(this, x, z);
+        final WorldShard prev = shards.putIfAbsent(key, created);
+        return prev != null ? prev : created;
+    }
+
+    /**
+     * Gets the shard containing the given chunk column, reading it from
+     * storage if it is not in memory. Shards of loaded chunks are read ahead
+     * of time when the chunk loads, so this only waits for storage when the
+     * plots of unloaded chunks are accessed. Lookups that don't claim land
+     * use {@link #getPlotAtChunkPosition(int, int, int)}, which never reads
+     * or creates a shard nothing was stored for.
+     * 
+     * @param chunkX
+     * @param chunkZ
+     * @return
+     */
+    WorldShard getShard(final int chunkX, final int chunkZ) {
+        final WorldShard shard = getOrCreateShard(chunkX >> WorldShard.BITS, chunkZ >> WorldShard.BITS);
+        if (!shard.isLoaded()) {
+            loadShard(shard);
+        }
+        return shard;
+    }
+
+    /**
+     * Reads the plots of the given shard from storage unless that was done
+     * already. Only holds the monitor of the shard, so lookups in other
+     * shards never wait for it.
+     * 
+     * @param shard
+     */
+    void loadShard(final WorldShard shard) {
+        synchronized (shard) {
+            if (shard.isLoaded()) {
+                return;
+            }
+            if (storedShards.contains(shard.getKey())) {
+                Politics.getPlotManager().loadShard(this, shard);
+            }
+            shard.setLoaded();
+        }
+    }
+
+    /**
+     * Drops the shards no loaded chunk is in and whose changes are all
+     * stored from memory. That includes shards that were only created to
+     * count loaded chunks or to look plots up and were never read. Their plots are detached, so plots held elsewhere
+     * forward to the plots of the shard read back from storage.
+     * 
+     * @return The number of shards dropped
+     */
+    int unloadShards() {
+        final List<WorldShard> unloaded = new ArrayList<WorldShard>();
+        synchronized (shards) {
+            for (final WorldShard shard : shards.valueCollection()) {
+                if (shard.canUnload()) {
+                    unloaded.add(shard);
+                }
+            }
+            for (final WorldShard shard : unloaded) {
+                shards.remove(shard.getKey());
+                shard.setUnloaded();
+            }
+        }
+        return unloaded.size();
+    }
+
+    /**
+     * Merges a plot that changed after its shard was dropped from memory into
+     * the plot at its position now, so the change is stored. Only happens
+     * when the plot changed while its shard was being dropped; plots of
+     * dropped shards otherwise forward to the current plots.
+     * 
+     * @param plot
+     */
+    void mergeDetachedPlot(final ChunkPlot plot) {
+        final ChunkPlot current = getOrCreatePlotAtChunkPosition(plot.getChunkX(), plot.getChunkY(), plot.getChunkZ());
+        if (current != plot) {
+            current.copyOwners(plot);
+        }
     }
 
     /**
-     * Gets the plot at the given chunk position
+     * Marks the given shard as having plots in storage.
+     * 
+     * @param x
+     *            shard x
+     * @param z
+     *            shard z
+     * @param stored
+     */
+    void setShardStored(final int x, final int z, final boolean stored) {
+        if (stored) {
+            storedShards.add(WorldShard.key(x, z));
+        } else {
+            storedShards.remove(WorldShard.key(x, z));
+        }
+    }
+
+    /**
+     * Gets the keys of the shards that have plots in storage.
+     * 
+     * @return
+     */
+    TLongSet getStoredShards() {
+        return storedShards;
+    }
+
+    /**
+     * Called when the engine loaded a chunk of this world. The shard of the
+     * chunk is read in the background if it is not in memory yet.
+     * 
+     * @param chunkX
+     * @param chunkZ
+     */
+    public void chunkLoaded(final int chunkX, final int chunkZ) {
+        final long key = WorldShard.key(chunkX >> WorldShard.BITS, chunkZ >> WorldShard.BITS);
+        WorldShard shard;
+        while (true) {
+            shard = getOrCreateShard(chunkX >> WorldShard.BITS, chunkZ >> WorldShard.BITS);
+            shard.chunkLoaded();
+            // The shard may have been dropped before it counted the chunk.
+            // Dropping happens under the monitor of the map, so once the map
+            // still holds the shard, it is kept for as long as the chunk is.
+            if (shards.get(key) == shard) {
+                break;
+            }
+            shard.chunkUnloaded();
+        }
+        if (!shard.isLoaded() && storedShards.contains(key)) {
+            Politics.getPlotManager().loadShardLater(this, shard);
+        }
+    }
+
+    /**
+     * Called when the engine unloaded a chunk of this world. Shards without
+     * loaded chunks are dropped with the next snapshot.
+     * 
+     * @param chunkX
+     * @param chunkZ
+     */
+    public void chunkUnloaded(final int chunkX, final int chunkZ) {
+        final WorldShard shard = shards.get(WorldShard.key(chunkX >> WorldShard.BITS, chunkZ >> WorldShard.BITS));
+        if (shard != null) {
+            shard.chunkUnloaded();
+        }
+    }
+
+    /**
+     * Gets the keys of the records removed since the last snapshot.
+     * 
+     * @return
+     */
+    Queue<String> getRemovedRecords() {
+        return removedRecords;
+    }
+
+    /**
+     * Gets all region plots of this world.
+     * 
+     * @return
+     */
+    public List<RegionPlot> getRegionPlots() {
+        return regions.getAll();
+    }
+
+    /**
+     * Checks if this world has any region plots.
+     * 
+     * @return
+     */
+    public boolean hasRegionPlots() {
+        return !regions.isEmpty();
+    }
+
+    /**
+     * Gets the region plots containing the given block.
+     * 
+     * @param x
+     * @param y
+     * @param z
+     * @return
+     */
+    public List<RegionPlot> getRegionPlotsAt(final int x, final int y, final int z) {
+        return regions.getAt(x, y, z);
+    }
+
+    /**
+     * Gets the region plots overlapping the given block box. Minimums are
+     * inclusive, maximums exclusive.
+     * 
+     * @return
+     */
+    public List<RegionPlot> getRegionPlotsIn(final int minX, final int minY, final int minZ, final int maxX, final int maxY, final int maxZ) {
+        return regions.getIntersecting(minX, minY, minZ, maxX, maxY, maxZ);
+    }
+
+    /**
+     * Gets the region plot nearest to the given block.
+     * 
+     * @param x
+     * @param y
+     * @param z
+     * @param maxDistance
+     *            The furthest in blocks to look
+     * @return null if there is no region plot within maxDistance
+     */
+    public RegionPlot getNearestRegionPlot(final int x, final int y, final int z, final int maxDistance) {
+        return regions.getNearest(x, y, z, maxDistance);
+    }
+
+    /**
+     * Gets the plot at the given chunk position. Unclaimed chunks all share
+     * the wilderness plot of this world, which cannot be owned; use
+     * {@link #getOrCreatePlotAtChunkPosition(int, int, int)} to claim land.
+     * 
+     * Only waits for storage if plots were stored for the chunk and its shard
+     * was not read ahead when the chunk loaded.
      * 
      * @param x
      *            chunkX
@@ -216,8 +579,52 @@ public class PoliticsWorld implements Storable {
      *            chunkZ
      * @return
      */
-    public ChunkPlot getPlotAtChunkPosition(final int x, final int y, final int z) {
-        return new ChunkPlot(this, x, y, z);
+    public Plot getPlotAtChunkPosition(final int x, final int y, final int z) {
+        final long key = WorldShard.key(x >> WorldShard.BITS, z >> WorldShard.BITS);
+        WorldShard shard = shards.get(key);
+        if (shard == null || !shard.isLoaded()) {
+            if (!storedShards.contains(key)) {
+                // Nothing was ever claimed here, so there is nothing to read
+                // and no shard to keep
+                final ChunkPlot plot = shard == null ? null : shard.getPlot(x, y, z);
+                return plot == null ? wilderness : plot;
+            }
+            shard = getShard(x, z);
+        }
+        final Plot plot = shard.getPlot(x, y, z);
+        return plot == null ? wilderness : plot;
+    }
+
+    /**
+     * Gets the chunk plot at the given chunk position, creating and
+     * registering it if it doesn't exist yet.
+     * 
+     * @param x
+     *            chunkX
+     * @param y
+     *            chunkY
+     * @param z
+     *            chunkZ
+     * @return
+     */
+    public ChunkPlot getOrCreatePlotAtChunkPosition(final int x, final int y, final int z) {
+        final WorldShard shard = getShard(x, z);
+        final ChunkPlot plot = shard.getPlot(x, y, z);
+        if (plot != null) {
+            return plot;
+        }
+        final ChunkPlot created = new ChunkPlot(this, x, y, z);
+        final ChunkPlot prev = shard.addPlot(created);
+        return prev != null ? prev : created;
+    }
+
+    /**
+     * Gets the plot representing all unclaimed land in this world.
+     * 
+     * @return
+     */
+    public Plot getWilderness() {
+        return wilderness;
     }
 
     /**
@@ -234,13 +641,19 @@ public class PoliticsWorld implements Storable {
         final BasicBSONObject bson = new BasicBSONObject();
         bson.put("name", name);
         final BasicBSONList plotList = new BasicBSONList();
-        for (final Plot plot : plots.valueCollection()) {
+        for (final Plot plot : getChunkPlots()) {
+            if (!plot.canStore()) {
+                continue;
+            }
+            plotList.add(plot.toBSONObject());
+        }
+        for (final RegionPlot plot : regions.getAll()) {
             if (!plot.canStore()) {
                 continue;
             }
             plotList.add(plot.toBSONObject());
         }
-        bson.put("plots", plots);
+        bson.put("plots", plotList);
         return bson;
     }
 
@@ -248,4 +661,14 @@ public class PoliticsWorld implements Storable {
     public boolean canStore() {
         return true;
     }
+
+    @Override
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    @Override
+    public void setDirty(final boolean dirty) {
+        this.dirty = dirty;
+    }
 }
@@ -19,6 +19,8 @@
  */
 package com.volumetricpixels.politics.world;
 
+import gnu.trove.list.TIntList;
+
 import org.spout.api.geo.cuboid.Cuboid;
 import org.spout.api.geo.discrete.Point;
 import org.spout.api.math.Vector3;
@@ -31,6 +33,10 @@ import org.bson.BasicBSONObject;
  */
 public class RegionPlot extends Plot {
     private final Cuboid cuboid;
+    /**
+     * Block bounds of the cuboid. Minimums are inclusive, maximums exclusive.
+     */
+    private final int minX, minY, minZ, maxX, maxY, maxZ;
 
     /**
      * C'tor
@@ -43,18 +49,45 @@ public class RegionPlot extends Plot {
     RegionPlot(final PoliticsWorld world, final Point basePoint, final int xSize, final int ySize, final int zSize) {
         super(world);
         cuboid = new Cuboid(basePoint, new Vector3(xSize, ySize, zSize));
+        minX = basePoint.getBlockX();
+        minY = basePoint.getBlockY();
+        minZ = basePoint.getBlockZ();
+        maxX = minX + xSize;
+        maxY = minY + ySize;
+        maxZ = minZ + zSize;
     }
 
     /**
      * C'tor
      * 
      * @param world
+     * @param owners
      * @param x
      * @param y
      * @param z
+     * @param xSize
+     * @param ySize
+     * @param zSize
      */
-    RegionPlot(final BasicBSONObject object) {
-        super(object);
+    RegionPlot(final PoliticsWorld world, final TIntList owners, final int x, final int y, final int z, final int xSize, final int ySize, final int zSize) {
+        super(world, owners);
+        cuboid = new Cuboid(new Point(world.getWorld(), x, y, z), new Vector3(xSize, ySize, zSize));
+        minX = x;
+        minY = y;
+        minZ = z;
+        maxX = x + xSize;
+        maxY = y + ySize;
+        maxZ = z + zSize;
+    }
+
+    /**
+     * C'tor
+     * 
+     * @param world
+     * @param object
+     */
+    RegionPlot(final PoliticsWorld world, final BasicBSONObject object) {
+        super(world, object);
         final Object x = object.get("x");
         final Object y = object.get("y");
         final Object z = object.get("z");
@@ -80,6 +113,12 @@ public class RegionPlot extends Plot {
             throw new IllegalArgumentException("zSize was not  an Integer.");
         }
         cuboid = new Cuboid(new Point(getPoliticsWorld().getWorld(), (Integer) x, (Integer) y, (Integer) z), new Vector3((Integer) xSize, (Integer) ySize, (Integer) zSize));
+        minX = (Integer) x;
+        minY = (Integer) y;
+        minZ = (Integer) z;
+        maxX = minX + (Integer) xSize;
+        maxY = minY + (Integer) ySize;
+        maxZ = minZ + (Integer) zSize;
     }
 
     /**
@@ -106,16 +145,103 @@ public class RegionPlot extends Plot {
         return cuboid.contains(point);
     }
 
+    /**
+     * Checks if the block at the given coordinates is inside this plot.
+     * 
+     * @param x
+     * @param y
+     * @param z
+     * @return
+     */
+    public boolean containsBlock(final int x, final int y, final int z) {
+        return x >= minX && x < maxX && y >= minY && y < maxY && z >= minZ && z < maxZ;
+    }
+
+    /**
+     * Checks if this plot overlaps the given block box. Minimums are
+     * inclusive, maximums exclusive.
+     * 
+     * @return
+     */
+    public boolean intersects(final int minX, final int minY, final int minZ, final int maxX, final int maxY, final int maxZ) {
+        return minX < this.maxX && maxX > this.minX && minY < this.maxY && maxY > this.minY && minZ < this.maxZ && maxZ > this.minZ;
+    }
+
+    /**
+     * Gets the squared distance in blocks from the given block to this plot.
+     * 
+     * @param x
+     * @param y
+     * @param z
+     * @return 0 if the block is inside the plot
+     */
+    public long distanceSquared(final int x, final int y, final int z) {
+        final long dx = x < minX ? minX - x : x >= maxX ? x - maxX + 1 : 0;
+        final long dy = y < minY ? minY - y : y >= maxY ? y - maxY + 1 : 0;
+        final long dz = z < minZ ? minZ - z : z >= maxZ ? z - maxZ + 1 : 0;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * Gets the volume of this plot in blocks.
+     * 
+     * @return
+     */
+    public long getVolume() {
+        return (long) (maxX - minX) * (maxY - minY) * (maxZ - minZ);
+    }
+
+    /**
+     * @return the inclusive minimum x block coordinate
+     */
+    public int getMinX() {
+        return minX;
+    }
+
+    /**
+     * @return the inclusive minimum y block coordinate
+     */
+    public int getMinY() {
+        return minY;
+    }
+
+    /**
+     * @return the inclusive minimum z block coordinate
+     */
+    public int getMinZ() {
+        return minZ;
+    }
+
+    /**
+     * @return the exclusive maximum x block coordinate
+     */
+    public int getMaxX() {
+        return maxX;
+    }
+
+    /**
+     * @return the exclusive maximum y block coordinate
+     */
+    public int getMaxY() {
+        return maxY;
+    }
+
+    /**
+     * @return the exclusive maximum z block coordinate
+     */
+    public int getMaxZ() {
+        return maxZ;
+    }
+
     @Override
-    public BSONObject toBSONObject() {
-        final BSONObject obj = super.toBSONObject();
+    protected BSONObject createBSONObject() {
+        final BSONObject obj = super.createBSONObject();
         obj.put("x", getX());
         obj.put("y", getY());
         obj.put("z", getZ());
-        final Vector3 size = cuboid.getSize();
-        obj.put("xSize", size.getX());
-        obj.put("ySize", size.getY());
-        obj.put("zSize", size.getZ());
+        obj.put("xSize", maxX - minX);
+        obj.put("ySize", maxY - minY);
+        obj.put("zSize", maxZ - minZ);
         obj.put("type", PlotType.REGION.name());
         return obj;
     }
@@ -0,0 +1,498 @@
+/*
+ * This file is part of Politics.
+ * 
+ * Copyright (c) 2012-2012, VolumetricPixels <http://volumetricpixels.com/>
+ * Politics is licensed under the Affero General Public License Version 3.
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.volumetricpixels.politics.world;
+
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.spout.api.geo.cuboid.Chunk;
+
+/**
+ * A spatial index over the RegionPlots of a world, built as a hierarchical
+ * grid. Level 0 has chunk-sized cells and every further level doubles the cell
+ * size. Each plot lives on the finest level whose cells are at least as large
+ * as the plot, so it overlaps at most two cells along each axis and adding or
+ * removing it touches at most eight buckets. A point query looks at one cell
+ * per level in use, which is logarithmic in the size of the largest plot and
+ * independent of the number of plots.
+ * 
+ * Queries share a read lock, so the protection listener never waits on other
+ * lookups, only on plots being added or removed.
+ */
+final class RegionPlotIndex {
+    /**
+     * Bits of a block coordinate that are inside a level 0 cell
+     */
+    private static final int CELL_BITS = Chunk.BLOCKS.BITS;
+    /**
+     * Size of a level 0 cell in blocks
+     */
+    private static final int CELL_SIZE = 1 << CELL_BITS;
+    /**
+     * The number of levels, the coarsest of which has two cells along each
+     * axis
+     */
+    private static final int LEVELS = 32 - CELL_BITS;
+    /**
+     * Mask of the 21 bits each cell coordinate is packed into
+     */
+    private static final long MASK = 0x1FFFFF;
+    /**
+     * Plots overlapping each cell of each level, keyed by the packed cell
+     * coordinates. Levels are created when the first plot is put on them.
+     */
+    @SuppressWarnings("unchecked")
+    private final TLongObjectMap<List<RegionPlot>>[] levels = new TLongObjectMap[LEVELS];
+    /**
+     * The number of plots on each level
+     */
+    private final int[] counts = new int[LEVELS];
+    /**
+     * All plots in the index
+     */
+    private final Set<RegionPlot> plots = Collections.newSetFromMap(new IdentityHashMap<RegionPlot, Boolean>());
+    /**
+     * Guards the index: queries share the read lock, changes take the write
+     * lock
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Adds a plot to the index.
+     * 
+     * @param plot
+     * @return True if the plot was not in the index already
+     */
+    boolean add(final RegionPlot plot) {
+        final Lock write = lock.writeLock();
+        write.lock();
+        try {
+            if (!plots.add(plot)) {
+                return false;
+            }
+            final int level = getLevel(plot);
+            TLongObjectMap<List<RegionPlot>> cells = levels[level];
+            if (cells == null) {
+                cells = new TLongObjectHashMap<List<RegionPlot>>();
+                levels[level] = cells;
+            }
+            counts[level]++;
+            final int shift = CELL_BITS + level;
+            for (int cx = plot.getMinX() >> shift; cx <= plot.getMaxX() - 1 >> shift; cx++) {
+                for (int cy = plot.getMinY() >> shift; cy <= plot.getMaxY() - 1 >> shift; cy++) {
+                    for (int cz = plot.getMinZ() >> shift; cz <= plot.getMaxZ() - 1 >> shift; cz++) {
+                        final long key = key(cx, cy, cz);
+                        List<RegionPlot> bucket = cells.get(key);
+                        if (bucket == null) {
+                            bucket = new ArrayList<RegionPlot>(2);
+                            cells.put(key, bucket);
+                        }
+                        bucket.add(plot);
+                    }
+                }
+            }
+            return true;
+        } finally {
+            write.unlock();
+        }
+    }
+
+    /**
+     * Removes a plot from the index.
+     * 
+     * @param plot
+     * @return True if the plot was in the index
+     */
+    boolean remove(final RegionPlot plot) {
+        final Lock write = lock.writeLock();
+        write.lock();
+        try {
+            if (!plots.remove(plot)) {
+                return false;
+            }
+            final int level = getLevel(plot);
+            final TLongObjectMap<List<RegionPlot>> cells = levels[level];
+            counts[level]--;
+            final int shift = CELL_BITS + level;
+            for (int cx = plot.getMinX() >> shift; cx <= plot.getMaxX() - 1 >> shift; cx++) {
+                for (int cy = plot.getMinY() >> shift; cy <= plot.getMaxY() - 1 >> shift; cy++) {
+                    for (int cz = plot.getMinZ() >> shift; cz <= plot.getMaxZ() - 1 >> shift; cz++) {
+                        final long key = key(cx, cy, cz);
+                        final List<RegionPlot> bucket = cells.get(key);
+                        if (bucket == null) {
+                            continue;
+                        }
+                        for (int i = 0; i < bucket.size(); i++) {
+                            if (bucket.get(i) == plot) {
+                                bucket.remove(i);
+                                break;
+                            }
+                        }
+                        if (bucket.isEmpty()) {
+                            cells.remove(key);
+                        }
+                    }
+                }
+            }
+            return true;
+        } finally {
+            write.unlock();
+        }
+    }
+
+    /**
+     * Gets all plots in the index.
+     * 
+     * @return
+     */
+    List<RegionPlot> getAll() {
+        final Lock read = lock.readLock();
+        read.lock();
+        try {
+            return new ArrayList<RegionPlot>(plots);
+        } finally {
+            read.unlock();
+        }
+    }
+
+    /**
+     * Checks if the index holds no plots.
+     * 
+     * @return
+     */
+    boolean isEmpty() {
+        final Lock read = lock.readLock();
+        read.lock();
+        try {
+            return plots.isEmpty();
+        } finally {
+            read.unlock();
+        }
+    }
+
+    /**
+     * Gets the plots containing the given block.
+     * 
+     * @param x
+     * @param y
+     * @param z
+     * @return
+     */
+    List<RegionPlot> getAt(final int x, final int y, final int z) {
+        final Lock read = lock.readLock();
+        read.lock();
+        try {
+            List<RegionPlot> ret = null;
+            for (int level = 0; level < LEVELS; level++) {
+                if (counts[level] == 0) {
+                    continue;
+                }
+                final List<RegionPlot> bucket = getBucket(level, x, y, z);
+                if (bucket == null) {
+                    continue;
+                }
+                for (int i = 0; i < bucket.size(); i++) {
+                    final RegionPlot plot = bucket.get(i);
+                    if (plot.containsBlock(x, y, z)) {
+                        if (ret == null) {
+                            ret = new ArrayList<RegionPlot>(2);
+                        }
+                        ret.add(plot);
+                    }
+                }
+            }
+            if (ret == null) {
+                return Collections.emptyList();
+            }
+            return ret;
+        } finally {
+            read.unlock();
+        }
+    }
+
+    /**
+     * Gets the smallest plot containing the given block, which is the most
+     * specific sub-plot at that position.
+     * 
+     * @param x
+     * @param y
+     * @param z
+     * @return null if no plot contains the block
+     */
+    RegionPlot getSmallestAt(final int x, final int y, final int z) {
+        final Lock read = lock.readLock();
+        read.lock();
+        try {
+            RegionPlot smallest = null;
+            for (int level = 0; level < LEVELS; level++) {
+                if (counts[level] == 0) {
+                    continue;
+                }
+                final List<RegionPlot> bucket = getBucket(level, x, y, z);
+                if (bucket == null) {
+                    continue;
+                }
+                for (int i = 0; i < bucket.size(); i++) {
+                    final RegionPlot plot = bucket.get(i);
+                    if (plot.containsBlock(x, y, z) && (smallest == null || plot.getVolume() < smallest.getVolume())) {
+                        smallest = plot;
+                    }
+                }
+            }
+            return smallest;
+        } finally {
+            read.unlock();
+        }
+    }
+
+    /**
+     * Gets the plots overlapping the given block box. Minimums are inclusive,
+     * maximums exclusive.
+     * 
+     * @return
+     */
+    List<RegionPlot> getIntersecting(final int minX, final int minY, final int minZ, final int maxX, final int maxY, final int maxZ) {
+        final Lock read = lock.readLock();
+        read.lock();
+        try {
+            final Set<RegionPlot> found = Collections.newSetFromMap(new IdentityHashMap<RegionPlot, Boolean>());
+            for (int level = 0; level < LEVELS; level++) {
+                if (counts[level] == 0) {
+                    continue;
+                }
+                final TLongObjectMap<List<RegionPlot>> cells = levels[level];
+                final int shift = CELL_BITS + level;
+                final long cellCount = ((long) (maxX - 1 >> shift) - (minX >> shift) + 1) * ((long) (maxY - 1 >> shift) - (minY >> shift) + 1)
+                        * ((long) (maxZ - 1 >> shift) - (minZ >> shift) + 1);
+                if (cellCount > cells.size()) {
+                    // A box this large covers more cells than are in use
+                    for (final List<RegionPlot> bucket : cells.valueCollection()) {
+                        addIntersecting(bucket, found, minX, minY, minZ, maxX, maxY, maxZ);
+                    }
+                    continue;
+                }
+                for (int cx = minX >> shift; cx <= maxX - 1 >> shift; cx++) {
+                    for (int cy = minY >> shift; cy <= maxY - 1 >> shift; cy++) {
+                        for (int cz = minZ >> shift; cz <= maxZ - 1 >> shift; cz++) {
+                            final List<RegionPlot> bucket = cells.get(key(cx, cy, cz));
+                            if (bucket != null) {
+                                addIntersecting(bucket, found, minX, minY, minZ, maxX, maxY, maxZ);
+                            }
+                        }
+                    }
+                }
+            }
+            return new ArrayList<RegionPlot>(found);
+        } finally {
+            read.unlock();
+        }
+    }
+
+    private static void addIntersecting(final List<RegionPlot> bucket, final Set<RegionPlot> found, final int minX, final int minY, final int minZ,
+            final int maxX, final int maxY, final int maxZ) {
+        for (int i = 0; i < bucket.size(); i++) {
+            final RegionPlot plot = bucket.get(i);
+            if (plot.intersects(minX, minY, minZ, maxX, maxY, maxZ)) {
+                found.add(plot);
+            }
+        }
+    }
+
+    /**
+     * Gets the plot nearest to the given block. Each level in use is searched
+     * outwards one ring of cells at a time, visiting only the faces of each
+     * ring, until no cell further out can hold anything nearer than the
+     * nearest plot found so far.
+     * 
+     * @param x
+     * @param y
+     * @param z
+     * @param maxDistance
+     *            The furthest in blocks a plot may be
+     * @return null if no plot is within maxDistance
+     */
+    RegionPlot getNearest(final int x, final int y, final int z, final int maxDistance) {
+        final Lock read = lock.readLock();
+        read.lock();
+        try {
+            final NearestSearch search = new NearestSearch(x, y, z, (long) maxDistance * maxDistance);
+            // Coarse levels first, as their few large plots bound the search
+            // of the finer levels the quickest
+            for (int level = LEVELS - 1; level >= 0; level--) {
+                if (counts[level] == 0) {
+                    continue;
+                }
+                final int shift = CELL_BITS + level;
+                final long cellSize = 1L << shift;
+                final int cx = x >> shift;
+                final int cy = y >> shift;
+                final int cz = z >> shift;
+                final int maxRing = (int) Math.min(maxDistance / cellSize + 1, 1 << 32 - shift);
+                final TLongObjectMap<List<RegionPlot>> cells = levels[level];
+                search.cells = cells;
+                search.visited = 0;
+                for (int ring = 0; ring <= maxRing; ring++) {
+                    if (search.visited > cells.size()) {
+                        // The rings cover more cells than are in use
+                        for (final List<RegionPlot> bucket : cells.valueCollection()) {
+                            search.visit(bucket);
+                        }
+                        break;
+                    }
+                    searchRing(search, cx, cy, cz, ring);
+                    // Anything in the next ring is at least this far away
+                    final long bound = ring * cellSize;
+                    if (search.nearestDistance <= bound * bound) {
+                        break;
+                    }
+                }
+            }
+            return search.nearest;
+        } finally {
+            read.unlock();
+        }
+    }
+
+    /**
+     * Visits the cells at the given Chebyshev distance from a cell, walking
+     * the six faces of the ring without visiting any cell twice.
+     */
+    private static void searchRing(final NearestSearch search, final int cx, final int cy, final int cz, final int ring) {
+        if (ring == 0) {
+            search.visit(cx, cy, cz);
+            return;
+        }
+        // The two faces across x, in full
+        for (int dy = -ring; dy <= ring; dy++) {
+            for (int dz = -ring; dz <= ring; dz++) {
+                search.visit(cx - ring, cy + dy, cz + dz);
+                search.visit(cx + ring, cy + dy, cz + dz);
+            }
+        }
+        // The two faces across y, without the edges shared with x
+        for (int dx = -ring + 1; dx < ring; dx++) {
+            for (int dz = -ring; dz <= ring; dz++) {
+                search.visit(cx + dx, cy - ring, cz + dz);
+                search.visit(cx + dx, cy + ring, cz + dz);
+            }
+        }
+        // The two faces across z, without the edges shared with x and y
+        for (int dx = -ring + 1; dx < ring; dx++) {
+            for (int dy = -ring + 1; dy < ring; dy++) {
+                search.visit(cx + dx, cy + dy, cz - ring);
+                search.visit(cx + dx, cy + dy, cz + ring);
+            }
+        }
+    }
+
+    /**
+     * Gets the bucket of the given level holding the given block.
+     * 
+     * @return null if no plot on that level overlaps the cell of the block
+     */
+    private List<RegionPlot> getBucket(final int level, final int x, final int y, final int z) {
+        final int shift = CELL_BITS + level;
+        return levels[level].get(key(x >> shift, y >> shift, z >> shift));
+    }
+
+    /**
+     * Gets the finest level whose cells are at least as large as the plot
+     * along every axis.
+     * 
+     * @param plot
+     * @return
+     */
+    private static int getLevel(final RegionPlot plot) {
+        final long size = Math.max((long) plot.getMaxX() - plot.getMinX(),
+                Math.max((long) plot.getMaxY() - plot.getMinY(), (long) plot.getMaxZ() - plot.getMinZ()));
+        int level = 0;
+        while (level < LEVELS - 1 && (long) CELL_SIZE << level < size) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Packs cell coordinates into a single key.
+     * 
+     * @param x
+     * @param y
+     * @param z
+     * @return
+     */
+    private static long key(final int x, final int y, final int z) {
+        return (x & MASK) << 42 | (y & MASK) << 21 | z & MASK;
+    }
+
+    /**
+     * The state of a nearest plot search
+     */
+    private static final class NearestSearch {
+        private final int x;
+        private final int y;
+        private final int z;
+        private final long maxDistanceSquared;
+        /**
+         * The cells of the level being searched
+         */
+        private TLongObjectMap<List<RegionPlot>> cells;
+        /**
+         * The number of cells of the level visited so far
+         */
+        private int visited;
+        private RegionPlot nearest;
+        private long nearestDistance = Long.MAX_VALUE;
+
+        private NearestSearch(final int x, final int y, final int z, final long maxDistanceSquared) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.maxDistanceSquared = maxDistanceSquared;
+        }
+
+        private void visit(final int cx, final int cy, final int cz) {
+            visited++;
+            final List<RegionPlot> bucket = cells.get(key(cx, cy, cz));
+            if (bucket != null) {
+                visit(bucket);
+            }
+        }
+
+        private void visit(final List<RegionPlot> bucket) {
+            for (int i = 0; i < bucket.size(); i++) {
+                final RegionPlot plot = bucket.get(i);
+                final long distance = plot.distanceSquared(x, y, z);
+                if (distance < nearestDistance && distance <= maxDistanceSquared) {
+                    nearest = plot;
+                    nearestDistance = distance;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * This file is part of Politics.
+ * 
+ * Copyright (c) 2012-2012, VolumetricPixels <http://volumetricpixels.com/>
+ * Politics is licensed under the Affero General Public License Version 3.
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.volumetricpixels.politics.world;
+
+import gnu.trove.TCollections;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.spout.api.geo.World;
+import org.spout.api.geo.discrete.Point;
+
+import com.volumetricpixels.politics.group.Group;
+
+/**
+ * The plot returned for every chunk of a world that nobody has claimed. There
+ * is exactly one per PoliticsWorld and it can never be owned, which keeps plot
+ * lookups in unclaimed land free of allocations.
+ */
+final class WildernessPlot extends Plot {
+    /**
+     * The owners of the wilderness, which is nobody
+     */
+    private static final TIntList NO_OWNERS = TCollections.unmodifiableList(new TIntArrayList(0));
+    /**
+     * The origin of the world, lazily resolved
+     */
+    private volatile Point base;
+
+    /**
+     * C'tor
+     * 
+     * @param world
+     */
+    WildernessPlot(final PoliticsWorld world) {
+        super(world, NO_OWNERS);
+    }
+
+    @Override
+    public Point getBasePoint() {
+        if (base == null) {
+            base = new Point(getPoliticsWorld().getWorld(), 0, 0, 0);
+        }
+        return base;
+    }
+
+    @Override
+    public List<Group> getOwners() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean addOwner(final Group group) {
+        return false;
+    }
+
+    @Override
+    public boolean contains(final Point point) {
+        final World world = point.getWorld();
+        if (world == null || !world.getName().equals(getPoliticsWorld().getName())) {
+            return false;
+        }
+        return getPoliticsWorld().getPlotAtChunkPosition(point.getChunkX(), point.getChunkY(), point.getChunkZ()) == this;
+    }
+
+    @Override
+    public boolean canStore() {
+        return false;
+    }
+
+    @Override
+    public void setDirty(final boolean dirty) {
+        // The wilderness never changes
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * This file is part of Politics.
+ * 
+ * Copyright (c) 2012-2012, VolumetricPixels <http://volumetricpixels.com/>
+ * Politics is licensed under the Affero General Public License Version 3.
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.volumetricpixels.politics.world;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads a .ptw world file straight into a PoliticsWorld.
+ * 
+ * The file is memory-mapped. Files in the columnar format written by
+ * {@link WorldFileWriter} are decoded column by column. Legacy BSON files are
+ * walked in place: every plot document is decoded into a few locals and
+ * turned into a plot right away, so no intermediate document tree of the
+ * whole world is ever built.
+ */
+final class WorldFileReader {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte DOUBLE = 0x01;
+    private static final byte STRING = 0x02;
+    private static final byte DOCUMENT = 0x03;
+    private static final byte ARRAY = 0x04;
+    private static final byte BINARY = 0x05;
+    private static final byte OBJECT_ID = 0x07;
+    private static final byte BOOLEAN = 0x08;
+    private static final byte DATE = 0x09;
+    private static final byte NULL = 0x0A;
+    private static final byte INT32 = 0x10;
+    private static final byte TIMESTAMP = 0x11;
+    private static final byte INT64 = 0x12;
+
+    /**
+     * The mapped file
+     */
+    private final ByteBuffer buf;
+    /**
+     * Scratch space for decoding names and strings
+     */
+    private byte[] scratch = new byte[64];
+
+    /**
+     * C'tor
+     * 
+     * @param buf
+     */
+    private WorldFileReader(final ByteBuffer buf) {
+        this.buf = buf;
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Loads the plots in the given world file content into the given world.
+     * 
+     * @param buf
+     *            The content of the file, usually mapped
+     * @param world
+     * @return True if the file is in the legacy BSON format
+     * @throws IOException
+     *             If the content could not be inflated
+     * @throws IllegalArgumentException
+     *             If the file is not a valid world file
+     */
+    static boolean read(final ByteBuffer buf, final PoliticsWorld world) throws IOException {
+        final WorldFileReader reader = new WorldFileReader(buf);
+        if (reader.isColumnar()) {
+            reader.readColumnar(world);
+            return false;
+        }
+        reader.readWorld(world);
+        return true;
+    }
+
+    private boolean isColumnar() {
+        if (buf.limit() < WorldFileWriter.MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < WorldFileWriter.MAGIC.length; i++) {
+            if (buf.get(i) != WorldFileWriter.MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void readColumnar(final PoliticsWorld world) throws IOException {
+        buf.position(WorldFileWriter.MAGIC.length);
+        final byte version = buf.get();
+        if (version != WorldFileWriter.VERSION) {
+            throw new IllegalArgumentException("Unsupported world file version " + version + "!");
+        }
+        final byte compression = buf.get();
+        InputStream body = new ByteBufferInputStream(buf);
+        if (compression == WorldFileWriter.COMPRESSION_DEFLATE) {
+            body = new BufferedInputStream(new InflaterInputStream(body), 8192);
+        } else if (compression != WorldFileWriter.COMPRESSION_NONE) {
+            throw new IllegalArgumentException("Unsupported world file compression " + compression + "!");
+        }
+        final DataInputStream in = new DataInputStream(body);
+        try {
+            in.readUTF();
+
+            final int[] dictionary = new int[readVarInt(in)];
+            int prev = 0;
+            for (int i = 0; i < dictionary.length; i++) {
+                prev += unZigZag(readVarInt(in));
+                dictionary[i] = prev;
+            }
+
+            final int chunks = readVarInt(in);
+            final int[] chunkX = readDeltaColumn(in, chunks);
+            final int[] chunkZ = readDeltaColumn(in, chunks);
+            final int[] chunkY = readDeltaColumn(in, chunks);
+            final TIntList[] chunkOwners = readOwnerColumns(in, chunks, dictionary);
+            for (int i = 0; i < chunks; i++) {
+                world.addLoadedPlot(new ChunkPlot(world, chunkX[i], chunkY[i], chunkZ[i], chunkOwners[i]));
+            }
+
+            final int regions = readVarInt(in);
+            final int[] regionX = readDeltaColumn(in, regions);
+            final int[] regionZ = readDeltaColumn(in, regions);
+            final int[] regionY = readDeltaColumn(in, regions);
+            final int[] regionXSize = readColumn(in, regions);
+            final int[] regionZSize = readColumn(in, regions);
+            final int[] regionYSize = readColumn(in, regions);
+            final TIntList[] regionOwners = readOwnerColumns(in, regions, dictionary);
+            for (int i = 0; i < regions; i++) {
+                world.addLoadedPlot(new RegionPlot(world, regionOwners[i], regionX[i], regionY[i], regionZ[i], regionXSize[i], regionYSize[i],
+                        regionZSize[i]));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int[] readDeltaColumn(final DataInputStream in, final int count) throws IOException {
+        final int[] column = new int[count];
+        int prev = 0;
+        for (int i = 0; i < count; i++) {
+            prev += unZigZag(readVarInt(in));
+            column[i] = prev;
+        }
+        return column;
+    }
+
+    private static int[] readColumn(final DataInputStream in, final int count) throws IOException {
+        final int[] column = new int[count];
+        for (int i = 0; i < count; i++) {
+            column[i] = unZigZag(readVarInt(in));
+        }
+        return column;
+    }
+
+    private static TIntList[] readOwnerColumns(final DataInputStream in, final int count, final int[] dictionary) throws IOException {
+        final int[] counts = readColumn(in, count);
+        final TIntList[] owners = new TIntList[count];
+        for (int i = 0; i < count; i++) {
+            owners[i] = new TIntArrayList(counts[i]);
+            for (int j = 0; j < counts[i]; j++) {
+                owners[i].add(dictionary[readVarInt(in)]);
+            }
+        }
+        return owners;
+    }
+
+    private static int unZigZag(final int value) {
+        return value >>> 1 ^ -(value & 1);
+    }
+
+    private static int readVarInt(final DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            final int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed variable length integer!");
+    }
+
+    private void readWorld(final PoliticsWorld world) {
+        final int end = documentEnd();
+        while (buf.position() < end - 1) {
+            final byte type = buf.get();
+            final String name = readCString();
+            if (type == ARRAY && name.equals("plots")) {
+                readPlots(world);
+            } else {
+                skip(type);
+            }
+        }
+        buf.position(end);
+    }
+
+    private void readPlots(final PoliticsWorld world) {
+        final int end = documentEnd();
+        while (buf.position() < end - 1) {
+            final byte type = buf.get();
+            skipCString();
+            if (type != DOCUMENT) {
+                throw new IllegalArgumentException("List must only contain more objects!");
+            }
+            world.addLoadedPlot(readPlot(world));
+        }
+        buf.position(end);
+    }
+
+    private Plot readPlot(final PoliticsWorld world) {
+        final int end = documentEnd();
+        String plotType = null;
+        final TIntList owners = new TIntArrayList();
+        Integer x = null, y = null, z = null, xSize = null, ySize = null, zSize = null;
+        while (buf.position() < end - 1) {
+            final byte type = buf.get();
+            final String name = readCString();
+            if (type == STRING && name.equals("type")) {
+                plotType = readString();
+            } else if (type == ARRAY && name.equals("owners")) {
+                readOwners(owners);
+            } else if (type == INT32 && name.length() == 1) {
+                switch (name.charAt(0)) {
+                    case 'x':
+                        x = buf.getInt();
+                        break;
+                    case 'y':
+                        y = buf.getInt();
+                        break;
+                    case 'z':
+                        z = buf.getInt();
+                        break;
+                    default:
+                        buf.getInt();
+                }
+            } else if (type == INT32 && name.equals("xSize")) {
+                xSize = buf.getInt();
+            } else if (type == INT32 && name.equals("ySize")) {
+                ySize = buf.getInt();
+            } else if (type == INT32 && name.equals("zSize")) {
+                zSize = buf.getInt();
+            } else {
+                skip(type);
+            }
+        }
+        buf.position(end);
+
+        if (plotType == null) {
+            throw new IllegalArgumentException("Type is not a recognized string");
+        }
+        if (x == null || y == null || z == null) {
+            throw new IllegalArgumentException("Plot coordinates were not available.");
+        }
+        switch (PlotType.valueOf(plotType)) {
+            case CHUNK:
+                return new ChunkPlot(world, x, y, z, owners);
+            case REGION:
+                if (xSize == null || ySize == null || zSize == null) {
+                    throw new IllegalArgumentException("Region plot sizes were not available.");
+                }
+                return new RegionPlot(world, owners, x, y, z, xSize, ySize, zSize);
+            default:
+                throw new IllegalStateException("Was unable to handle Type");
+        }
+    }
+
+    private void readOwners(final TIntList owners) {
+        final int end = documentEnd();
+        while (buf.position() < end - 1) {
+            final byte type = buf.get();
+            skipCString();
+            if (type == INT32) {
+                owners.add(buf.getInt());
+            } else if (type == INT64) {
+                owners.add((int) buf.getLong());
+            } else {
+                throw new IllegalArgumentException("Owner ids must be integers!");
+            }
+        }
+        buf.position(end);
+    }
+
+    /**
+     * Reads the length of the document starting at the current position.
+     * 
+     * @return The position right after the document
+     */
+    private int documentEnd() {
+        final int start = buf.position();
+        final int length = buf.getInt();
+        if (length < 5 || start + length > buf.limit()) {
+            throw new IllegalArgumentException("Invalid document length " + length + " at offset " + start + "!");
+        }
+        return start + length;
+    }
+
+    private String readCString() {
+        int length = 0;
+        byte b;
+        while ((b = buf.get()) != 0) {
+            if (length == scratch.length) {
+                final byte[] bigger = new byte[scratch.length * 2];
+                System.arraycopy(scratch, 0, bigger, 0, length);
+                scratch = bigger;
+            }
+            scratch[length++] = b;
+        }
+        return new String(scratch, 0, length, UTF_8);
+    }
+
+    private void skipCString() {
+        while (buf.get() != 0) {
+            // Skip
+        }
+    }
+
+    private String readString() {
+        final int length = buf.getInt();
+        if (length < 1 || length > buf.remaining()) {
+            throw new IllegalArgumentException("Invalid string length " + length + "!");
+        }
+        if (length > scratch.length) {
+            scratch = new byte[length];
+        }
+        buf.get(scratch, 0, length);
+        return new String(scratch, 0, length - 1, UTF_8);
+    }
+
+    private void skip(final byte type) {
+        switch (type) {
+            case DOUBLE:
+            case DATE:
+            case TIMESTAMP:
+            case INT64:
+                buf.position(buf.position() + 8);
+                break;
+            case STRING:
+                buf.position(buf.position() + 4 + buf.getInt(buf.position()));
+                break;
+            case DOCUMENT:
+            case ARRAY:
+                buf.position(documentEnd());
+                break;
+            case BINARY:
+                buf.position(buf.position() + 5 + buf.getInt(buf.position()));
+                break;
+            case OBJECT_ID:
+                buf.position(buf.position() + 12);
+                break;
+            case BOOLEAN:
+                buf.position(buf.position() + 1);
+                break;
+            case NULL:
+                break;
+            case INT32:
+                buf.position(buf.position() + 4);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported BSON type " + type + " at offset " + buf.position() + "!");
+        }
+    }
+
+    /**
+     * Reads the remaining bytes of a buffer
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        private ByteBufferInputStream(final ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * This file is part of Politics.
+ * 
+ * Copyright (c) 2012-2012, VolumetricPixels <http://volumetricpixels.com/>
+ * Politics is licensed under the Affero General Public License Version 3.
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.volumetricpixels.politics.world;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import com.volumetricpixels.politics.data.Snapshot;
+
+/**
+ * Writes a PoliticsWorld, or some of its plots, in the columnar world file
+ * format.
+ * 
+ * The file starts with the magic bytes <code>PTWC</code>, the format version
+ * and the compression used for the rest of the file. The body holds the world
+ * name, a dictionary of every owner id in the world, and then one section for
+ * chunk plots and one for region plots. Each section stores every field of
+ * its plots as one column: coordinates are sorted and delta encoded, and
+ * owners are stored as indexes into the dictionary, all as variable length
+ * integers.
+ * 
+ * The plots are captured when the writer is created, so it can encode them
+ * on any thread afterwards.
+ */
+final class WorldFileWriter implements Snapshot.Document {
+    static final byte[] MAGIC = {'P', 'T', 'W', 'C'};
+    static final byte VERSION = 1;
+    static final byte COMPRESSION_NONE = 0;
+    static final byte COMPRESSION_DEFLATE = 1;
+
+    private final String name;
+    private final boolean compress;
+    /**
+     * Chunk plot columns
+     */
+    private final int[] chunkX, chunkY, chunkZ;
+    private final int[][] chunkOwners;
+    /**
+     * Region plot columns
+     */
+    private final int[] regionX, regionY, regionZ, regionXSize, regionYSize, regionZSize;
+    private final int[][] regionOwners;
+
+    /**
+     * C'tor
+     * 
+     * @param world
+     *            The world to capture
+     * @param compress
+     *            True to deflate the body of the file
+     */
+    WorldFileWriter(final PoliticsWorld world, final boolean compress) {
+        this(world.getName(), world.getChunkPlots(), world.getRegionPlots(), compress);
+    }
+
+    /**
+     * C'tor
+     * 
+     * @param name
+     *            The name of the world
+     * @param chunkPlots
+     *            The chunk plots to capture
+     * @param regions
+     *            The region plots to capture
+     * @param compress
+     *            True to deflate the body of the file
+     */
+    WorldFileWriter(final String name, final Collection<ChunkPlot> chunkPlots, final List<RegionPlot> regions, final boolean compress) {
+        this.name = name;
+        this.compress = compress;
+
+        final ChunkPlot[] chunks = new ChunkPlot[chunkPlots.size()];
+        int count = 0;
+        for (final ChunkPlot plot : chunkPlots) {
+            if (plot.canStore() && count < chunks.length) {
+                chunks[count++] = plot;
+            }
+        }
+        chunkX = new int[count];
+        chunkY = new int[count];
+        chunkZ = new int[count];
+        chunkOwners = new int[count][];
+        for (int i = 0; i < count; i++) {
+            chunkX[i] = chunks[i].getChunkX();
+            chunkY[i] = chunks[i].getChunkY();
+            chunkZ[i] = chunks[i].getChunkZ();
+            chunkOwners[i] = chunks[i].getOwnerIds().toArray();
+        }
+
+        final int regionCount = regions.size();
+        regionX = new int[regionCount];
+        regionY = new int[regionCount];
+        regionZ = new int[regionCount];
+        regionXSize = new int[regionCount];
+        regionYSize = new int[regionCount];
+        regionZSize = new int[regionCount];
+        regionOwners = new int[regionCount][];
+        for (int i = 0; i < regionCount; i++) {
+            final RegionPlot plot = regions.get(i);
+            regionX[i] = plot.getMinX();
+            regionY[i] = plot.getMinY();
+            regionZ[i] = plot.getMinZ();
+            regionXSize[i] = plot.getMaxX() - plot.getMinX();
+            regionYSize[i] = plot.getMaxY() - plot.getMinY();
+            regionZSize[i] = plot.getMaxZ() - plot.getMinZ();
+            regionOwners[i] = plot.getOwnerIds().toArray();
+        }
+    }
+
+    @Override
+    public byte[] encode() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(MAGIC);
+        bytes.write(VERSION);
+        bytes.write(compress ? COMPRESSION_DEFLATE : COMPRESSION_NONE);
+
+        final Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        final OutputStream body = compress ? new DeflaterOutputStream(bytes, deflater, 8192) : bytes;
+        final DataOutputStream out = new DataOutputStream(body);
+        try {
+            out.writeUTF(name);
+
+            // Owner dictionary
+            final TIntSet ids = new TIntHashSet();
+            for (final int[] owners : chunkOwners) {
+                ids.addAll(owners);
+            }
+            for (final int[] owners : regionOwners) {
+                ids.addAll(owners);
+            }
+            final int[] dictionary = ids.toArray();
+            Arrays.sort(dictionary);
+            final TIntIntMap indexes = new TIntIntHashMap(dictionary.length);
+            writeVarInt(out, dictionary.length);
+            int prev = 0;
+            for (int i = 0; i < dictionary.length; i++) {
+                writeVarInt(out, zigZag(dictionary[i] - prev));
+                prev = dictionary[i];
+                indexes.put(dictionary[i], i);
+            }
+
+            // Chunk plots, ordered so neighbouring chunks are close together
+            final Integer[] order = sortedOrder(chunkX, chunkZ, chunkY);
+            writeVarInt(out, order.length);
+            writeDeltaColumn(out, chunkX, order);
+            writeDeltaColumn(out, chunkZ, order);
+            writeDeltaColumn(out, chunkY, order);
+            writeOwnerColumns(out, chunkOwners, order, indexes);
+
+            // Region plots
+            final Integer[] regionOrder = sortedOrder(regionX, regionZ, regionY);
+            writeVarInt(out, regionOrder.length);
+            writeDeltaColumn(out, regionX, regionOrder);
+            writeDeltaColumn(out, regionZ, regionOrder);
+            writeDeltaColumn(out, regionY, regionOrder);
+            writeColumn(out, regionXSize, regionOrder);
+            writeColumn(out, regionZSize, regionOrder);
+            writeColumn(out, regionYSize, regionOrder);
+            writeOwnerColumns(out, regionOwners, regionOrder, indexes);
+        } finally {
+            out.close();
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Gets the order of the plots sorted by the given columns.
+     * 
+     * @return
+     */
+    private static Integer[] sortedOrder(final int[] first, final int[] second, final int[] third) {
+        final Integer[] order = new Integer[first.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer a, final Integer b) {
+                int cmp = compareInts(first[a], first[b]);
+                if (cmp == 0) {
+                    cmp = compareInts(second[a], second[b]);
+                }
+                if (cmp == 0) {
+                    cmp = compareInts(third[a], third[b]);
+                }
+                return cmp;
+            }
+        });
+        return order;
+    }
+
+    private static int compareInts(final int a, final int b) {
+        return a < b ? -1 : a == b ? 0 : 1;
+    }
+
+    private static void writeDeltaColumn(final DataOutputStream out, final int[] column, final Integer[] order) throws IOException {
+        int prev = 0;
+        for (final int i : order) {
+            writeVarInt(out, zigZag(column[i] - prev));
+            prev = column[i];
+        }
+    }
+
+    private static void writeColumn(final DataOutputStream out, final int[] column, final Integer[] order) throws IOException {
+        for (final int i : order) {
+            writeVarInt(out, zigZag(column[i]));
+        }
+    }
+
+    private static void writeOwnerColumns(final DataOutputStream out, final int[][] owners, final Integer[] order, final TIntIntMap indexes)
+            throws IOException {
+        for (final int i : order) {
+            writeVarInt(out, zigZag(owners[i].length));
+        }
+        for (final int i : order) {
+            for (final int owner : owners[i]) {
+                writeVarInt(out, indexes.get(owner));
+            }
+        }
+    }
+
+    static int zigZag(final int value) {
+        return value << 1 ^ value >> 31;
+    }
+
+    static void writeVarInt(final DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write(value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
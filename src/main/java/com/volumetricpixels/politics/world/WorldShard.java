@@ -0,0 +1,227 @@
+/*
+ * This file is part of Politics.
+ * 
+ * Copyright (c) 2012-2012, VolumetricPixels <http://volumetricpixels.com/>
+ * Politics is licensed under the Affero General Public License Version 3.
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.volumetricpixels.politics.world;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.spout.api.util.map.concurrent.TSyncInt21TripleObjectHashMap;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.bson.types.BasicBSONList;
+
+import com.volumetricpixels.politics.data.Storable;
+
+/**
+ * The chunk plots of a square of {@link #SIZE} by {@link #SIZE} chunk columns
+ * of a world. Shards are stored separately and only kept in memory while
+ * chunks in them are loaded or their plots are used.
+ */
+final class WorldShard implements Storable {
+    /**
+     * Log2 of the width of a shard in chunks
+     */
+    static final int BITS = 5;
+    /**
+     * Width of a shard in chunks
+     */
+    static final int SIZE = 1 << BITS;
+
+    private final PoliticsWorld world;
+    /**
+     * Shard coordinates
+     */
+    private final int x, z;
+    /**
+     * Chunk plots of this shard, keyed by their chunk coordinates
+     */
+    private final TSyncInt21TripleObjectHashMap<ChunkPlot> plots = new TSyncInt21TripleObjectHashMap<ChunkPlot>();
+    /**
+     * Number of chunks of this shard the engine has loaded
+     */
+    private final AtomicInteger loadedChunks = new AtomicInteger();
+    /**
+     * True once the plots of this shard were read from storage
+     */
+    private volatile boolean loaded;
+    /**
+     * True once this shard was dropped from its world
+     */
+    private volatile boolean unloaded;
+    /**
+     * True if a plot of this shard changed since the shard was last stored
+     */
+    private volatile boolean dirty;
+
+    /**
+     * C'tor
+     * 
+     * @param world
+     * @param x
+     *            shard x
+     * @param z
+     *            shard z
+     */
+    WorldShard(final PoliticsWorld world, final int x, final int z) {
+        this.world = world;
+        this.x = x;
+        this.z = z;
+    }
+
+    /**
+     * Packs shard coordinates into a key.
+     * 
+     * @param x
+     *            shard x
+     * @param z
+     *            shard z
+     * @return
+     */
+    static long key(final int x, final int z) {
+        return (long) x << 32 | z & 0xFFFFFFFFL;
+    }
+
+    int getX() {
+        return x;
+    }
+
+    int getZ() {
+        return z;
+    }
+
+    long getKey() {
+        return key(x, z);
+    }
+
+    /**
+     * Gets the chunk plot at the given chunk position.
+     * 
+     * @return The plot, or null if the chunk has none
+     */
+    ChunkPlot getPlot(final int chunkX, final int chunkY, final int chunkZ) {
+        return plots.get(chunkX, chunkY, chunkZ);
+    }
+
+    /**
+     * Adds a chunk plot to this shard.
+     * 
+     * @param plot
+     * @return The plot that already was at the position of the plot, which
+     *         stays in this shard, or null if the plot was added
+     */
+    ChunkPlot addPlot(final ChunkPlot plot) {
+        final ChunkPlot prev = plots.putIfAbsent(plot.getChunkX(), plot.getChunkY(), plot.getChunkZ(), plot);
+        if (prev == null) {
+            plot.setShard(this);
+        }
+        return prev;
+    }
+
+    /**
+     * Gets a live view of the chunk plots of this shard.
+     * 
+     * @return
+     */
+    Collection<ChunkPlot> getPlots() {
+        return plots.valueCollection();
+    }
+
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    void setLoaded() {
+        loaded = true;
+    }
+
+    /**
+     * Marks this shard as dropped from its world. Its plots forward to the
+     * plots of the shard that replaces it from then on.
+     */
+    void setUnloaded() {
+        unloaded = true;
+    }
+
+    boolean isUnloaded() {
+        return unloaded;
+    }
+
+    /**
+     * Counts a chunk of this shard being loaded by the engine.
+     */
+    void chunkLoaded() {
+        loadedChunks.incrementAndGet();
+    }
+
+    /**
+     * Counts a chunk of this shard being unloaded by the engine.
+     */
+    void chunkUnloaded() {
+        int count;
+        do {
+            count = loadedChunks.get();
+        } while (count > 0 && !loadedChunks.compareAndSet(count, count - 1));
+    }
+
+    /**
+     * Checks if this shard can be dropped from memory: no chunk of it is
+     * loaded and all of its changes are stored. A shard that was never read
+     * can be dropped as long as nothing was added to it.
+     * 
+     * @return
+     */
+    boolean canUnload() {
+        return (loaded || plots.valueCollection().isEmpty()) && !dirty && loadedChunks.get() == 0;
+    }
+
+    @Override
+    public BSONObject toBSONObject() {
+        final BasicBSONObject bson = new BasicBSONObject();
+        bson.put("x", x);
+        bson.put("z", z);
+        final BasicBSONList plotList = new BasicBSONList();
+        for (final ChunkPlot plot : plots.valueCollection()) {
+            if (plot.canStore()) {
+                plotList.add(plot.toBSONObject());
+            }
+        }
+        bson.put("plots", plotList);
+        return bson;
+    }
+
+    @Override
+    public boolean canStore() {
+        return true;
+    }
+
+    @Override
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    @Override
+    public void setDirty(final boolean dirty) {
+        this.dirty = dirty;
+        if (dirty) {
+            world.setDirty(true);
+        }
+    }
+}
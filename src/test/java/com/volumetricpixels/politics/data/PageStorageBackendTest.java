@@ -0,0 +1,149 @@
+/*
+ * This file is part of Politics.
+ * 
+ * Copyright (c) 2012-2012, VolumetricPixels <http://volumetricpixels.com/>
+ * Politics is licensed under the Affero General Public License Version 3.
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.volumetricpixels.politics.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PageStorageBackendTest {
+    /**
+     * Size of the pages batches are aligned to
+     */
+    private static final int PAGE_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReopen() throws IOException {
+        final File file = new File(folder.getRoot(), "store.ptkv");
+        final PageStorageBackend store = open(file);
+        store.write(records("a", "b"), Collections.<String> emptySet());
+        store.write(records("c"), Collections.singleton("a"));
+        store.close();
+
+        final PageStorageBackend reopened = open(file);
+        assertNull(reopened.read("a"));
+        assertValue(reopened, "b");
+        assertValue(reopened, "c");
+        assertEquals(2, reopened.list("").size());
+        reopened.close();
+    }
+
+    @Test
+    public void testTornLastBatchIsDiscarded() throws IOException {
+        final File file = new File(folder.getRoot(), "store.ptkv");
+        final PageStorageBackend store = open(file);
+        store.write(records("a"), Collections.<String> emptySet());
+        store.write(records("b"), Collections.<String> emptySet());
+        store.close();
+
+        // Cut the second batch in the middle of its payload
+        truncate(file, PAGE_SIZE + 20);
+
+        final PageStorageBackend reopened = open(file);
+        assertValue(reopened, "a");
+        assertNull(reopened.read("b"));
+        assertEquals(PAGE_SIZE, file.length());
+
+        // The store keeps working after the torn batch was cut off
+        reopened.write(records("c"), Collections.<String> emptySet());
+        reopened.close();
+        final PageStorageBackend again = open(file);
+        assertValue(again, "a");
+        assertValue(again, "c");
+        again.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testDamagedMiddleBatchIsRefused() throws IOException {
+        final File file = new File(folder.getRoot(), "store.ptkv");
+        final PageStorageBackend store = open(file);
+        store.write(records("a"), Collections.<String> emptySet());
+        store.write(records("b"), Collections.<String> emptySet());
+        store.write(records("c"), Collections.<String> emptySet());
+        store.close();
+
+        // Flip a byte of the payload of the second batch
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final long pos = PAGE_SIZE + 20;
+            raf.seek(pos);
+            final int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0xFF);
+        } finally {
+            raf.close();
+        }
+
+        open(file);
+    }
+
+    private static PageStorageBackend open(final File file) throws IOException {
+        final PageStorageBackend store = new PageStorageBackend(file);
+        store.open();
+        return store;
+    }
+
+    private static Map<String, byte[]> records(final String... keys) {
+        final Map<String, byte[]> records = new LinkedHashMap<String, byte[]>();
+        for (final String key : keys) {
+            records.put(key, value(key));
+        }
+        return records;
+    }
+
+    private static byte[] value(final String key) {
+        final byte[] value = new byte[100];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) (key.hashCode() + i);
+        }
+        return value;
+    }
+
+    private static void assertValue(final PageStorageBackend store, final String key) {
+        final ByteBuffer value = store.read(key);
+        final byte[] bytes = new byte[value.remaining()];
+        value.get(bytes);
+        assertArrayEquals(value(key), bytes);
+    }
+
+    private static void truncate(final File file, final long length) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * This file is part of Politics.
+ * 
+ * Copyright (c) 2012-2012, VolumetricPixels <http://volumetricpixels.com/>
+ * Politics is licensed under the Affero General Public License Version 3.
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.volumetricpixels.politics.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.volumetricpixels.politics.Politics;
+import com.volumetricpixels.politics.universe.Universe;
+import com.volumetricpixels.politics.universe.UniverseManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Politics.class)
+public class WriteAheadLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private UniverseManager universes;
+    private Universe first;
+    private Universe second;
+
+    @Before
+    public void setUp() {
+        universes = mock(UniverseManager.class);
+        first = universe("first");
+        second = universe("second");
+        mockStatic(Politics.class);
+        when(Politics.getUniverseManager()).thenReturn(universes);
+    }
+
+    @Test
+    public void testReplay() throws IOException {
+        final File dir = folder.newFolder("wal");
+        final WriteAheadLog log = new WriteAheadLog(dir, 1000);
+        log.start();
+        log.logDestroyUniverse(first);
+        log.logDestroyUniverse(second);
+        log.close();
+
+        new WriteAheadLog(dir, 1000).replay();
+        verify(universes).destroyUniverse(first);
+        verify(universes).destroyUniverse(second);
+    }
+
+    @Test
+    public void testTornTailIsIgnored() throws IOException {
+        final File dir = folder.newFolder("wal");
+        final WriteAheadLog log = new WriteAheadLog(dir, 1000);
+        log.start();
+        log.logDestroyUniverse(first);
+        log.logDestroyUniverse(second);
+        log.close();
+
+        // Cut the last record short, as a crash in the middle of a write would
+        final File[] segments = dir.listFiles();
+        assertEquals(1, segments.length);
+        final RandomAccessFile raf = new RandomAccessFile(segments[0], "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+
+        new WriteAheadLog(dir, 1000).replay();
+        verify(universes).destroyUniverse(first);
+        verify(universes, never()).destroyUniverse(second);
+    }
+
+    private Universe universe(final String name) {
+        final Universe universe = mock(Universe.class);
+        when(universe.getName()).thenReturn(name);
+        when(universes.getUniverse(name)).thenReturn(universe);
+        return universe;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * This file is part of Politics.
+ * 
+ * Copyright (c) 2012-2012, VolumetricPixels <http://volumetricpixels.com/>
+ * Politics is licensed under the Affero General Public License Version 3.
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.volumetricpixels.politics.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import com.volumetricpixels.politics.exception.PropertyDeserializationException;
+import com.volumetricpixels.politics.exception.PropertySerializationException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class PropertyCodecsTest {
+    @Test
+    public void testRoundTrip() throws Exception {
+        assertRoundTrip(Integer.MIN_VALUE);
+        assertRoundTrip(Long.MAX_VALUE);
+        assertRoundTrip(-1.5D);
+        assertRoundTrip(0.25F);
+        assertRoundTrip(Boolean.TRUE);
+        assertRoundTrip("Politics \u00e9\u00e8");
+        assertRoundTrip("");
+        assertRoundTrip(UUID.randomUUID());
+    }
+
+    @Test
+    public void testListRoundTrip() throws Exception {
+        final List<Object> inner = new ArrayList<Object>();
+        inner.add(7L);
+        inner.add("seven");
+        // Any List implementation is encoded by the codec for List
+        assertRoundTrip(Arrays.asList(1, "two", inner, Boolean.FALSE));
+    }
+
+    @Test
+    public void testLegacyBase64Fallback() throws Exception {
+        @SuppressWarnings("deprecation")
+        final String legacy = PropertySerializer.serialize(42);
+        assertEquals(Integer.valueOf(42), PropertyCodecs.decodeProperty(legacy, Integer.class));
+    }
+
+    @Test
+    public void testStringsAreNotTakenForBase64() throws Exception {
+        assertEquals("abcd", PropertyCodecs.decodeProperty("abcd", String.class));
+    }
+
+    @Test(expected = PropertyDeserializationException.class)
+    public void testWrongType() throws Exception {
+        PropertyCodecs.decodeProperty(PropertyCodecs.encode(1), String.class);
+    }
+
+    @Test(expected = PropertyDeserializationException.class)
+    public void testUnknownCodec() throws Exception {
+        PropertyCodecs.decode(new byte[] {(byte) 0xEE, 0, 0, 0, 0});
+    }
+
+    @Test(expected = PropertyDeserializationException.class)
+    public void testTruncatedValue() throws Exception {
+        final byte[] data = PropertyCodecs.encode(Long.MAX_VALUE);
+        PropertyCodecs.decode(Arrays.copyOf(data, data.length - 1));
+    }
+
+    @Test(expected = PropertySerializationException.class)
+    public void testNoCodec() throws Exception {
+        PropertyCodecs.encode(new Object());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTakenId() {
+        PropertyCodecs.register(new EmptyCodec<Base>(1, Base.class));
+    }
+
+    @Test
+    public void testRegisteringReplacesSupertypeLookup() {
+        final EmptyCodec<Base> base = new EmptyCodec<Base>(0xF0, Base.class);
+        PropertyCodecs.register(base);
+        assertSame(base, PropertyCodecs.getCodec(MoreDerived.class));
+
+        // The lookup of MoreDerived is cached now, but must not shadow a
+        // codec registered later for a closer supertype
+        final EmptyCodec<Derived> derived = new EmptyCodec<Derived>(0xF1, Derived.class);
+        PropertyCodecs.register(derived);
+        assertSame(derived, PropertyCodecs.getCodec(MoreDerived.class));
+        assertSame(derived, PropertyCodecs.getCodec(Derived.class));
+        assertSame(base, PropertyCodecs.getCodec(Base.class));
+    }
+
+    private static void assertRoundTrip(final Object value) throws Exception {
+        assertEquals(value, PropertyCodecs.decode(PropertyCodecs.encode(value)));
+    }
+
+    private static class Base {
+    }
+
+    private static class Derived extends Base {
+    }
+
+    private static class MoreDerived extends Derived {
+    }
+
+    /**
+     * A codec writing nothing, for testing registration
+     */
+    private static final class EmptyCodec<T> implements PropertyCodec<T> {
+        private final byte id;
+        private final Class<T> type;
+
+        private EmptyCodec(final int id, final Class<T> type) {
+            this.id = (byte) id;
+            this.type = type;
+        }
+
+        @Override
+        public byte getId() {
+            return id;
+        }
+
+        @Override
+        public Class<T> getType() {
+            return type;
+        }
+
+        @Override
+        public void encode(final T value, final DataOutput out) {
+        }
+
+        @Override
+        public T decode(final DataInput in) {
+            return null;
+        }
+    }
+}
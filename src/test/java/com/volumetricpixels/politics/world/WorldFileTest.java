@@ -0,0 +1,125 @@
+/*
+ * This file is part of Politics.
+ * 
+ * Copyright (c) 2012-2012, VolumetricPixels <http://volumetricpixels.com/>
+ * Politics is licensed under the Affero General Public License Version 3.
+ * 
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.volumetricpixels.politics.world;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WorldFileTest {
+    private PoliticsWorld world;
+    private List<ChunkPlot> chunks;
+    private List<RegionPlot> regions;
+
+    @Before
+    public void setUp() {
+        world = mock(PoliticsWorld.class);
+        when(world.getName()).thenReturn("world");
+
+        chunks = new ArrayList<ChunkPlot>();
+        chunks.add(new ChunkPlot(world, 0, 0, 0, owners(1)));
+        chunks.add(new ChunkPlot(world, -5, 3, 12, owners(2, 1)));
+        chunks.add(new ChunkPlot(world, 1 << 20, -1, -(1 << 20), owners(Integer.MAX_VALUE - 1, 0, 7)));
+        chunks.add(new ChunkPlot(world, 4, 4, 4, owners(3)));
+
+        regions = new ArrayList<RegionPlot>();
+        regions.add(new RegionPlot(world, owners(7), -100, 10, 250, 16, 32, 8));
+        regions.add(new RegionPlot(world, owners(), 3, 0, -3, 1, 1, 1));
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        assertRoundTrip(false);
+    }
+
+    @Test
+    public void testCompressedRoundTrip() throws IOException {
+        assertRoundTrip(true);
+    }
+
+    @Test
+    public void testUnownedChunkPlotsAreSkipped() throws IOException {
+        final List<ChunkPlot> withUnowned = new ArrayList<ChunkPlot>(chunks);
+        withUnowned.add(new ChunkPlot(world, 9, 9, 9, owners()));
+        final byte[] data = new WorldFileWriter("world", withUnowned, regions, false).encode();
+
+        assertEquals(describe(chunks, regions), describe(read(data)));
+    }
+
+    private void assertRoundTrip(final boolean compress) throws IOException {
+        final byte[] data = new WorldFileWriter("world", chunks, regions, compress).encode();
+        assertEquals(describe(chunks, regions), describe(read(data)));
+    }
+
+    private List<Plot> read(final byte[] data) throws IOException {
+        assertFalse(WorldFileReader.read(ByteBuffer.wrap(data), world));
+        final ArgumentCaptor<Plot> plots = ArgumentCaptor.forClass(Plot.class);
+        verify(world, atLeastOnce()).addLoadedPlot(plots.capture());
+        return plots.getAllValues();
+    }
+
+    private static List<String> describe(final List<ChunkPlot> chunks, final List<RegionPlot> regions) {
+        final List<Plot> plots = new ArrayList<Plot>(chunks);
+        plots.addAll(regions);
+        return describe(plots);
+    }
+
+    /**
+     * Describes each plot by its position and its owners in order, so plots
+     * can be compared regardless of the order they are stored in.
+     */
+    private static List<String> describe(final List<Plot> plots) {
+        final List<String> descriptions = new ArrayList<String>();
+        for (final Plot plot : plots) {
+            final String owners = Arrays.toString(plot.getOwnerIds().toArray());
+            if (plot instanceof ChunkPlot) {
+                final ChunkPlot chunk = (ChunkPlot) plot;
+                descriptions.add("chunk " + chunk.getChunkX() + " " + chunk.getChunkY() + " " + chunk.getChunkZ() + " " + owners);
+            } else {
+                final RegionPlot region = (RegionPlot) plot;
+                descriptions.add("region " + region.getMinX() + " " + region.getMinY() + " " + region.getMinZ() + " " + region.getMaxX() + " "
+                        + region.getMaxY() + " " + region.getMaxZ() + " " + owners);
+            }
+        }
+        Collections.sort(descriptions);
+        return descriptions;
+    }
+
+    private static TIntList owners(final int... ids) {
+        return new TIntArrayList(ids);
+    }
+}